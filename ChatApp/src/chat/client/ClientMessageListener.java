@@ -1,195 +1,299 @@
-package chat.client;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
-
-import chat.util.Logger;
-import chat.util.SystemCode;
-
-public class ClientMessageListener implements Runnable {
-
-	private Socket socket;
-	private BufferedReader listener;
-	private InputStreamReader innerStream;
-	private ClientMessageSender messageSender;
-
-	// Boolean variable used to stop the run method.
-	private boolean isRunning;
-
-	public ClientMessageListener(Socket client, ClientMessageSender messageSender) {
-		this.socket = client;
-		this.messageSender = messageSender;
-	}
-
-	public void run() {
-		this.isRunning = true;
-
-		try {
-			if (!initUsername()) {
-				// Error was occurred during registration the user.
-				return;
-			}
-
-			// The client successfully logged in and now can send messages.
-			Thread senderThread = new Thread(messageSender);
-			senderThread.start();
-
-			while (isRunning) {
-				String message = listener.readLine();
-				if (message.equalsIgnoreCase("logout")) {
-					// User asked to logout.
-					System.out.println("Successfully logged out.");
-					isRunning = false;
-				} else if (message.equalsIgnoreCase("disconnect")) {
-					// Server was shutdown or removed the user.
-					System.out.print("You have been disconnected from server. ");
-					isRunning = false;
-					messageSender.shutdown();
-
-				} else {
-					display(message);
-				}
-			}
-		} catch (IOException ioException) {
-			// Unexpected connection lost.
-			isRunning = false;
-			System.err.print("Lost connection with server. " + Logger.printError(ioException));
-		} finally {
-			try {
-				closeResources();
-			} catch (IOException e) {
-				System.err.print("Error occured while closing resources." + Logger.printError(e));
-			}
-		}
-	}
-
-	/**
-	 * Open data stream used by ClientMessageListener
-	 * 
-	 * @throws IOException
-	 *             If the data stream cannot be opened.
-	 */
-	public void init() throws IOException {
-		try {
-			innerStream = new InputStreamReader(socket.getInputStream());
-			listener = new BufferedReader(innerStream);
-		} catch (IOException ioException) {
-			// Unable to open input stream.
-			throw new IOException("Unable to open the input stream.", ioException);
-		}
-	}
-
-	void closeResources() throws IOException {
-		try {
-			if (listener != null) {
-				listener.close();
-			}
-		} catch (IOException ioException) {
-			System.err.println(
-					"Closing the input stream failed. Close the inner stream." + Logger.printError(ioException));
-
-			try {
-				if (innerStream != null) {
-					innerStream.close();
-				}
-			} catch (IOException e) {
-				System.err.println("Closing the innter input stream failed. " + Logger.printError(e));
-			}
-		}
-
-		try {
-			socket.close();
-		} catch (IOException ioException) {
-			System.err.println("Closing the socket failed. " + Logger.printError(ioException));
-		}
-
-		messageSender.shutdown();
-	}
-
-	private boolean initUsername() throws IOException {
-		messageSender.readUsername();
-		
-		try {
-			// Reads and integer code from the server. The value depends on
-			// server side validation for the username.
-			String result = listener.readLine();
-			displayConvertResultCodeToMessage(result);
-
-			while (result.equals(SystemCode.FAILED_LOGIN)) {
-				messageSender.readUsername();
-				result = listener.readLine();
-				displayConvertResultCodeToMessage(result);
-			}
-			
-			// Looping until a message for successful login is received.
-			while (!result.equals(SystemCode.SUCCESSFUL_LOGIN)) {
-				// Previous try to log in failed. The server has closed the socket so new one must be opened.
-				this.socket = messageSender.reconnect();
-				init();
-				
-				messageSender.readUsername();
-				result = listener.readLine();
-				displayConvertResultCodeToMessage(result);
-			}
-		} catch (IOException ioException) {
-			throw new IOException(
-					"Error occured while registering the user. Possible reasons - "
-					+ "sending the message to server, opening the socket or data input/ouput stream failed.",
-					ioException);
-		}
-		
-		return true;
-	}
-
-	/**
-	 * Accepts system code sent from server and prints a message depending on
-	 * code value.
-	 * 
-	 * @param result
-	 *            Result code sent from server.
-	 */
-	private void displayConvertResultCodeToMessage(String result) {
-		String message = new String();
-		switch (result) {
-		case "0":
-			message = "Successfully logged in.";
-			break;
-		case "2":
-			message = "Username must be at least 3 characters long.";
-			break;
-		case "3":
-			message = "Selected username can not be used. Please select a new one.";
-			break;
-		case "4":
-			message = "Username must start with english letter.";
-			break;
-		case "5":
-			message = "Failed to log in. Incorrect username or password.";
-			break;
-		case "6":
-			message = "This user is already logged in.";
-			break;
-		case "7":
-			message = "This user is already registered.";
-			break;
-		default:
-			message = "Unknown system code.";
-			break;
-		}
-
-		System.out.println(message);
-	}
-
-	/**
-	 * Accepts a string and displays it to the client.
-	 * 
-	 * @param message
-	 *            A message to be displayed
-	 */
-	private void display(String message) {
-		System.out.println(message);
-		System.out.println("Enter your message: ");
-	}
-}
+package chat.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import chat.util.Logger;
+import chat.util.SystemCode;
+import chat.util.WireProtocol;
+
+public class ClientMessageListener implements Runnable {
+
+	// Attempts to resume the session after the connection is lost, waiting a
+	// second longer before every next attempt.
+	private static final int RESUME_ATTEMPTS = 5;
+	private static final long RESUME_DELAY = 1000;
+	private static final String SESSION_TOKEN_PREFIX = SystemCode.SESSION_TOKEN + " ";
+
+	private Socket socket;
+	private BufferedReader listener;
+	private InputStreamReader innerStream;
+	// Used instead of the reader when the binary protocol is used.
+	private BufferedInputStream binaryInput;
+	private ClientMessageSender messageSender;
+
+	// Boolean variable used to stop the run method.
+	private boolean isRunning;
+
+	public ClientMessageListener(Socket client, ClientMessageSender messageSender) {
+		this.socket = client;
+		this.messageSender = messageSender;
+	}
+
+	public void run() {
+		this.isRunning = true;
+
+		try {
+			if (!initUsername()) {
+				// Error was occurred during registration the user.
+				return;
+			}
+
+			// The client successfully logged in and now can send messages.
+			messageSender.requestSessionToken();
+			Thread senderThread = new Thread(messageSender);
+			senderThread.start();
+
+			while (isRunning) {
+				String message;
+				try {
+					message = readMessage();
+					if (message == null) {
+						throw new EOFException("The server closed the connection.");
+					}
+				} catch (IOException ioException) {
+					if (!resumeSession(ioException)) {
+						throw ioException;
+					}
+
+					continue;
+				}
+
+				if (message.startsWith(SESSION_TOKEN_PREFIX)) {
+					// Usernames start with a letter, so no chat message starts
+					// with a system code.
+					messageSender.setSessionToken(message.substring(SESSION_TOKEN_PREFIX.length()));
+				} else if (message.equalsIgnoreCase("logout")) {
+					// User asked to logout.
+					System.out.println("Successfully logged out.");
+					isRunning = false;
+				} else if (message.equalsIgnoreCase("disconnect")) {
+					// Server was shutdown or removed the user.
+					System.out.print("You have been disconnected from server. ");
+					isRunning = false;
+					messageSender.shutdown();
+
+				} else {
+					display(message);
+				}
+			}
+		} catch (IOException ioException) {
+			// Unexpected connection lost.
+			isRunning = false;
+			Logger.warn("Lost connection with server.", ioException);
+		} finally {
+			try {
+				closeResources();
+			} catch (IOException e) {
+				Logger.warn("Error occured while closing resources.", e);
+			}
+		}
+	}
+
+	/**
+	 * Open data stream used by ClientMessageListener
+	 * 
+	 * @throws IOException
+	 *             If the data stream cannot be opened.
+	 */
+	public void init() throws IOException {
+		try {
+			if (messageSender.isBinaryProtocol()) {
+				binaryInput = new BufferedInputStream(socket.getInputStream());
+			} else {
+				innerStream = new InputStreamReader(socket.getInputStream());
+				listener = new BufferedReader(innerStream);
+			}
+		} catch (IOException ioException) {
+			// Unable to open input stream.
+			throw new IOException("Unable to open the input stream.", ioException);
+		}
+	}
+
+	void closeResources() throws IOException {
+		try {
+			if (binaryInput != null) {
+				binaryInput.close();
+			}
+
+			if (listener != null) {
+				listener.close();
+			}
+		} catch (IOException ioException) {
+			Logger.warn("Closing the input stream failed. Close the inner stream.", ioException);
+
+			try {
+				if (innerStream != null) {
+					innerStream.close();
+				}
+			} catch (IOException e) {
+				Logger.warn("Closing the inner input stream failed.", e);
+			}
+		}
+
+		try {
+			socket.close();
+		} catch (IOException ioException) {
+			Logger.warn("Closing the socket failed.", ioException);
+		}
+
+		messageSender.shutdown();
+	}
+
+	private boolean initUsername() throws IOException {
+		messageSender.readUsername();
+		
+		try {
+			// Reads and integer code from the server. The value depends on
+			// server side validation for the username.
+			String result = readMessage();
+			displayConvertResultCodeToMessage(result);
+
+			while (result.equals(SystemCode.FAILED_LOGIN)) {
+				messageSender.readUsername();
+				result = readMessage();
+				displayConvertResultCodeToMessage(result);
+			}
+			
+			// Looping until a message for successful login is received.
+			while (!result.equals(SystemCode.SUCCESSFUL_LOGIN)) {
+				// Previous try to log in failed. The server has closed the socket so new one must be opened.
+				this.socket = messageSender.reconnect();
+				init();
+				
+				messageSender.readUsername();
+				result = readMessage();
+				displayConvertResultCodeToMessage(result);
+			}
+		} catch (IOException ioException) {
+			throw new IOException(
+					"Error occured while registering the user. Possible reasons - "
+					+ "sending the message to server, opening the socket or data input/ouput stream failed.",
+					ioException);
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Connects to the server again and resumes the session with its token,
+	 * so the user does not have to log in again. The messages sent to the user
+	 * in the meantime are delivered by the server.
+	 *
+	 * @return False if the session can not be resumed.
+	 */
+	private boolean resumeSession(IOException cause) {
+		if (!messageSender.canResume()) {
+			return false;
+		}
+
+		Logger.warn("Lost connection with server. Restoring the session.", cause);
+		for (int attempt = 1; attempt <= RESUME_ATTEMPTS; attempt++) {
+			try {
+				this.socket = messageSender.resume();
+				init();
+				String result = readMessage();
+				if (!SystemCode.SUCCESSFUL_LOGIN.equals(result)) {
+					System.out.println("The session could not be restored. Please start the client and log in again.");
+					return false;
+				}
+
+				System.out.println("Connection restored.");
+				messageSender.requestSessionToken();
+				return true;
+			} catch (IOException ioException) {
+				Logger.warn("Unable to restore the session.", ioException, "attempt", attempt);
+			}
+
+			try {
+				Thread.sleep(RESUME_DELAY * attempt);
+			} catch (InterruptedException interruptedException) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Reads one message sent by the server.
+	 *
+	 * @return The message or null if the server closed the connection.
+	 * @throws IOException
+	 */
+	String readMessage() throws IOException {
+		if (binaryInput == null) {
+			return listener.readLine();
+		}
+
+		while (true) {
+			ByteBuffer frame = WireProtocol.readFrame(binaryInput);
+			if (frame == null) {
+				return null;
+			}
+
+			if ((frame.get() & 0xFF) == WireProtocol.TEXT) {
+				return WireProtocol.readString(frame);
+			}
+
+			// Frames of unknown type are skipped, so newer servers can send
+			// additional information.
+		}
+	}
+
+	/**
+	 * Accepts system code sent from server and prints a message depending on
+	 * code value.
+	 * 
+	 * @param result
+	 *            Result code sent from server.
+	 */
+	private void displayConvertResultCodeToMessage(String result) {
+		String message = new String();
+		switch (result) {
+		case "0":
+			message = "Successfully logged in.";
+			break;
+		case "2":
+			message = "Username must be at least 3 characters long.";
+			break;
+		case "3":
+			message = "Selected username can not be used. Please select a new one.";
+			break;
+		case "4":
+			message = "Username must start with english letter.";
+			break;
+		case "5":
+			message = "Failed to log in. Incorrect username or password.";
+			break;
+		case "6":
+			message = "This user is already logged in.";
+			break;
+		case "7":
+			message = "This user is already registered.";
+			break;
+		default:
+			message = "Unknown system code.";
+			break;
+		}
+
+		System.out.println(message);
+	}
+
+	/**
+	 * Accepts a string and displays it to the client.
+	 * 
+	 * @param message
+	 *            A message to be displayed
+	 */
+	private void display(String message) {
+		System.out.println(message);
+		System.out.println("Enter your message: ");
+	}
+}
@@ -1,229 +1,469 @@
-package chat.client;
-
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
-import java.util.Scanner;
-
-import chat.util.Logger;
-import chat.util.SystemCode;
-
-public class ClientMessageSender implements Runnable {
-
-	private Socket socket;
-	private BufferedWriter output;
-	private Scanner inputReader;
-
-	// Boolean variable used to stop the run method.
-	private boolean isRunning;
-	private OutputStreamWriter innerStream;
-
-	public ClientMessageSender(Socket socket, Scanner inputReader) {
-		this.socket = socket;
-		this.inputReader = inputReader;
-	}
-
-	public void run() {
-		this.isRunning = true;
-
-		try {
-			System.out.println("Enter your message: ");
-
-			while (isRunning) {
-				String message = inputReader.nextLine();
-
-				if (message.equalsIgnoreCase(UserCommands.LOGOUT)) {
-					// User asked to logout.
-					logout();
-					isRunning = false;
-				} else if (message.equalsIgnoreCase(UserCommands.EXIT)) {
-					// Exit command is entered. Stop the run method.
-					isRunning = false;
-				} else {
-					System.out.print("Enter a username or \"/all\" to send to all connected users: ");
-					String recipient = inputReader.nextLine();
-
-					sendMessage(SystemCode.REGULAR_MESSAGE, message, recipient);
-					System.out.println("Enter your message: ");
-				}
-			}
-		} catch (IOException ioException) {
-			isRunning = false;
-			System.err.println("Lost connection with server. " + Logger.printError(ioException));
-		} finally {
-			inputReader.close();
-		}
-	}
-
-	/**
-	 * Open data stream used by ClientMessageSender
-	 * 
-	 * @throws IOException
-	 *             If the data stream cannot be opened.
-	 */
-	public void init() throws IOException {
-		try {
-			// There is no need to store OutputSream returned by
-			// socket.getOutputStream() because closing the socket will closed
-			// it.
-			innerStream = new OutputStreamWriter(socket.getOutputStream());
-			output = new BufferedWriter(innerStream);
-		} catch (IOException ioException) {
-			throw new IOException("Unable to open the output stream.", ioException);
-		}
-	}
-
-	/**
-	 * Sends a message to server listeners.
-	 * 
-	 * @param message
-	 *            Text message to be sent.
-	 * @param recipient
-	 *            Username of the recipient in String format.
-	 * @throws IOException
-	 *             If connection error occurs during sending the message.
-	 */
-	void sendMessage(String systemCode, String message, String recipient) throws IOException {
-		output.write(systemCode);
-		output.newLine();
-		output.write(message);
-		output.newLine();
-		output.write(recipient);
-		output.newLine();
-		output.flush();
-	}
-
-	void readUsername() throws IOException {
-		System.out.println(
-				"Enter \"/register\" if you want to register new user or \"/login\" if you already have account.");
-		String command = inputReader.nextLine();
-
-		while (!(command.equals(UserCommands.REGISTER) || command.equals(UserCommands.LOGIN))) {
-			System.out.println("Invalid command. Try again.");
-			command = inputReader.nextLine();
-		}
-
-		System.out.print("Enter your username: ");
-		String username = inputReader.nextLine();
-		if (command.equals(UserCommands.REGISTER)) {
-
-			while (!validateUsername(username)) {
-				System.out.print("Enter your username: ");
-				username = inputReader.nextLine();
-			}
-
-			System.out.print("Enter a password: ");
-			String password = inputReader.nextLine();
-			try {
-				sendMessage(SystemCode.REGISTER, username, password);
-			} catch (IOException ioException) {
-				throw new IOException("Unable to send message to server.", ioException);
-			}
-		} else if (command.equals(UserCommands.LOGIN)) {
-			try {
-				System.out.print("Enter your password: ");
-				String password = inputReader.nextLine();
-				sendMessage(SystemCode.LOGIN, username, password);
-			} catch (IOException ioException) {
-				throw new IOException("Unable to send message to server.", ioException);
-			}
-		}
-	}
-
-	/**
-	 * Opens new socket, input stream and returns the socket.
-	 * 
-	 * @return The new opened socket
-	 * @throws IOException
-	 *             Opening the socket or opening the data streams fails.
-	 */
-	Socket reconnect() throws IOException {
-		System.out.println(
-				"You have been disconnected. If you want to reconnect please enter host address/ip adress of server/: ");
-		try {
-			String serverAddress = inputReader.nextLine();
-			socket = new Socket(serverAddress, socket.getPort());
-		} catch (IOException e) {
-			throw new IOException("Error occured while reading from console.", e);
-		}
-
-		init();
-		return this.socket;
-	}
-
-	/**
-	 * System message for shutting down the client was received. The message
-	 * sender terminates.
-	 * 
-	 * @throws IOException
-	 */
-	void shutdown() {
-		this.isRunning = false;
-
-		try {
-			this.output.close();
-		} catch (IOException ioException) {
-			System.err.println(
-					"Closing the output stream failed. Close the inner stream." + Logger.printError(ioException));
-
-			try {
-				innerStream.close();
-			} catch (IOException e) {
-				System.err.println("Closing the inner output stream failed. " + Logger.printError(ioException));
-			}
-		}
-
-		try {
-			this.socket.close();
-		} catch (IOException ioException) {
-			System.err.println("Closing the socket failed. " + Logger.printError(ioException));
-		}
-
-		System.exit(0);
-	}
-
-	/**
-	 * Stops reading input and sends a system message to stop the client message
-	 * listener.
-	 * 
-	 * @throws IOException
-	 */
-	private void logout() throws IOException {
-		isRunning = false;
-
-		try {
-			output.write(SystemCode.LOGOUT);
-			output.newLine();
-			output.flush();
-		} catch (IOException ioException) {
-			throw new IOException(ioException);
-		}
-	}
-
-	/**
-	 * Accepts a username, checks if it is a valid username and prints a error
-	 * message. Valid username is at least 3 characters long, starts with
-	 * English letter and differ from special names /admin, administrator/
-	 * 
-	 * @param name
-	 *            A username to be validated.
-	 * @return Returns false if the validation fails and true otherwise.
-	 */
-	private boolean validateUsername(String name) {
-		if (!Character.isAlphabetic(name.charAt(0))) {
-			System.out.println("Username must start with english letter.");
-			return false;
-		}
-
-		if (name.length() < 3) {
-			System.out.println("Username must be at least 3 characters long.");
-			return false;
-		} else if (name.equalsIgnoreCase("admin") || name.equalsIgnoreCase("administrator")) {
-			System.out.println(name + " can not be used. Please select a new one.");
-			return false;
-		}
-
-		return true;
-	}
-}
+package chat.client;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.util.Logger;
+import chat.util.SystemCode;
+import chat.util.WireProtocol;
+
+public class ClientMessageSender implements Runnable {
+
+	// Protocol used to talk to the server, "text" or "binary". Set with the
+	// system property chat.protocol.
+	private static final boolean USE_BINARY_PROTOCOL = "binary"
+			.equalsIgnoreCase(System.getProperty("chat.protocol", "text"));
+	// Time to wait for the server to confirm the binary protocol.
+	private static final int HANDSHAKE_TIMEOUT = 5000;
+
+	private Socket socket;
+	private BufferedWriter output;
+	private BufferedOutputStream binaryOutput;
+	private Scanner inputReader;
+
+	// Ids of the recipients already defined on the current connection. Used
+	// only with the binary protocol.
+	private final Map<String, Integer> recipientIds = new HashMap<>();
+
+	// Boolean variable used to stop the run method.
+	private boolean isRunning;
+	private OutputStreamWriter innerStream;
+
+	private volatile String username;
+	// Token of the session sent by the server, used to resume the session
+	// when the connection is lost. Null until the server sends one.
+	private volatile String sessionToken;
+	// Held while writing, so the listener can replace the connection while
+	// the sender is running.
+	private final ReentrantLock outputLock = new ReentrantLock();
+
+	public ClientMessageSender(Socket socket, Scanner inputReader) {
+		this.socket = socket;
+		this.inputReader = inputReader;
+	}
+
+	public void run() {
+		this.isRunning = true;
+
+		try {
+			System.out.println("Enter your message: ");
+
+			while (isRunning) {
+				String message = inputReader.nextLine();
+
+				try {
+					handleInput(message);
+				} catch (IOException ioException) {
+					if (!canResume()) {
+						throw ioException;
+					}
+
+					// The listener is restoring the session.
+					System.out.println("Your last input was not sent. Restoring the connection to the server.");
+				}
+			}
+		} catch (IOException ioException) {
+			isRunning = false;
+			Logger.warn("Lost connection with server.", ioException);
+		} finally {
+			inputReader.close();
+		}
+	}
+
+	private void handleInput(String message) throws IOException {
+		if (message.equalsIgnoreCase(UserCommands.LOGOUT)) {
+			// User asked to logout.
+			logout();
+			isRunning = false;
+		} else if (message.equalsIgnoreCase(UserCommands.EXIT)) {
+			// Exit command is entered. Stop the run method.
+			isRunning = false;
+		} else if (message.startsWith(UserCommands.JOIN_ROOM)) {
+			sendRoomCommand(SystemCode.JOIN_ROOM, message.substring(UserCommands.JOIN_ROOM.length()).trim());
+		} else if (message.startsWith(UserCommands.LEAVE_ROOM)) {
+			sendRoomCommand(SystemCode.LEAVE_ROOM, message.substring(UserCommands.LEAVE_ROOM.length()).trim());
+		} else {
+			System.out.print("Enter a username, a joined #room or \"/all\" to send to all connected users: ");
+			String recipient = inputReader.nextLine();
+
+			sendMessage(SystemCode.REGULAR_MESSAGE, message, recipient);
+			System.out.println("Enter your message: ");
+		}
+	}
+
+	/**
+	 * Open data stream used by ClientMessageSender
+	 * 
+	 * @throws IOException
+	 *             If the data stream cannot be opened.
+	 */
+	public void init() throws IOException {
+		try {
+			// There is no need to store OutputSream returned by
+			// socket.getOutputStream() because closing the socket will closed
+			// it.
+			if (USE_BINARY_PROTOCOL) {
+				binaryOutput = new BufferedOutputStream(socket.getOutputStream());
+				recipientIds.clear();
+			} else {
+				innerStream = new OutputStreamWriter(socket.getOutputStream());
+				output = new BufferedWriter(innerStream);
+			}
+		} catch (IOException ioException) {
+			throw new IOException("Unable to open the output stream.", ioException);
+		}
+
+		if (USE_BINARY_PROTOCOL) {
+			negotiateBinaryProtocol();
+		}
+	}
+
+	boolean isBinaryProtocol() {
+		return USE_BINARY_PROTOCOL;
+	}
+
+	/**
+	 * Sends a message to server listeners.
+	 * 
+	 * @param message
+	 *            Text message to be sent.
+	 * @param recipient
+	 *            Username of the recipient in String format.
+	 * @throws IOException
+	 *             If connection error occurs during sending the message.
+	 */
+	void sendMessage(String systemCode, String message, String recipient) throws IOException {
+		outputLock.lock();
+		try {
+			if (USE_BINARY_PROTOCOL) {
+				sendBinaryMessage(systemCode, message, recipient);
+				return;
+			}
+
+			output.write(systemCode);
+			output.newLine();
+			output.write(message);
+			output.newLine();
+			output.write(recipient);
+			output.newLine();
+			output.flush();
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	/**
+	 * Asks the server to join or leave a room.
+	 * 
+	 * @param systemCode
+	 *            SystemCode.JOIN_ROOM or SystemCode.LEAVE_ROOM.
+	 * @param room
+	 *            The name of the room, starting with '#'.
+	 * @throws IOException
+	 *             If connection error occurs during sending the request.
+	 */
+	void sendRoomCommand(String systemCode, String room) throws IOException {
+		outputLock.lock();
+		try {
+			if (USE_BINARY_PROTOCOL) {
+				int opcode = systemCode.equals(SystemCode.JOIN_ROOM) ? WireProtocol.JOIN_ROOM
+						: WireProtocol.LEAVE_ROOM;
+				binaryOutput.write(WireProtocol.encode(opcode, room));
+				binaryOutput.flush();
+				return;
+			}
+
+			output.write(systemCode);
+			output.newLine();
+			output.write(room);
+			output.newLine();
+			output.flush();
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	/**
+	 * Asks the server for the token of the session. The answer is handled by
+	 * the listener, see setSessionToken.
+	 * 
+	 * @throws IOException
+	 *             If connection error occurs during sending the request.
+	 */
+	void requestSessionToken() throws IOException {
+		outputLock.lock();
+		try {
+			if (USE_BINARY_PROTOCOL) {
+				binaryOutput.write(WireProtocol.encode(WireProtocol.SESSION_TOKEN));
+				binaryOutput.flush();
+				return;
+			}
+
+			output.write(SystemCode.SESSION_TOKEN);
+			output.newLine();
+			output.flush();
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	void setSessionToken(String sessionToken) {
+		this.sessionToken = sessionToken;
+	}
+
+	/**
+	 * Checks if the session can be resumed when the connection is lost.
+	 */
+	boolean canResume() {
+		return sessionToken != null;
+	}
+
+	/**
+	 * Opens a new connection to the same server and asks it to resume the
+	 * session with the token. The result code is read by the listener.
+	 * 
+	 * @return The new opened socket
+	 * @throws IOException
+	 *             If the connection can not be opened or the request can not
+	 *             be sent.
+	 */
+	Socket resume() throws IOException {
+		outputLock.lock();
+		try {
+			try {
+				socket.close();
+			} catch (IOException ioException) {
+				Logger.warn("Closing the lost socket failed.", ioException);
+			}
+
+			socket = new Socket(socket.getInetAddress(), socket.getPort());
+			init();
+			if (USE_BINARY_PROTOCOL) {
+				binaryOutput.write(WireProtocol.encode(WireProtocol.RESUME, username, sessionToken));
+				binaryOutput.flush();
+			} else {
+				output.write(SystemCode.RESUME);
+				output.newLine();
+				output.write(username);
+				output.newLine();
+				output.write(sessionToken);
+				output.newLine();
+				output.flush();
+			}
+
+			return socket;
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	void readUsername() throws IOException {
+		System.out.println(
+				"Enter \"/register\" if you want to register new user or \"/login\" if you already have account.");
+		String command = inputReader.nextLine();
+
+		while (!(command.equals(UserCommands.REGISTER) || command.equals(UserCommands.LOGIN))) {
+			System.out.println("Invalid command. Try again.");
+			command = inputReader.nextLine();
+		}
+
+		System.out.print("Enter your username: ");
+		String username = inputReader.nextLine();
+		if (command.equals(UserCommands.REGISTER)) {
+
+			while (!validateUsername(username)) {
+				System.out.print("Enter your username: ");
+				username = inputReader.nextLine();
+			}
+
+			this.username = username;
+
+			System.out.print("Enter a password: ");
+			String password = inputReader.nextLine();
+			try {
+				sendMessage(SystemCode.REGISTER, username, password);
+			} catch (IOException ioException) {
+				throw new IOException("Unable to send message to server.", ioException);
+			}
+		} else if (command.equals(UserCommands.LOGIN)) {
+			this.username = username;
+			try {
+				System.out.print("Enter your password: ");
+				String password = inputReader.nextLine();
+				sendMessage(SystemCode.LOGIN, username, password);
+			} catch (IOException ioException) {
+				throw new IOException("Unable to send message to server.", ioException);
+			}
+		}
+	}
+
+	/**
+	 * Opens new socket to the same server, opens its streams and returns the
+	 * socket.
+	 * 
+	 * @return The new opened socket
+	 * @throws IOException
+	 *             Opening the socket or opening the data streams fails.
+	 */
+	Socket reconnect() throws IOException {
+		System.out.println("You have been disconnected. Reconnecting to " + socket.getInetAddress().getHostName()
+				+ " on port " + socket.getPort() + ".");
+		outputLock.lock();
+		try {
+			socket = new Socket(socket.getInetAddress(), socket.getPort());
+			init();
+			return this.socket;
+		} catch (IOException e) {
+			throw new IOException("Unable to connect to the server again.", e);
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	/**
+	 * System message for shutting down the client was received. The message
+	 * sender terminates.
+	 * 
+	 * @throws IOException
+	 */
+	void shutdown() {
+		this.isRunning = false;
+
+		try {
+			if (binaryOutput != null) {
+				binaryOutput.close();
+			} else {
+				this.output.close();
+			}
+		} catch (IOException ioException) {
+			Logger.warn("Closing the output stream failed. Close the inner stream.", ioException);
+
+			try {
+				innerStream.close();
+			} catch (IOException e) {
+				Logger.warn("Closing the inner output stream failed.", ioException);
+			}
+		}
+
+		try {
+			this.socket.close();
+		} catch (IOException ioException) {
+			Logger.warn("Closing the socket failed.", ioException);
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Stops reading input and sends a system message to stop the client message
+	 * listener.
+	 * 
+	 * @throws IOException
+	 */
+	void logout() throws IOException {
+		isRunning = false;
+		// The session ends with the logout and must not be resumed.
+		sessionToken = null;
+
+		outputLock.lock();
+		try {
+			if (USE_BINARY_PROTOCOL) {
+				binaryOutput.write(WireProtocol.encode(WireProtocol.LOGOUT));
+				binaryOutput.flush();
+			} else {
+				output.write(SystemCode.LOGOUT);
+				output.newLine();
+				output.flush();
+			}
+		} catch (IOException ioException) {
+			throw new IOException(ioException);
+		} finally {
+			outputLock.unlock();
+		}
+	}
+
+	/**
+	 * Asks the server to use the binary protocol and waits for the
+	 * confirmation.
+	 *
+	 * @throws IOException
+	 *             If the server does not confirm the binary protocol.
+	 */
+	private void negotiateBinaryProtocol() throws IOException {
+		binaryOutput.write(WireProtocol.MAGIC);
+		binaryOutput.write(WireProtocol.VERSION);
+		binaryOutput.flush();
+
+		// Read the answer directly from the socket, before the message
+		// listener starts buffering the input.
+		InputStream input = socket.getInputStream();
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+		try {
+			if (input.read() != WireProtocol.MAGIC || input.read() != WireProtocol.VERSION) {
+				throw new IOException("The server does not support the binary protocol.");
+			}
+		} catch (SocketTimeoutException socketTimeoutException) {
+			throw new IOException("The server does not support the binary protocol.", socketTimeoutException);
+		} finally {
+			socket.setSoTimeout(0);
+		}
+	}
+
+	/**
+	 * Sends a message using the binary protocol. A recipient is defined the
+	 * first time a message is sent to it and referred by id afterwards.
+	 */
+	private void sendBinaryMessage(String systemCode, String message, String recipient) throws IOException {
+		if (systemCode.equals(SystemCode.REGISTER)) {
+			binaryOutput.write(WireProtocol.encode(WireProtocol.REGISTER, message, recipient));
+		} else if (systemCode.equals(SystemCode.LOGIN)) {
+			binaryOutput.write(WireProtocol.encode(WireProtocol.LOGIN, message, recipient));
+		} else {
+			Integer recipientId = recipientIds.get(recipient);
+			if (recipientId == null) {
+				recipientId = recipientIds.size();
+				recipientIds.put(recipient, recipientId);
+				binaryOutput.write(WireProtocol.encode(WireProtocol.DEFINE_RECIPIENT, recipientId, recipient));
+			}
+
+			binaryOutput.write(WireProtocol.encode(WireProtocol.MESSAGE, recipientId, message));
+		}
+
+		binaryOutput.flush();
+	}
+
+	/**
+	 * Accepts a username, checks if it is a valid username and prints a error
+	 * message. Valid username is at least 3 characters long, starts with
+	 * English letter and differ from special names /admin, administrator/
+	 * 
+	 * @param name
+	 *            A username to be validated.
+	 * @return Returns false if the validation fails and true otherwise.
+	 */
+	private boolean validateUsername(String name) {
+		if (!Character.isAlphabetic(name.charAt(0))) {
+			System.out.println("Username must start with english letter.");
+			return false;
+		}
+
+		if (name.length() < 3) {
+			System.out.println("Username must be at least 3 characters long.");
+			return false;
+		} else if (name.equalsIgnoreCase("admin") || name.equalsIgnoreCase("administrator")) {
+			System.out.println(name + " can not be used. Please select a new one.");
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,357 @@
+package chat.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import chat.util.LatencyHistogram;
+import chat.util.Logger;
+import chat.util.VirtualThreads;
+
+/**
+ * Headless load generator. Connects many simulated users to a running server,
+ * sends one to one and /all messages at fixed rates and reports the latency
+ * from sending a message to receiving it in microseconds.
+ *
+ * Every message carries the time it was due to be sent. The latency is
+ * measured from that time, so a sender which falls behind the schedule
+ * shows up in the latencies instead of silently lowering the load.
+ *
+ * Start it with the server address and port. The load is set with the system
+ * properties:
+ * <ul>
+ * <li>chat.load.users - number of simulated users (default 1000)</li>
+ * <li>chat.load.messagesPerSecond - one to one messages sent per second by
+ * all users together (default 1000)</li>
+ * <li>chat.load.broadcastsPerSecond - /all messages sent per second by all
+ * users together (default 1)</li>
+ * <li>chat.load.messageSize - length of the texts (default 64)</li>
+ * <li>chat.load.durationSeconds - time to send messages (default 60)</li>
+ * <li>chat.load.reportIntervalSeconds - time between reports (default 10)</li>
+ * <li>chat.load.senderThreads - threads sending the messages (default 4)</li>
+ * <li>chat.load.connectThreads - threads connecting the users at the same
+ * time, to measure the logins per second in a login storm (default 1)</li>
+ * <li>chat.load.login - "true" to log in users registered by a previous run
+ * with the same chat.load.userPrefix instead of registering new ones
+ * (default false)</li>
+ * <li>chat.load.userPrefix - prefix of the usernames (default load followed
+ * by a number unique for the run)</li>
+ * <li>chat.protocol - "text" or "binary", as for the client</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	private static final int USERS = Integer.getInteger("chat.load.users", 1000);
+	private static final double MESSAGES_PER_SECOND = Double
+			.parseDouble(System.getProperty("chat.load.messagesPerSecond", "1000"));
+	private static final double BROADCASTS_PER_SECOND = Double
+			.parseDouble(System.getProperty("chat.load.broadcastsPerSecond", "1"));
+	private static final int MESSAGE_SIZE = Integer.getInteger("chat.load.messageSize", 64);
+	private static final int DURATION = Integer.getInteger("chat.load.durationSeconds", 60);
+	private static final int REPORT_INTERVAL = Integer.getInteger("chat.load.reportIntervalSeconds", 10);
+	private static final int SENDER_THREADS = Integer.getInteger("chat.load.senderThreads", 4);
+	private static final int CONNECT_THREADS = Integer.getInteger("chat.load.connectThreads", 1);
+	private static final boolean LOGIN = Boolean.getBoolean("chat.load.login");
+	private static final String USER_PREFIX = System.getProperty("chat.load.userPrefix",
+			"load" + Long.toString(System.currentTimeMillis() % 1000000, 36));
+	private static final String PASSWORD = "load-password";
+
+	// Marks the texts of the messages sent by the generator. The marker is
+	// followed by the time the message was due in nanoseconds.
+	private static final String DIRECT_MARKER = "LD ";
+	private static final String BROADCAST_MARKER = "LB ";
+
+	private final String host;
+	private final int port;
+	private final List<SimulatedUser> users = new ArrayList<>();
+	private volatile boolean isSending;
+
+	// Latencies recorded since the last report.
+	private final LatencyHistogram directLatencies = new LatencyHistogram();
+	private final LatencyHistogram broadcastLatencies = new LatencyHistogram();
+	// Latencies of the whole run.
+	private final LatencyHistogram totalDirectLatencies = new LatencyHistogram();
+	private final LatencyHistogram totalBroadcastLatencies = new LatencyHistogram();
+	// Time from connecting a user to the confirmed login.
+	private final LatencyHistogram loginLatencies = new LatencyHistogram();
+
+	private final AtomicLong sentMessages = new AtomicLong();
+	private final AtomicLong sentBroadcasts = new AtomicLong();
+	private final AtomicLong failedSends = new AtomicLong();
+	private final AtomicLong otherMessages = new AtomicLong();
+	private final AtomicLong lostConnections = new AtomicLong();
+
+	public LoadGenerator(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Called by the users for every message they receive.
+	 */
+	void messageReceived(String message) {
+		long now = System.nanoTime();
+		// The server sends the messages as "sender: text".
+		int textStart = message.indexOf(": ") + 2;
+		LatencyHistogram histogram;
+		if (textStart > 1 && message.startsWith(DIRECT_MARKER, textStart)) {
+			histogram = directLatencies;
+		} else if (textStart > 1 && message.startsWith(BROADCAST_MARKER, textStart)) {
+			histogram = broadcastLatencies;
+		} else {
+			// System messages, e.g. a recipient which is not connected.
+			otherMessages.incrementAndGet();
+			return;
+		}
+
+		int timeStart = textStart + DIRECT_MARKER.length();
+		int timeEnd = message.indexOf(' ', timeStart);
+		try {
+			long dueTime = Long.parseLong(message.substring(timeStart, timeEnd < 0 ? message.length() : timeEnd));
+			histogram.record(TimeUnit.NANOSECONDS.toMicros(now - dueTime));
+		} catch (NumberFormatException e) {
+			otherMessages.incrementAndGet();
+		}
+	}
+
+	void connectionLost(SimulatedUser user) {
+		lostConnections.incrementAndGet();
+	}
+
+	/**
+	 * Connects all users, sends the messages for the configured time and
+	 * prints the reports.
+	 *
+	 * @throws IOException
+	 *             If a user could not be connected.
+	 * @throws InterruptedException
+	 */
+	private void run() throws IOException, InterruptedException {
+		ThreadFactory readerThreadFactory = VirtualThreads.isSupported()
+				? VirtualThreads.newThreadFactory("SimulatedUser-") : new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable);
+						thread.setDaemon(true);
+						return thread;
+					}
+				};
+
+		System.out.println((LOGIN ? "Logging in " : "Registering ") + USERS + " users " + USER_PREFIX + "0.."
+				+ USER_PREFIX + (USERS - 1) + " on " + host + ":" + port + " from " + CONNECT_THREADS + " threads");
+		long connectStart = System.nanoTime();
+		connectUsers(readerThreadFactory);
+		long connectTime = System.nanoTime() - connectStart;
+		System.out.println("Connected " + USERS + " users in " + TimeUnit.NANOSECONDS.toMillis(connectTime) + " ms, "
+				+ String.format("%.0f", USERS / (connectTime / 1e9)) + " logins/s");
+		System.out.println("  login latency (us): " + loginLatencies.summary());
+
+		isSending = true;
+		List<Thread> senders = new ArrayList<>();
+		for (int i = 0; i < SENDER_THREADS; i++) {
+			final int senderIndex = i;
+			Thread sender = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					sendMessages(senderIndex);
+				}
+			}, "LoadSender-" + i);
+			sender.start();
+			senders.add(sender);
+		}
+
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(DURATION);
+		long nextReport = System.nanoTime();
+		while (System.nanoTime() < end) {
+			nextReport += TimeUnit.SECONDS.toNanos(REPORT_INTERVAL);
+			TimeUnit.NANOSECONDS.sleep(Math.max(0, Math.min(nextReport, end) - System.nanoTime()));
+			report("Interval");
+		}
+
+		isSending = false;
+		for (Thread sender : senders) {
+			sender.join();
+		}
+
+		// Wait for the messages still on their way.
+		Thread.sleep(2000);
+		report("Last interval");
+		for (SimulatedUser user : users) {
+			user.logout();
+		}
+
+		System.out.println("Total:");
+		System.out.println("  sent " + sentMessages.get() + " messages, " + sentBroadcasts.get()
+				+ " broadcasts, failed sends " + failedSends.get() + ", other messages received "
+				+ otherMessages.get() + ", lost connections " + lostConnections.get());
+		System.out.println("  direct latency (us): " + totalDirectLatencies.summary());
+		System.out.println("  /all latency (us): " + totalBroadcastLatencies.summary());
+	}
+
+	/**
+	 * Connects all users from several threads at the same time. Every thread
+	 * connects the next user not taken yet, so the users keep their indexes.
+	 *
+	 * @throws IOException
+	 *             If a user could not be connected.
+	 * @throws InterruptedException
+	 */
+	private void connectUsers(final ThreadFactory readerThreadFactory) throws IOException, InterruptedException {
+		final SimulatedUser[] connected = new SimulatedUser[USERS];
+		final AtomicInteger nextUser = new AtomicInteger();
+		final AtomicReference<IOException> failure = new AtomicReference<>();
+		List<Thread> connectors = new ArrayList<>();
+		for (int i = 0; i < CONNECT_THREADS; i++) {
+			Thread connector = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					int index;
+					while (failure.get() == null && (index = nextUser.getAndIncrement()) < USERS) {
+						SimulatedUser user = new SimulatedUser(USER_PREFIX + index, LoadGenerator.this);
+						long start = System.nanoTime();
+						try {
+							user.connect(host, port, !LOGIN, PASSWORD);
+						} catch (IOException e) {
+							failure.compareAndSet(null, e);
+							return;
+						}
+
+						loginLatencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+						connected[index] = user;
+						readerThreadFactory.newThread(user).start();
+					}
+				}
+			}, "LoadConnector-" + i);
+			connector.start();
+			connectors.add(connector);
+		}
+
+		for (Thread connector : connectors) {
+			connector.join();
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		users.addAll(Arrays.asList(connected));
+	}
+
+	/**
+	 * Prints the latencies recorded since the last report.
+	 */
+	private void report(String title) {
+		LatencyHistogram direct = new LatencyHistogram();
+		LatencyHistogram broadcast = new LatencyHistogram();
+		directLatencies.moveTo(direct);
+		broadcastLatencies.moveTo(broadcast);
+		totalDirectLatencies.add(direct);
+		totalBroadcastLatencies.add(broadcast);
+
+		System.out.println(title + ": sent " + sentMessages.get() + " messages, " + sentBroadcasts.get()
+				+ " broadcasts, lost connections " + lostConnections.get());
+		System.out.println("  direct latency (us): " + direct.summary());
+		System.out.println("  /all latency (us): " + broadcast.summary());
+	}
+
+	/**
+	 * Sends the share of the messages of one sender thread. Every thread
+	 * sends from its own users, so the sender of a user is used by one
+	 * thread only.
+	 */
+	private void sendMessages(int senderIndex) {
+		List<SimulatedUser> ownUsers = new ArrayList<>();
+		for (int i = senderIndex; i < users.size(); i += SENDER_THREADS) {
+			ownUsers.add(users.get(i));
+		}
+
+		if (ownUsers.isEmpty()) {
+			return;
+		}
+
+		Random random = new Random();
+		long messageInterval = intervalNanos(MESSAGES_PER_SECOND / SENDER_THREADS);
+		long broadcastInterval = intervalNanos(BROADCASTS_PER_SECOND / SENDER_THREADS);
+		long start = System.nanoTime();
+		long nextMessage = start;
+		long nextBroadcast = start;
+
+		while (isSending) {
+			long now = System.nanoTime();
+			if (now >= nextMessage) {
+				SimulatedUser user = ownUsers.get(random.nextInt(ownUsers.size()));
+				String recipient = users.get(random.nextInt(users.size())).getUsername();
+				if (user.send(text(DIRECT_MARKER, nextMessage), recipient)) {
+					sentMessages.incrementAndGet();
+				} else {
+					failedSends.incrementAndGet();
+				}
+
+				nextMessage += messageInterval;
+				continue;
+			}
+
+			if (now >= nextBroadcast) {
+				SimulatedUser user = ownUsers.get(random.nextInt(ownUsers.size()));
+				if (user.send(text(BROADCAST_MARKER, nextBroadcast), "/all")) {
+					sentBroadcasts.incrementAndGet();
+				} else {
+					failedSends.incrementAndGet();
+				}
+
+				nextBroadcast += broadcastInterval;
+				continue;
+			}
+
+			long wait = Math.min(nextMessage, nextBroadcast) - now;
+			try {
+				TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100)));
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private static long intervalNanos(double perSecond) {
+		if (perSecond <= 0) {
+			return Long.MAX_VALUE / 2;
+		}
+
+		return (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+	}
+
+	private static String text(String marker, long dueTime) {
+		StringBuilder text = new StringBuilder(MESSAGE_SIZE + 32);
+		text.append(marker).append(dueTime).append(' ');
+		while (text.length() < MESSAGE_SIZE) {
+			text.append('x');
+		}
+
+		return text.toString();
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println("Usage: LoadGenerator <server address> <port>");
+			return;
+		}
+
+		try {
+			new LoadGenerator(args[0], Integer.parseInt(args[1])).run();
+		} catch (IOException | InterruptedException e) {
+			Logger.error("The load test failed.", e);
+		}
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,140 @@
+package chat.client;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import chat.util.SystemCode;
+
+/**
+ * A user of the load generator. Talks to the server with the same sender and
+ * listener as the interactive client, but without the console. Messages are
+ * sent by the sending thread of the load generator which owns the user and
+ * read by a thread of the user.
+ */
+class SimulatedUser implements Runnable {
+
+	private final String username;
+	private final LoadGenerator loadGenerator;
+
+	private Socket socket;
+	private ClientMessageSender sender;
+	private ClientMessageListener listener;
+	private volatile boolean isConnected;
+
+	SimulatedUser(String username, LoadGenerator loadGenerator) {
+		this.username = username;
+		this.loadGenerator = loadGenerator;
+	}
+
+	String getUsername() {
+		return username;
+	}
+
+	boolean isConnected() {
+		return isConnected;
+	}
+
+	/**
+	 * Connects to the server and registers or logs in the user. The server's
+	 * answer is read before the method returns.
+	 *
+	 * @param register
+	 *            True to register a new user, false to log in.
+	 * @throws IOException
+	 *             If the connection fails or the server refuses the user.
+	 */
+	void connect(String host, int port, boolean register, String password) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		try {
+			sender = new ClientMessageSender(socket, null);
+			sender.init();
+			listener = new ClientMessageListener(socket, sender);
+			listener.init();
+
+			sender.sendMessage(register ? SystemCode.REGISTER : SystemCode.LOGIN, username, password);
+			String result = listener.readMessage();
+			if (!SystemCode.SUCCESSFUL_LOGIN.equals(result)) {
+				throw new IOException(username + " was refused by the server with code: " + result);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		isConnected = true;
+	}
+
+	/**
+	 * Sends a message. Called only by the sending thread which owns the user.
+	 *
+	 * @return False if the connection is lost.
+	 */
+	boolean send(String text, String recipient) {
+		if (!isConnected) {
+			return false;
+		}
+
+		try {
+			sender.sendMessage(SystemCode.REGULAR_MESSAGE, text, recipient);
+			return true;
+		} catch (IOException e) {
+			connectionLost();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the messages sent to the user until the connection is closed.
+	 */
+	@Override
+	public void run() {
+		try {
+			String message;
+			while ((message = listener.readMessage()) != null) {
+				if (message.equals("disconnect") || message.equals("logout")) {
+					break;
+				}
+
+				loadGenerator.messageReceived(message);
+			}
+		} catch (IOException e) {
+			// Counted as a lost connection below unless the user logged out.
+		} finally {
+			connectionLost();
+		}
+	}
+
+	/**
+	 * Logs the user out. The connection is closed by the server.
+	 */
+	void logout() {
+		if (!isConnected) {
+			return;
+		}
+
+		isConnected = false;
+		try {
+			sender.logout();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	void close() {
+		isConnected = false;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// The connection is not used any more.
+		}
+	}
+
+	private void connectionLost() {
+		if (isConnected) {
+			loadGenerator.connectionLost(this);
+		}
+
+		close();
+	}
+}
@@ -1,14 +1,19 @@
-package chat.client;
-
-public class UserCommands {
-	
-	// Command used by clients to log out from server.
-	public static final String LOGOUT = "/logout";
-	
-	// Command used to stop the client sender when user has been disconnected from server.
-	public static final String EXIT = "/exit";
-	
-	public static final String REGISTER = "/register";
-	
-	public static final String LOGIN = "/login";
-}
+package chat.client;
+
+public class UserCommands {
+	
+	// Command used by clients to log out from server.
+	public static final String LOGOUT = "/logout";
+	
+	// Command used to stop the client sender when user has been disconnected from server.
+	public static final String EXIT = "/exit";
+	
+	public static final String REGISTER = "/register";
+	
+	public static final String LOGIN = "/login";
+
+	// Commands used to join and leave a room, followed by the room name.
+	public static final String JOIN_ROOM = "/join ";
+
+	public static final String LEAVE_ROOM = "/leave ";
+}
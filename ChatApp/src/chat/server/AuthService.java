@@ -0,0 +1,419 @@
+package chat.server;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.util.Logger;
+
+/**
+ * Checks the credentials of the users who log in and registers new users.
+ * The passwords are hashed by PasswordHasher on a pool of threads used only
+ * for that, so the number of threads busy with hashing is bounded whatever
+ * engine serves the connections. The connection thread waits for the result,
+ * which keeps the frames of the connection in order. When the queue of the
+ * pool is full the login fails at once instead of waiting.
+ *
+ * Verified credentials are kept in memory for a while. A user who logs in
+ * again with the same password, as every client does after a network
+ * failure, is checked with one SHA-256 keyed by a secret of the process,
+ * without the password hash and without reading the users table.
+ *
+ * Failed logins are counted per address. An address with too many recent
+ * failures is refused before anything is hashed or read, which makes a
+ * guessing attack cheap for the server.
+ *
+ * The service is tuned with the system properties:
+ * <ul>
+ * <li>chat.auth.iterations - PBKDF2 iterations of new hashes (default
+ * 100000)</li>
+ * <li>chat.auth.threads - threads hashing the passwords (default number of
+ * processors)</li>
+ * <li>chat.auth.queueCapacity - logins waiting for a thread (default
+ * 1000)</li>
+ * <li>chat.auth.timeoutMs - maximum time a login waits for its result
+ * (default 10000)</li>
+ * <li>chat.auth.cacheTtlSeconds - how long verified credentials are kept
+ * (default 300, 0 disables the cache)</li>
+ * <li>chat.auth.cacheCapacity - maximum number of cached users (default
+ * 100000)</li>
+ * <li>chat.auth.maxFailures - failed logins after which an address is
+ * refused (default 10, 0 disables the limit)</li>
+ * <li>chat.auth.failureWindowSeconds - period the failures are counted in
+ * (default 60)</li>
+ * </ul>
+ */
+class AuthService {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int ITERATIONS = Integer.getInteger("chat.auth.iterations", 100000);
+	private static final int THREADS = Integer.getInteger("chat.auth.threads",
+			Runtime.getRuntime().availableProcessors());
+	private static final int QUEUE_CAPACITY = Integer.getInteger("chat.auth.queueCapacity", 1000);
+	private static final long TIMEOUT = Long.getLong("chat.auth.timeoutMs", 10000);
+	private static final long CACHE_TTL = TimeUnit.SECONDS
+			.toNanos(Long.getLong("chat.auth.cacheTtlSeconds", 300));
+	private static final int CACHE_CAPACITY = Integer.getInteger("chat.auth.cacheCapacity", 100000);
+	private static final int MAX_FAILURES = Integer.getInteger("chat.auth.maxFailures", 10);
+	private static final long FAILURE_WINDOW = TimeUnit.SECONDS
+			.toNanos(Long.getLong("chat.auth.failureWindowSeconds", 60));
+	// The failure counters of expired windows are removed once this many
+	// addresses are tracked.
+	private static final int MAX_TRACKED_ADDRESSES = 10000;
+
+	private final Storage storage;
+	private final PasswordHasher passwordHasher = new PasswordHasher(ITERATIONS);
+	private final ThreadPoolExecutor executor;
+
+	// Secret of the process mixed into the cached digests, so the cache
+	// alone is of no use for guessing the passwords.
+	private final byte[] cacheKey = new byte[32];
+	private final ConcurrentMap<String, CachedCredentials> cache = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, FailureWindow> failures = new ConcurrentHashMap<>();
+
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong failedLogins = new AtomicLong();
+	private final AtomicLong throttledLogins = new AtomicLong();
+	private final AtomicLong rejectedLogins = new AtomicLong();
+
+	AuthService(Storage storage) {
+		this.storage = storage;
+		new SecureRandom().nextBytes(cacheKey);
+		this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "AuthService-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Checks the credentials of a user who logs in.
+	 *
+	 * @param ip
+	 *            The address the user connects from.
+	 * @return The id of the user, or null if the credentials are wrong, the
+	 *         address is refused for too many failures or the service is
+	 *         too busy.
+	 * @throws SQLException
+	 *             If the storage failed.
+	 */
+	Integer login(final String username, final String password, String ip) throws SQLException {
+		if (isThrottled(ip)) {
+			throttledLogins.incrementAndGet();
+			return null;
+		}
+
+		byte[] digest = cacheDigest(username, password);
+		CachedCredentials cached = cache.get(username);
+		if (cached != null && !cached.isExpired(System.nanoTime()) && MessageDigest.isEqual(cached.digest, digest)) {
+			cacheHits.incrementAndGet();
+			return cached.userId;
+		}
+
+		cacheMisses.incrementAndGet();
+		Integer userId;
+		try {
+			userId = runOnPool(new Callable<Integer>() {
+
+				@Override
+				public Integer call() throws SQLException {
+					return verify(username, password);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejectedLogins.incrementAndGet();
+			Logger.warn("Login refused. Too many logins are waiting for the password check.", "user", username,
+					"ip", ip);
+			return null;
+		}
+
+		if (userId == null) {
+			failedLogins.incrementAndGet();
+			recordFailure(ip);
+			return null;
+		}
+
+		putInCache(username, userId, digest);
+		return userId;
+	}
+
+	/**
+	 * Registers a new user with the hash of the password.
+	 *
+	 * @return The id of the new user.
+	 * @throws SQLException
+	 *             If the name is already registered, the storage failed or
+	 *             the service is too busy.
+	 */
+	int register(final String username, final String password) throws SQLException {
+		String passwordHash;
+		try {
+			passwordHash = runOnPool(new Callable<String>() {
+
+				@Override
+				public String call() {
+					return passwordHasher.hash(password);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejectedLogins.incrementAndGet();
+			throw new SQLException("Too many logins are waiting for the password hash.", e);
+		}
+
+		int userId = storage.insertUser(username, passwordHash);
+		putInCache(username, userId, cacheDigest(username, password));
+		return userId;
+	}
+
+	int getCacheSize() {
+		return cache.size();
+	}
+
+	long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * Returns the number of logins refused for wrong credentials.
+	 */
+	long getFailedLogins() {
+		return failedLogins.get();
+	}
+
+	/**
+	 * Returns the number of logins refused because their address failed too
+	 * many times.
+	 */
+	long getThrottledLogins() {
+		return throttledLogins.get();
+	}
+
+	/**
+	 * Returns the number of logins and registrations refused because the
+	 * queue of the pool was full.
+	 */
+	long getRejectedLogins() {
+		return rejectedLogins.get();
+	}
+
+	int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Runs the task on the pool and waits for its result.
+	 *
+	 * @throws RejectedExecutionException
+	 *             If the queue of the pool is full.
+	 * @throws SQLException
+	 *             If the task failed, timed out or the thread was interrupted.
+	 */
+	private <T> T runOnPool(Callable<T> task) throws SQLException {
+		Future<T> result = executor.submit(task);
+		try {
+			return result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+
+			throw new SQLException("Checking the password failed.", e.getCause());
+		} catch (TimeoutException e) {
+			result.cancel(true);
+			throw new SQLException("Checking the password timed out.", e);
+		} catch (InterruptedException e) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while checking the password.", e);
+		}
+	}
+
+	/**
+	 * Checks the password against the storage. Runs on the pool. A password
+	 * stored in an older form is replaced with the current one.
+	 */
+	private Integer verify(String username, String password) throws SQLException {
+		UserCredentials credentials = storage.findCredentials(username);
+		if (credentials == null) {
+			// Hash anyway, so an unknown user takes as long as a wrong
+			// password.
+			passwordHasher.hash(password);
+			return null;
+		}
+
+		String storedHash = credentials.getPasswordHash();
+		if (!passwordHasher.verify(password, storedHash)) {
+			return null;
+		}
+
+		if (passwordHasher.needsRehash(storedHash)) {
+			try {
+				storage.updatePassword(credentials.getUserId(), passwordHasher.hash(password));
+			} catch (SQLException e) {
+				// The old hash still works. Try again at the next login.
+				Logger.warn("Unable to upgrade the password hash.", e, "user", username);
+			}
+		}
+
+		return credentials.getUserId();
+	}
+
+	private boolean isThrottled(String ip) {
+		if (MAX_FAILURES <= 0) {
+			return false;
+		}
+
+		FailureWindow window = failures.get(ip);
+		return window != null && !window.isExpired(System.nanoTime()) && window.count.get() >= MAX_FAILURES;
+	}
+
+	/**
+	 * Counts a failed login of the address. The counts are not exact when
+	 * the window of an address restarts during concurrent failures, which is
+	 * good enough for shedding the load.
+	 */
+	private void recordFailure(String ip) {
+		if (MAX_FAILURES <= 0) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		FailureWindow window = failures.get(ip);
+		if (window == null) {
+			if (failures.size() >= MAX_TRACKED_ADDRESSES) {
+				removeExpiredFailures(now);
+			}
+
+			FailureWindow newWindow = new FailureWindow(now);
+			window = failures.putIfAbsent(ip, newWindow);
+			if (window == null) {
+				window = newWindow;
+			}
+		}
+
+		if (window.isExpired(now)) {
+			window.start = now;
+			window.count.set(0);
+		}
+
+		if (window.count.incrementAndGet() == MAX_FAILURES) {
+			Logger.warn("Too many failed logins. Refusing the address for a while.", "ip", ip, "failures",
+					MAX_FAILURES);
+		}
+	}
+
+	private void removeExpiredFailures(long now) {
+		Iterator<FailureWindow> iterator = failures.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isExpired(now)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private void putInCache(String username, int userId, byte[] digest) {
+		if (CACHE_TTL <= 0) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (cache.size() >= CACHE_CAPACITY && !cache.containsKey(username)) {
+			Iterator<CachedCredentials> iterator = cache.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().isExpired(now)) {
+					iterator.remove();
+				}
+			}
+
+			if (cache.size() >= CACHE_CAPACITY) {
+				// Full of live entries. The user is checked against the
+				// storage next time.
+				return;
+			}
+		}
+
+		cache.put(username, new CachedCredentials(userId, digest, now + CACHE_TTL));
+	}
+
+	/**
+	 * Returns SHA-256 of the secret of the process, the username and the
+	 * password.
+	 */
+	private byte[] cacheDigest(String username, String password) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Unable to hash the credentials with SHA-256.", e);
+		}
+
+		digest.update(cacheKey);
+		digest.update(username.getBytes(UTF_8));
+		// Separates the username from the password.
+		digest.update((byte) 0);
+		return digest.digest(password.getBytes(UTF_8));
+	}
+
+	private static class CachedCredentials {
+
+		private final int userId;
+		private final byte[] digest;
+		private final long expiresAt;
+
+		CachedCredentials(int userId, byte[] digest, long expiresAt) {
+			this.userId = userId;
+			this.digest = digest;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+	}
+
+	private static class FailureWindow {
+
+		private volatile long start;
+		private final AtomicInteger count = new AtomicInteger();
+
+		FailureWindow(long start) {
+			this.start = start;
+		}
+
+		boolean isExpired(long now) {
+			return now - start >= FAILURE_WINDOW;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+import chat.util.SystemCode;
+import chat.util.WireProtocol;
+
+/**
+ * Decodes the frames of the binary protocol. The frames are translated to
+ * the same system codes as the frames of the line based protocol. The
+ * recipients defined by the client are remembered for the lifetime of the
+ * connection.
+ */
+class BinaryFrameDecoder implements FrameDecoder {
+
+	// Limits the memory a single client can use for recipient definitions.
+	private static final int MAX_RECIPIENTS = 4096;
+
+	private final Map<Integer, String> recipients = new HashMap<>();
+
+	// Bytes of the handshake still expected from the client.
+	private int handshakeRemaining = 2;
+
+	private int frameLength;
+	private int lengthShift;
+	private byte[] frame;
+	private int frameOffset;
+
+	@Override
+	public int decode(ByteBuffer buffer, Queue<String[]> frames) throws IOException {
+		int framesDecoded = 0;
+		while (buffer.hasRemaining()) {
+			if (handshakeRemaining > 0) {
+				int b = buffer.get() & 0xFF;
+				int expected = handshakeRemaining == 2 ? WireProtocol.MAGIC : WireProtocol.VERSION;
+				if (b != expected) {
+					throw new IOException("Unsupported protocol version: " + b);
+				}
+
+				handshakeRemaining--;
+				continue;
+			}
+
+			if (frame == null) {
+				// Reading the length of the next frame.
+				int b = buffer.get() & 0xFF;
+				if (lengthShift == 28 && (b & 0xF0) != 0) {
+					throw new IOException("Invalid frame length.");
+				}
+
+				frameLength |= (b & 0x7F) << lengthShift;
+				lengthShift += 7;
+				if ((b & 0x80) == 0) {
+					WireProtocol.checkFrameLength(frameLength);
+					frame = new byte[frameLength];
+					frameOffset = 0;
+				}
+
+				continue;
+			}
+
+			int length = Math.min(buffer.remaining(), frameLength - frameOffset);
+			buffer.get(frame, frameOffset, length);
+			frameOffset += length;
+			if (frameOffset == frameLength) {
+				String[] decoded = decodeFrame(ByteBuffer.wrap(frame));
+				frame = null;
+				frameLength = 0;
+				lengthShift = 0;
+				if (decoded != null) {
+					frames.add(decoded);
+					framesDecoded++;
+				}
+			}
+		}
+
+		return framesDecoded;
+	}
+
+	/**
+	 * Decodes the opcode and the payload of one frame.
+	 *
+	 * @param buffer
+	 *            The frame without its length.
+	 * @return The system code, the text and the argument of the frame, or null
+	 *         if the frame only defines a recipient.
+	 * @throws IOException
+	 *             If the frame is invalid.
+	 */
+	private String[] decodeFrame(ByteBuffer buffer) throws IOException {
+		int opcode = buffer.get() & 0xFF;
+		switch (opcode) {
+		case WireProtocol.REGISTER:
+			return new String[] { SystemCode.REGISTER, WireProtocol.readString(buffer),
+					WireProtocol.readString(buffer) };
+		case WireProtocol.LOGIN:
+			return new String[] { SystemCode.LOGIN, WireProtocol.readString(buffer),
+					WireProtocol.readString(buffer) };
+		case WireProtocol.MESSAGE:
+			int id = WireProtocol.readVarint(buffer);
+			String recipient = recipients.get(id);
+			if (recipient == null) {
+				throw new IOException("Message sent to undefined recipient id: " + id);
+			}
+
+			return new String[] { SystemCode.REGULAR_MESSAGE, WireProtocol.readString(buffer), recipient };
+		case WireProtocol.JOIN_ROOM:
+			return new String[] { SystemCode.JOIN_ROOM, WireProtocol.readString(buffer), null };
+		case WireProtocol.LEAVE_ROOM:
+			return new String[] { SystemCode.LEAVE_ROOM, WireProtocol.readString(buffer), null };
+		case WireProtocol.LOGOUT:
+			return new String[] { SystemCode.LOGOUT, null, null };
+		case WireProtocol.SESSION_TOKEN:
+			return new String[] { SystemCode.SESSION_TOKEN, null, null };
+		case WireProtocol.RESUME:
+			return new String[] { SystemCode.RESUME, WireProtocol.readString(buffer),
+					WireProtocol.readString(buffer) };
+		case WireProtocol.DEFINE_RECIPIENT:
+			int recipientId = WireProtocol.readVarint(buffer);
+			String name = WireProtocol.readString(buffer);
+			if (recipients.size() >= MAX_RECIPIENTS && !recipients.containsKey(recipientId)) {
+				throw new IOException("Too many recipients defined. The maximum is " + MAX_RECIPIENTS + ".");
+			}
+
+			recipients.put(recipientId, name);
+			return null;
+		default:
+			throw new IOException("Unknown opcode: " + opcode);
+		}
+	}
+}
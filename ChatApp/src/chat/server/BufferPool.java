@@ -0,0 +1,130 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers used for the encoded outbound messages. Allocating
+ * direct memory is expensive, so released buffers are kept and reused. The
+ * buffers are grouped by capacity in powers of two. Requests larger than the
+ * biggest group are served with heap buffers which are not pooled.
+ *
+ * The pool is tuned with the system properties:
+ * <ul>
+ * <li>chat.bufferPool.maxBufferSize - capacity of the biggest pooled buffer
+ * (default 65536)</li>
+ * <li>chat.bufferPool.maxBuffersPerSize - free buffers kept per capacity
+ * (default 1024)</li>
+ * </ul>
+ */
+class BufferPool {
+
+	private static final int MIN_BUFFER_SIZE = 256;
+	private static final int MAX_BUFFER_SIZE = Integer.getInteger("chat.bufferPool.maxBufferSize", 64 * 1024);
+	private static final int MAX_BUFFERS_PER_SIZE = Integer.getInteger("chat.bufferPool.maxBuffersPerSize", 1024);
+
+	private final Queue<ByteBuffer>[] freeBuffers;
+	// Sizes of the queues, which are expensive to count.
+	private final AtomicInteger[] freeCounts;
+
+	private final AtomicLong allocatedBuffers = new AtomicLong();
+	private final AtomicLong reusedBuffers = new AtomicLong();
+	private final AtomicLong unpooledBuffers = new AtomicLong();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	BufferPool() {
+		int sizes = sizeIndex(Math.max(MAX_BUFFER_SIZE, MIN_BUFFER_SIZE)) + 1;
+		freeBuffers = new Queue[sizes];
+		freeCounts = new AtomicInteger[sizes];
+		for (int i = 0; i < sizes; i++) {
+			freeBuffers[i] = new ConcurrentLinkedQueue<>();
+			freeCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns an empty buffer with at least the requested capacity.
+	 *
+	 * @param capacity
+	 *            The minimal capacity of the buffer.
+	 */
+	ByteBuffer acquire(int capacity) {
+		int index = sizeIndex(capacity);
+		if (index >= freeBuffers.length) {
+			unpooledBuffers.incrementAndGet();
+			return ByteBuffer.allocate(capacity);
+		}
+
+		ByteBuffer buffer = freeBuffers[index].poll();
+		if (buffer != null) {
+			freeCounts[index].decrementAndGet();
+			reusedBuffers.incrementAndGet();
+			buffer.clear();
+			return buffer;
+		}
+
+		allocatedBuffers.incrementAndGet();
+		return ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << index);
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used afterwards.
+	 *
+	 * @param buffer
+	 *            A buffer returned by acquire.
+	 */
+	void release(ByteBuffer buffer) {
+		if (!buffer.isDirect()) {
+			return;
+		}
+
+		int index = sizeIndex(buffer.capacity());
+		if (index >= freeBuffers.length || (MIN_BUFFER_SIZE << index) != buffer.capacity()) {
+			return;
+		}
+
+		if (freeCounts[index].incrementAndGet() > MAX_BUFFERS_PER_SIZE) {
+			// Enough free buffers of this size. Leave it to the garbage
+			// collector.
+			freeCounts[index].decrementAndGet();
+			return;
+		}
+
+		freeBuffers[index].add(buffer);
+	}
+
+	long getAllocatedBuffers() {
+		return allocatedBuffers.get();
+	}
+
+	long getReusedBuffers() {
+		return reusedBuffers.get();
+	}
+
+	long getUnpooledBuffers() {
+		return unpooledBuffers.get();
+	}
+
+	/**
+	 * Returns the number of free buffers waiting in the pool.
+	 */
+	int getFreeBuffers() {
+		int free = 0;
+		for (AtomicInteger count : freeCounts) {
+			free += count.get();
+		}
+
+		return free;
+	}
+
+	private static int sizeIndex(int capacity) {
+		if (capacity <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	}
+}
@@ -0,0 +1,752 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.util.Logger;
+import chat.util.SystemCode;
+import chat.util.WireProtocol;
+
+/**
+ * Base class for a connection with a single client. Keeps the state of the
+ * user session and handles the frames of the line based protocol. Reading the
+ * frames from the socket and writing the messages back is left to the server
+ * engine implementations.
+ *
+ * The messages for the client wait in a bounded OutboundQueue. What happens
+ * when it is full is set with the system property chat.outbound.overflow to
+ * drop-oldest, reject or disconnect (default reject). See OverflowPolicy.
+ *
+ * A logged in user may join rooms. A message whose recipient is the name of
+ * a joined room is delivered to all members of the room.
+ *
+ * A logged in user may ask for a session token and use it to resume the
+ * session on a new connection after this one is lost. See SessionRegistry.
+ */
+public abstract class ClientConnection {
+
+	private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy
+			.fromName(System.getProperty("chat.outbound.overflow", "reject"));
+
+	protected MessageDispatcher messageDispatcher;
+	protected Server messageServer;
+	protected Storage storage;
+
+	private volatile String username;
+	// Set once when the client asks for the binary protocol, before any
+	// message is queued.
+	private volatile boolean isBinaryProtocol;
+	private Date connectedDate;
+
+	// Messages waiting to be written to the client. The queue is drained by
+	// exactly one writer, so the messages are written in the order they were
+	// queued and the writes never interleave.
+	protected final OutboundQueue outbound = new OutboundQueue();
+
+	// Time the writer started waiting for the socket to accept the queued
+	// messages, or 0 when it is not waiting.
+	private volatile long writeStalledSince;
+
+	// Held while the offline messages of the user are delivered.
+	private final ReentrantLock mailboxLock = new ReentrantLock();
+	// Id of the last message of the mailbox queued to this connection.
+	// Guarded by the mailbox lock.
+	private long mailboxQueuedId;
+
+	// Rooms joined by the user, by name.
+	private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+	// Token of the session, null until the client asks for one.
+	private volatile String sessionToken;
+	private volatile boolean isSessionEnded;
+	// Messages which were queued but never written, kept while the session
+	// can be resumed. Once they are taken or released, later ones are
+	// released at once.
+	private final Queue<OutboundMessage> unsent = new ConcurrentLinkedQueue<>();
+	private volatile boolean isUnsentTaken;
+
+	public ClientConnection(MessageDispatcher messageDispatcher, Storage storage, Server messageServer) {
+		this.messageDispatcher = messageDispatcher;
+		this.storage = storage;
+		this.messageServer = messageServer;
+		this.connectedDate = new Date();
+	}
+
+	public String getUsername() {
+		return this.username;
+	}
+
+	public abstract String getIP();
+
+	ReentrantLock getMailboxLock() {
+		return mailboxLock;
+	}
+
+	/**
+	 * Returns the id of the last message of the mailbox queued to this
+	 * connection. The messages stay in the mailbox until they are written, so
+	 * a later delivery on the same connection starts after them. The caller
+	 * must hold the mailbox lock.
+	 */
+	long getMailboxQueuedId() {
+		return mailboxQueuedId;
+	}
+
+	void setMailboxQueuedId(long mailboxQueuedId) {
+		this.mailboxQueuedId = mailboxQueuedId;
+	}
+
+	/**
+	 * Returns the remote port of the client.
+	 */
+	public abstract int getPort();
+
+	/**
+	 * Returns formatted string with information about the user.
+	 */
+	@Override
+	public String toString() {
+		String info = "User: " + username + "(" + getIP() + "), connected: " + connectedDate;
+		return info;
+	}
+
+	/**
+	 * Adds a single line to the queue of messages waiting to be written to the
+	 * client. Does not wait for the message to be written.
+	 *
+	 * @param text
+	 *            The line to be sent.
+	 * @throws IOException
+	 *             If the connection is closed or too many messages are waiting
+	 *             to be written.
+	 */
+	void sendMessageToClient(String text) throws IOException {
+		OutboundMessage message = new OutboundMessage(text);
+		try {
+			sendMessageToClient(message);
+		} finally {
+			message.release();
+		}
+	}
+
+	/**
+	 * Adds an already encoded message to the queue of messages waiting to be
+	 * written to the client. The queue takes its own reference to the
+	 * message, the caller still has to release its reference.
+	 *
+	 * @param message
+	 *            The message to be sent.
+	 * @throws IOException
+	 *             If the connection is closed or too many messages are waiting
+	 *             to be written.
+	 */
+	void sendMessageToClient(OutboundMessage message) throws IOException {
+		ServerMetrics metrics = messageServer.getMetrics();
+		if (isClosed()) {
+			metrics.getDeliveryFailures().mark();
+			throw new IOException("Can not send message to " + getIP() + ". The connection is closed.");
+		}
+
+		message.retain();
+		if (outbound.offer(message)
+				|| (OVERFLOW_POLICY == OverflowPolicy.DROP_OLDEST && offerDroppingOldest(message))) {
+			messageQueued();
+			return;
+		}
+
+		message.release();
+		metrics.getDeliveryFailures().mark();
+		if (OVERFLOW_POLICY == OverflowPolicy.DISCONNECT) {
+			metrics.getSlowConsumersDisconnected().mark();
+			Logger.warn("Disconnecting a slow client. Too many messages are waiting to be sent.", "user", username,
+					"ip", getIP(), "port", getPort());
+			closeRecourses();
+			throw new IOException(
+					"Can not send message to " + getIP() + ". The client was disconnected as it is too slow.");
+		}
+
+		metrics.getOutboundRejected().mark();
+		throw new IOException(
+				"Can not send message to " + getIP() + ". Too many messages are waiting to be sent.");
+	}
+
+	/**
+	 * Drops the oldest waiting messages until the message fits in the queue.
+	 *
+	 * @return False if there is nothing left to drop.
+	 */
+	private boolean offerDroppingOldest(OutboundMessage message) {
+		OutboundMessage dropped;
+		while ((dropped = outbound.dropOldest()) != null) {
+			dropped.release();
+			messageServer.getMetrics().getOutboundDropped().mark();
+			if (outbound.offer(message)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Marks the time the writer started waiting for the socket. Only the
+	 * first call until writeCompleted counts.
+	 */
+	protected void writeStalled() {
+		if (writeStalledSince == 0) {
+			writeStalledSince = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Marks that the socket accepted all messages the writer had.
+	 */
+	protected void writeCompleted() {
+		writeStalledSince = 0;
+	}
+
+	/**
+	 * Checks if the writer has been waiting for the socket for longer than
+	 * the timeout.
+	 */
+	boolean isWriteTimedOut(long now, long timeoutNanos) {
+		long since = writeStalledSince;
+		return since != 0 && now - since > timeoutNanos;
+	}
+
+	abstract boolean isClosed();
+
+	boolean isBinaryProtocol() {
+		return isBinaryProtocol;
+	}
+
+	/**
+	 * Selects the protocol of the connection by the first byte sent by the
+	 * client and returns the decoder for it. The decoder consumes the first
+	 * byte as well.
+	 *
+	 * @throws IOException
+	 *             If the confirmation of the binary protocol can not be queued.
+	 */
+	FrameDecoder selectDecoder(byte firstByte) throws IOException {
+		if ((firstByte & 0xFF) == WireProtocol.MAGIC) {
+			useBinaryProtocol();
+			return new BinaryFrameDecoder();
+		}
+
+		// The clients use the platform default charset.
+		return new LineFrameDecoder(Charset.defaultCharset());
+	}
+
+	/**
+	 * Switches the messages sent to the client to the binary protocol and
+	 * confirms the switch to the client.
+	 *
+	 * @throws IOException
+	 *             If the confirmation can not be queued.
+	 */
+	void useBinaryProtocol() throws IOException {
+		isBinaryProtocol = true;
+		sendMessageToClient(OutboundMessage.BINARY_HANDSHAKE);
+	}
+
+	/**
+	 * Notifies the writer of the connection that a message has been queued.
+	 */
+	abstract void messageQueued();
+
+	/**
+	 * Closes the connection immediately. Messages waiting in the queue are
+	 * discarded.
+	 */
+	abstract void closeRecourses();
+
+	/**
+	 * Closes the connection after all queued messages are written.
+	 */
+	abstract void flushAndClose();
+
+	/**
+	 * Releases the messages which will never be written because the
+	 * connection is closed. If the session can be resumed they are kept for
+	 * the next connection instead.
+	 */
+	protected void discardOutbound() {
+		boolean keepsUnsent = sessionToken != null && !isSessionEnded;
+		OutboundMessage message;
+		while ((message = outbound.poll()) != null) {
+			// The permanent messages are the handshake and the markers of the
+			// engine, which belong to this connection.
+			if (keepsUnsent && !message.isPermanent()) {
+				unsent.add(message);
+			} else {
+				message.release();
+			}
+		}
+
+		if (isUnsentTaken || isSessionEnded) {
+			// The session was resumed or ended in the meantime.
+			releaseUnsent();
+		}
+	}
+
+	/**
+	 * Returns the messages which were never written and keeps no more of
+	 * them. The caller owns a reference to every message.
+	 */
+	List<OutboundMessage> takeUnsent() {
+		isUnsentTaken = true;
+		List<OutboundMessage> messages = new ArrayList<>();
+		OutboundMessage message;
+		while ((message = unsent.poll()) != null) {
+			messages.add(message);
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Releases the messages kept for a session which will not be resumed.
+	 */
+	void releaseUnsent() {
+		isUnsentTaken = true;
+		OutboundMessage message;
+		while ((message = unsent.poll()) != null) {
+			message.release();
+		}
+	}
+
+	/**
+	 * Ends the session of the user, so it can not be resumed. Called when the
+	 * user logs out or is disconnected by the server.
+	 */
+	void endSession() {
+		isSessionEnded = true;
+		String token = sessionToken;
+		if (token != null) {
+			messageServer.getSessionRegistry().revoke(token);
+		}
+	}
+
+	/**
+	 * Informs the client that it has been disconnected and closes the
+	 * connection.
+	 *
+	 * @throws IOException
+	 */
+	void shutdown() throws IOException {
+		endSession();
+		try {
+			sendMessageToClient("disconnect");
+		} finally {
+			flushAndClose();
+		}
+	}
+
+	/**
+	 * Handles one complete frame received from the client.
+	 *
+	 * @param messageType
+	 *            The system code sent on the first line of the frame.
+	 * @param textReceived
+	 *            The text sent on the second line of the frame.
+	 * @param argument
+	 *            The password or the recipient sent on the third line of the
+	 *            frame. Null for frames that consist of two lines.
+	 * @return False if the connection must be closed, true otherwise.
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	boolean processFrame(String messageType, String textReceived, String argument)
+			throws IOException, SQLException {
+		if (messageType.equals(SystemCode.REGISTER)) {
+			long loginStart = System.nanoTime();
+			// First check if the given username is available.
+			String resultCode = messageServer.validateUsername(textReceived);
+			// Second check to ensure that no other user logged in with
+			// the same username between last check and the time current
+			// user is logged in.
+
+			if (resultCode.equals(SystemCode.SUCCESSFUL_LOGIN)) {
+				try {
+					int userId = messageServer.getAuthService().register(textReceived, argument);
+					messageServer.getUserIdCache().put(textReceived, userId);
+					resultCode = messageServer.addUser(textReceived, this);
+					if (resultCode.equals(SystemCode.SUCCESSFUL_LOGIN)) {
+						// Set the name right away, so the user is removed from
+						// the server if the connection is closed.
+						setUsername(textReceived);
+						loginUser(textReceived);
+					}
+				} catch (SQLException e) {
+
+					resultCode = SystemCode.ALREADY_REGISTERED_USERNAME;
+					Logger.warn("Comunication problem with the database server or the user tried to register "
+							+ "with already resigtered username.", e, "user", textReceived, "ip", getIP());
+				}
+			}
+
+			sendMessageToClient(resultCode);
+
+			if (!resultCode.equals(SystemCode.SUCCESSFUL_LOGIN)) {
+				return false;
+			}
+
+			loginCompleted(loginStart);
+		} else if (messageType.equals(SystemCode.LOGIN)) {
+			long loginStart = System.nanoTime();
+			Integer userId = messageServer.getAuthService().login(textReceived, argument, getIP());
+
+			if (userId != null) {
+				messageServer.getUserIdCache().put(textReceived, userId);
+				// The only admission of the user. The name is taken with one
+				// atomic operation, so concurrent logins never wait for each
+				// other.
+				String isUserLoggedIn = messageServer.addUser(textReceived, this);
+				if (isUserLoggedIn.equals(SystemCode.ALREADY_LOGGED_IN)) {
+					// The user is already logged in.
+					sendMessageToClient(SystemCode.ALREADY_LOGGED_IN);
+					return true;
+				}
+
+				setUsername(textReceived);
+				sendMessageToClient(SystemCode.SUCCESSFUL_LOGIN);
+				loginUser(textReceived);
+				messageServer.getOfflineMailbox().scheduleDelivery(this);
+				loginCompleted(loginStart);
+				return true;
+			}
+
+			// User failed to log in. Possible reasons wrong credentials
+			// or provided username is not registered.
+			sendMessageToClient(SystemCode.FAILED_LOGIN);
+		} else if (messageType.equals(SystemCode.REGULAR_MESSAGE)) {
+			if (username == null) {
+				// Only logged in users can send messages.
+				sendMessageToClient("Log in to send messages.");
+				return true;
+			}
+
+			messageServer.getMetrics().getMessagesReceived().mark();
+			if (argument.equals("/all")) {
+				sendMessageToAllUsers(textReceived, argument);
+				return true;
+			}
+
+			if (RoomRegistry.isRoomName(argument)) {
+				sendMessageToRoom(textReceived, argument);
+				return true;
+			}
+
+			sendMessageToOneClientClient(textReceived, argument, username);
+		} else if (messageType.equals(SystemCode.JOIN_ROOM)) {
+			joinRoom(textReceived);
+		} else if (messageType.equals(SystemCode.LEAVE_ROOM)) {
+			leaveRoom(textReceived);
+		} else if (messageType.equals(SystemCode.SESSION_TOKEN)) {
+			sendSessionToken();
+		} else if (messageType.equals(SystemCode.RESUME)) {
+			resumeSession(textReceived, argument);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes the connection from the server, releases its resources once the
+	 * queued messages are written and inserts logout entry for the user if he
+	 * has been logged in.
+	 */
+	void connectionClosed() {
+		messageServer.removeListener(this);
+		flushAndClose();
+		String token = sessionToken;
+		if (token != null && !isSessionEnded) {
+			messageServer.getSessionRegistry().detach(token, this, getRoomNames());
+		}
+
+		leaveAllRooms();
+		if (username != null) {
+			Logger.info("User has disconnected.", "user", username, "ip", getIP(), "port", getPort());
+
+			try {
+				insertLogoutEntry();
+			} catch (SQLException e) {
+				Logger.error("Error occured while inserting loggout entry in the database.", e, "user", username);
+			}
+		}
+	}
+
+	/**
+	 * Adds the user to a room. The room is created if it does not exist.
+	 */
+	private void joinRoom(String name) throws IOException {
+		if (username == null) {
+			// Only logged in users can join rooms.
+			return;
+		}
+
+		if (!RoomRegistry.isRoomName(name)) {
+			sendMessageToClient("Invalid room name: " + name + ". A room name starts with # followed by up to "
+					+ "32 letters, digits, '-' or '_'.");
+			return;
+		}
+
+		if (rooms.containsKey(name)) {
+			sendMessageToClient("You are already in " + name + ".");
+			return;
+		}
+
+		if (rooms.size() >= RoomRegistry.MAX_ROOMS_PER_USER) {
+			sendMessageToClient("You can not join more than " + RoomRegistry.MAX_ROOMS_PER_USER + " rooms.");
+			return;
+		}
+
+		RoomRegistry roomRegistry = messageServer.getRoomRegistry();
+		Room room = roomRegistry.join(name, this);
+		rooms.put(name, room);
+		if (isClosed()) {
+			// The connection was closed while joining and its rooms may have
+			// been left already.
+			leaveAllRooms();
+			return;
+		}
+
+		sendMessageToClient("You joined " + name + ". Members: " + room.size() + ".");
+	}
+
+	private void leaveRoom(String name) throws IOException {
+		Room room = rooms.remove(name);
+		if (room == null) {
+			sendMessageToClient("You are not in " + name + ".");
+			return;
+		}
+
+		messageServer.getRoomRegistry().leave(room, this);
+		sendMessageToClient("You left " + name + ".");
+	}
+
+	/**
+	 * Rejoins the rooms of a resumed session without notifying the client.
+	 */
+	private void rejoinRooms(List<String> names) {
+		RoomRegistry roomRegistry = messageServer.getRoomRegistry();
+		for (String name : names) {
+			if (!rooms.containsKey(name)) {
+				rooms.put(name, roomRegistry.join(name, this));
+			}
+		}
+
+		if (isClosed()) {
+			leaveAllRooms();
+		}
+	}
+
+	List<String> getRoomNames() {
+		return new ArrayList<>(rooms.keySet());
+	}
+
+	private void leaveAllRooms() {
+		RoomRegistry roomRegistry = messageServer.getRoomRegistry();
+		for (String name : rooms.keySet()) {
+			Room room = rooms.remove(name);
+			if (room != null) {
+				roomRegistry.leave(room, this);
+			}
+		}
+	}
+
+	private void setUsername(String name) {
+		this.username = name;
+	}
+
+	/**
+	 * Sends the token of the session to the client. The token is created the
+	 * first time the client asks for it.
+	 */
+	private void sendSessionToken() throws IOException, SQLException {
+		if (username == null) {
+			// Only logged in users have a session.
+			return;
+		}
+
+		String token = sessionToken;
+		if (token == null) {
+			token = messageServer.getSessionRegistry().issue(this, username, getUserId(username));
+			if (token == null) {
+				// The tokens are disabled.
+				return;
+			}
+
+			sessionToken = token;
+		}
+
+		sendMessageToClient(SystemCode.SESSION_TOKEN + " " + token);
+	}
+
+	/**
+	 * Binds the connection to the session of the token. The connection the
+	 * session had is closed if the server has not noticed yet that it was
+	 * lost. The messages which were never written to it are written first,
+	 * although a message sent to the user at the same moment may overtake
+	 * them.
+	 */
+	private void resumeSession(String name, String token) throws IOException, SQLException {
+		if (username != null) {
+			sendMessageToClient(SystemCode.ALREADY_LOGGED_IN);
+			return;
+		}
+
+		long loginStart = System.nanoTime();
+		SessionRegistry.Session session = messageServer.getSessionRegistry().resume(token, name);
+		if (session == null) {
+			// The client logs in with the password instead.
+			sendMessageToClient(SystemCode.FAILED_LOGIN);
+			return;
+		}
+
+		ClientConnection previous = session.getConnection();
+		List<String> roomNames = session.getRoomNames();
+		if (roomNames == null) {
+			roomNames = previous.getRoomNames();
+			previous.closeRecourses();
+			messageServer.removeListener(previous);
+		}
+
+		messageServer.getUserIdCache().put(name, session.getUserId());
+		String resultCode = messageServer.addUser(name, this);
+		if (!resultCode.equals(SystemCode.SUCCESSFUL_LOGIN)) {
+			// The user logged in on another connection in the meantime.
+			previous.releaseUnsent();
+			sendMessageToClient(resultCode);
+			return;
+		}
+
+		setUsername(name);
+		sendMessageToClient(SystemCode.SUCCESSFUL_LOGIN);
+		// The batches of the mailbox queued to the old connection are taken
+		// over with its unsent messages, so they are not read again.
+		List<OutboundMessage> messages;
+		ReentrantLock previousMailboxLock = previous.getMailboxLock();
+		previousMailboxLock.lock();
+		try {
+			messages = previous.takeUnsent();
+			mailboxQueuedId = previous.mailboxQueuedId;
+		} finally {
+			previousMailboxLock.unlock();
+		}
+
+		try {
+			for (OutboundMessage message : messages) {
+				sendMessageToClient(message);
+			}
+		} finally {
+			for (OutboundMessage message : messages) {
+				message.release();
+			}
+		}
+
+		rejoinRooms(roomNames);
+		loginUser(name);
+		messageServer.getOfflineMailbox().scheduleDelivery(this);
+		messageServer.getMetrics().getSessionsResumed().mark();
+		loginCompleted(loginStart);
+	}
+
+	/**
+	 * Queues the logout entry of the user for storing.
+	 */
+	private void insertLogoutEntry() throws SQLException {
+		messageServer.getMessagePersister().store(new SessionRecord(false, getUserId(username), getIP(), new Date()));
+	}
+
+	/**
+	 * Queues the login entry of the user for storing. The login does not wait
+	 * for the storage.
+	 */
+	private void loginUser(String username) throws SQLException {
+		messageServer.getMessagePersister().store(new SessionRecord(true, getUserId(username), getIP(), new Date()));
+	}
+
+	private void loginCompleted(long loginStart) {
+		ServerMetrics metrics = messageServer.getMetrics();
+		metrics.getLogins().mark();
+		metrics.getLoginLatencies().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - loginStart));
+	}
+
+	private int getUserId(String username) throws SQLException {
+		Integer userId = messageServer.getUserIdCache().getId(username);
+		if (userId == null) {
+			throw new SQLException("There is no registered user with name: " + username);
+		}
+
+		return userId;
+	}
+
+	private void sendMessageToAllUsers(String textReceived, String recipient) throws IOException {
+		Message message = Message.obtain(textReceived, recipient, username);
+		boolean messageSent;
+		try {
+			messageSent = messageDispatcher.addBroadcastToQueue(message);
+		} finally {
+			message.recycle();
+		}
+
+		if (!messageSent) {
+			// MessageDispatcher has been shut down. Unable to send
+			// the message.
+			String text = "Failed to send your message: \"" + textReceived + "\" to: " + recipient;
+			sendMessageToOneClientClient(text, username, "admin");
+		}
+	}
+
+	private void sendMessageToRoom(String textReceived, String name) throws IOException {
+		Room room = rooms.get(name);
+		if (room == null) {
+			sendMessageToClient("You are not in " + name + ". Join it first.");
+			return;
+		}
+
+		Message message = Message.obtain(textReceived, name, username);
+		boolean messageSent;
+		try {
+			messageSent = messageDispatcher.addRoomMessageToQueue(room, message);
+		} finally {
+			message.recycle();
+		}
+
+		if (!messageSent) {
+			// MessageDispatcher has been shut down. Unable to send
+			// the message.
+			String text = "Failed to send your message: \"" + textReceived + "\" to: " + name;
+			sendMessageToOneClientClient(text, username, "admin");
+		}
+	}
+
+	private void sendMessageToOneClientClient(String textReceived, String recipient, String sender) {
+		Message message = Message.obtain(textReceived, recipient, sender);
+		boolean messageSent;
+		try {
+			messageSent = messageDispatcher.addMessageToQueue(message);
+		} finally {
+			message.recycle();
+		}
+
+		if (!messageSent) {
+			// MessageDispatcher has been shut down. Unable to send
+			// the message.
+			String text = "Failed to send your message: \"" + textReceived + "\" to: " + recipient;
+			sendMessageToOneClientClient(text, username, "admin");
+		}
+	}
+}
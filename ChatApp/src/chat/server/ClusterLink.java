@@ -0,0 +1,171 @@
+package chat.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.util.Logger;
+import chat.util.WireProtocol;
+
+/**
+ * Persistent connection to another node of the cluster. The frames for the
+ * node wait in a bounded queue and are written by the thread of the link, so
+ * the thread which dispatched a message never waits for the network. The
+ * frames queued by one thread are written in the order they were queued.
+ *
+ * The link connects when it starts and connects again after the connection
+ * is lost. Frames queued while the node is not reachable are written after
+ * the link is connected again, unless the queue fills up in the meantime.
+ * The frame being written when the connection is lost is lost with it.
+ */
+class ClusterLink implements Runnable {
+
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final long RECONNECT_DELAY = 1000;
+
+	private final String localNodeId;
+	private final String nodeId;
+	private final InetSocketAddress address;
+	private final BlockingQueue<byte[]> frames;
+	private final AtomicLong droppedFrames = new AtomicLong();
+
+	private volatile boolean keepRunning;
+	private volatile boolean isConnected;
+	private volatile Socket socket;
+	private Thread thread;
+
+	/**
+	 * @param localNodeId
+	 *            The id of the node which owns the link.
+	 * @param nodeId
+	 *            The id of the node the link connects to.
+	 * @param address
+	 *            The address the node accepts links on.
+	 * @param capacity
+	 *            The number of frames which can wait for the node.
+	 */
+	ClusterLink(String localNodeId, String nodeId, InetSocketAddress address, int capacity) {
+		this.localNodeId = localNodeId;
+		this.nodeId = nodeId;
+		this.address = address;
+		this.frames = new ArrayBlockingQueue<>(capacity);
+	}
+
+	String getNodeId() {
+		return nodeId;
+	}
+
+	boolean isConnected() {
+		return isConnected;
+	}
+
+	/**
+	 * Returns the number of frames dropped because the queue was full.
+	 */
+	long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+
+	int getQueuedFrames() {
+		return frames.size();
+	}
+
+	void start() {
+		keepRunning = true;
+		thread = new Thread(this, "ClusterLink-" + nodeId);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues an encoded frame for the node. Does not wait for the frame to be
+	 * written.
+	 *
+	 * @return False if too many frames are waiting for the node.
+	 */
+	boolean send(byte[] frame) {
+		if (frames.offer(frame)) {
+			return true;
+		}
+
+		droppedFrames.incrementAndGet();
+		return false;
+	}
+
+	@Override
+	public void run() {
+		while (keepRunning) {
+			try {
+				connectAndWrite();
+			} catch (IOException e) {
+				if (keepRunning) {
+					Logger.warn("Link to the cluster node lost.", e, "node", nodeId, "address", address);
+				}
+			} catch (InterruptedException e) {
+				break;
+			} finally {
+				isConnected = false;
+				closeSocket();
+			}
+
+			try {
+				Thread.sleep(RECONNECT_DELAY);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	void shutdown() {
+		keepRunning = false;
+		closeSocket();
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Connects to the node, introduces the local node and writes the queued
+	 * frames until the connection is lost. The frames available at once are
+	 * written with one flush.
+	 */
+	private void connectAndWrite() throws IOException, InterruptedException {
+		Socket socket = new Socket();
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		// Resolved on every connect, so a node may move to another host.
+		socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT);
+		OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+		output.write(WireProtocol.encode(WireProtocol.NODE_HELLO, localNodeId));
+		output.flush();
+		isConnected = true;
+		Logger.info("Linked to the cluster node.", "node", nodeId, "address", address);
+
+		while (keepRunning) {
+			byte[] frame = frames.take();
+			do {
+				output.write(frame);
+			} while ((frame = frames.poll()) != null);
+
+			output.flush();
+		}
+	}
+
+	private void closeSocket() {
+		Socket socket = this.socket;
+		if (socket == null) {
+			return;
+		}
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Logger.warn("Closing the link to the cluster node failed.", e, "node", nodeId);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import chat.util.Logger;
+import chat.util.WireProtocol;
+
+/**
+ * Joins the server to a cluster of servers which share the users. Every
+ * node registers its logged in users in a presence directory shared by all
+ * nodes. A message to a user who is not connected to the node is forwarded
+ * over the link to the node of the user. A message to /all is sent once to
+ * every other node, which delivers it to its own users.
+ *
+ * Every node keeps one outgoing link to every other node and accepts the
+ * links of the other nodes. The nodes must share the storage, so the users,
+ * the history and the offline messages are the same on every node. The rooms
+ * are local to the node.
+ *
+ * The cluster is configured with the system properties:
+ * <ul>
+ * <li>chat.cluster.nodeId - id of the node, the cluster is disabled if it is
+ * not set</li>
+ * <li>chat.cluster.port - port the node accepts the links of the other nodes
+ * on (default 2300)</li>
+ * <li>chat.cluster.address - address the node accepts the links on (default
+ * 127.0.0.1). The links are not authenticated, so the port must be reachable
+ * only by the other nodes.</li>
+ * <li>chat.cluster.peers - the other nodes as a comma separated list of
+ * id=host:port</li>
+ * <li>chat.cluster.presenceDir - directory of the presence directory shared
+ * by the nodes on one machine (default chat-cluster)</li>
+ * <li>chat.cluster.linkCapacity - frames which can wait for one node
+ * (default 10000)</li>
+ * </ul>
+ */
+class ClusterNode {
+
+	private static final String NODE_ID = System.getProperty("chat.cluster.nodeId");
+	private static final int PORT = Integer.getInteger("chat.cluster.port", 2300);
+	private static final String ADDRESS = System.getProperty("chat.cluster.address", "127.0.0.1");
+	private static final String PEERS = System.getProperty("chat.cluster.peers", "");
+	private static final String PRESENCE_DIRECTORY = System.getProperty("chat.cluster.presenceDir", "chat-cluster");
+	private static final int LINK_CAPACITY = Integer.getInteger("chat.cluster.linkCapacity", 10000);
+
+	private final Server server;
+	private final String nodeId;
+	private final InetSocketAddress address;
+	private final PresenceDirectory presenceDirectory;
+	private final Map<String, ClusterLink> links = new LinkedHashMap<>();
+
+	private ServerSocket serverSocket;
+	// Sockets of the links accepted from the other nodes.
+	private final Set<Socket> acceptedSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private volatile boolean keepRunning;
+
+	/**
+	 * @param peers
+	 *            The addresses of the other nodes by their ids.
+	 */
+	ClusterNode(Server server, String nodeId, InetSocketAddress address, Map<String, InetSocketAddress> peers,
+			PresenceDirectory presenceDirectory) {
+		this.server = server;
+		this.nodeId = nodeId;
+		this.address = address;
+		this.presenceDirectory = presenceDirectory;
+		for (Map.Entry<String, InetSocketAddress> peer : peers.entrySet()) {
+			links.put(peer.getKey(), new ClusterLink(nodeId, peer.getKey(), peer.getValue(), LINK_CAPACITY));
+		}
+	}
+
+	/**
+	 * Creates the node configured by the system properties.
+	 *
+	 * @return Null if the cluster is disabled.
+	 * @throws IOException
+	 *             If the presence directory can not be opened.
+	 * @throws IllegalArgumentException
+	 *             If the list of the other nodes is invalid.
+	 */
+	static ClusterNode fromProperties(Server server) throws IOException {
+		if (NODE_ID == null || NODE_ID.isEmpty()) {
+			return null;
+		}
+
+		Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+		for (String peer : PEERS.split(",")) {
+			peer = peer.trim();
+			if (peer.isEmpty()) {
+				continue;
+			}
+
+			int equals = peer.indexOf('=');
+			int colon = peer.lastIndexOf(':');
+			if (equals < 1 || colon < equals + 2) {
+				throw new IllegalArgumentException("Invalid cluster node: " + peer + ". Expected id=host:port.");
+			}
+
+			String host = peer.substring(equals + 1, colon);
+			int port = Integer.parseInt(peer.substring(colon + 1));
+			peers.put(peer.substring(0, equals), new InetSocketAddress(host, port));
+		}
+
+		return new ClusterNode(server, NODE_ID, new InetSocketAddress(ADDRESS, PORT), peers,
+				new FilePresenceDirectory(new File(PRESENCE_DIRECTORY)));
+	}
+
+	String getNodeId() {
+		return nodeId;
+	}
+
+	Collection<ClusterLink> getLinks() {
+		return Collections.unmodifiableCollection(links.values());
+	}
+
+	/**
+	 * Drops the users left in the presence directory by the previous run of
+	 * the node, starts accepting the links of the other nodes and connects to
+	 * them.
+	 *
+	 * @throws IOException
+	 *             If the port can not be bound or the presence directory can
+	 *             not be reached.
+	 */
+	void start() throws IOException {
+		presenceDirectory.releaseAll(nodeId);
+		serverSocket = new ServerSocket();
+		serverSocket.bind(address);
+		keepRunning = true;
+
+		Thread acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				acceptLinks();
+			}
+		}, "ClusterAcceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (ClusterLink link : links.values()) {
+			link.start();
+		}
+
+		Logger.info("Joined the cluster.", "node", nodeId, "address", address, "peers", links.keySet());
+	}
+
+	void shutdown() {
+		keepRunning = false;
+		for (ClusterLink link : links.values()) {
+			link.shutdown();
+		}
+
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+
+			for (Socket socket : acceptedSockets) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			Logger.warn("Closing the cluster links failed.", e, "node", nodeId);
+		}
+
+		try {
+			presenceDirectory.releaseAll(nodeId);
+		} catch (IOException e) {
+			Logger.warn("Unable to release the users of the node.", e, "node", nodeId);
+		}
+	}
+
+	/**
+	 * Registers a user who logged in to this node.
+	 *
+	 * @return False if the user is connected to another node or the presence
+	 *         directory can not be reached.
+	 */
+	boolean claim(String username) {
+		try {
+			String owner = presenceDirectory.claim(username, nodeId);
+			return owner == null;
+		} catch (IOException e) {
+			Logger.error("Unable to register the user in the presence directory.", e, "user", username);
+			return false;
+		}
+	}
+
+	/**
+	 * Removes a user who disconnected from this node.
+	 */
+	void release(String username) {
+		try {
+			presenceDirectory.release(username, nodeId);
+		} catch (IOException e) {
+			Logger.error("Unable to remove the user from the presence directory.", e, "user", username);
+		}
+	}
+
+	/**
+	 * Forwards a message to the node the recipient is connected to.
+	 *
+	 * @return False if the recipient is not connected to another node or the
+	 *         message could not be queued for the node.
+	 */
+	boolean forward(String sender, String recipient, String text) {
+		String owner;
+		try {
+			owner = presenceDirectory.lookup(recipient);
+		} catch (IOException e) {
+			Logger.error("Unable to look up the user in the presence directory.", e, "user", recipient);
+			return false;
+		}
+
+		if (owner == null || owner.equals(nodeId)) {
+			return false;
+		}
+
+		ClusterLink link = links.get(owner);
+		if (link == null) {
+			Logger.warn("The user is connected to an unknown cluster node.", "user", recipient, "node", owner);
+			return false;
+		}
+
+		if (!link.send(WireProtocol.encode(WireProtocol.NODE_MESSAGE, sender, recipient, text))) {
+			Logger.warn("Too many messages are waiting for the cluster node.", "node", owner);
+			return false;
+		}
+
+		server.getMetrics().getClusterForwarded().mark();
+		return true;
+	}
+
+	/**
+	 * Sends a message to /all once to every other node.
+	 */
+	void broadcast(String sender, String text) {
+		byte[] frame = WireProtocol.encode(WireProtocol.NODE_BROADCAST, sender, text);
+		for (ClusterLink link : links.values()) {
+			if (link.send(frame)) {
+				server.getMetrics().getClusterForwarded().mark();
+			} else {
+				Logger.warn("Too many messages are waiting for the cluster node.", "node", link.getNodeId());
+			}
+		}
+	}
+
+	private void acceptLinks() {
+		while (keepRunning) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (keepRunning) {
+					Logger.error("Accepting the cluster links failed.", e, "node", nodeId);
+				}
+
+				return;
+			}
+
+			acceptedSockets.add(socket);
+			Thread reader = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					readLink(socket);
+				}
+			}, "ClusterLinkReader-" + socket.getPort());
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	/**
+	 * Reads the frames sent by another node and delivers the messages to the
+	 * users of this node. The messages are delivered by the reading thread,
+	 * so they keep the order they were sent in.
+	 */
+	private void readLink(Socket socket) {
+		String peer = null;
+		try {
+			InputStream input = new BufferedInputStream(socket.getInputStream());
+			ByteBuffer frame = WireProtocol.readFrame(input);
+			if (frame == null || (frame.get() & 0xFF) != WireProtocol.NODE_HELLO) {
+				throw new IOException("The cluster node did not introduce itself.");
+			}
+
+			peer = WireProtocol.readString(frame);
+			Logger.info("Accepted the link of the cluster node.", "node", peer, "ip", socket.getInetAddress());
+
+			while ((frame = WireProtocol.readFrame(input)) != null) {
+				deliver(frame);
+			}
+		} catch (IOException e) {
+			if (keepRunning) {
+				Logger.warn("Link from the cluster node lost.", e, "node", peer, "ip", socket.getInetAddress());
+			}
+		} finally {
+			acceptedSockets.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				Logger.warn("Closing the link from the cluster node failed.", e, "node", peer);
+			}
+		}
+	}
+
+	private void deliver(ByteBuffer frame) throws IOException {
+		int opcode = frame.get() & 0xFF;
+		MessageDispatcher messageDispatcher = server.getMessageDispatcher();
+		server.getMetrics().getClusterReceived().mark();
+		switch (opcode) {
+		case WireProtocol.NODE_MESSAGE:
+			String sender = WireProtocol.readString(frame);
+			String recipient = WireProtocol.readString(frame);
+			Message message = Message.obtain(WireProtocol.readString(frame), recipient, sender);
+			try {
+				messageDispatcher.addForwardedMessageToQueue(message);
+			} finally {
+				message.recycle();
+			}
+			break;
+		case WireProtocol.NODE_BROADCAST:
+			String broadcastSender = WireProtocol.readString(frame);
+			Message broadcast = Message.obtain(WireProtocol.readString(frame), "/all", broadcastSender);
+			try {
+				messageDispatcher.addForwardedBroadcastToQueue(broadcast);
+			} finally {
+				broadcast.recycle();
+			}
+			break;
+		default:
+			throw new IOException("Unknown cluster opcode: " + opcode);
+		}
+	}
+}
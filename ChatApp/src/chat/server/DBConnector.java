@@ -1,50 +1,464 @@
-package chat.server;
-
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-
-public class DBConnector {
-
-	private final String URL = "jdbc:mysql://10.55.64.72/chat";
-	private final String USER = "dmaslev";
-	private String password;
-
-	private Connection connection;
-	private ResultSet resultSet;
-
-	public DBConnector(String password) {
-		this.password = password;
-	}
-
-	public void connect() throws SQLException {
-		try {
-			connection = DriverManager.getConnection(this.URL, this.USER, this.password);
-		} catch (SQLException e) {
-			throw new SQLException("Access error occured while connectiong to database: " + this.URL + " with user: " + this.USER, e);
-		}
-
-		System.out.println("Successfully connected to database server: " + this.URL);
-	}
-
-	public synchronized void insert(String sql, Object params[]) throws SQLException {
-		PreparedStatement preparedStatement = connection.prepareStatement(sql);
-		for (int i = 0; i < params.length; i++) {
-			preparedStatement.setObject(i + 1, params[i]);
-		}
-		
-		preparedStatement.executeUpdate();
-	}
-
-	public ResultSet select(String sql, Object[] params) throws SQLException {
-		PreparedStatement preparedStatement = connection.prepareStatement(sql);
-		for (int i = 0; i < params.length; i++) {
-			preparedStatement.setObject(i + 1, params[i]);
-		}
-		
-		resultSet = preparedStatement.executeQuery();
-		return resultSet;
-	}
-}
+package chat.server;
+
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.util.LatencyHistogram;
+import chat.util.Logger;
+
+/**
+ * Executes the SQL statements of the server using a bounded pool of
+ * connections. Every connection caches its prepared statements. Statements,
+ * result sets and connections are always released after use. Broken
+ * connections are closed and replaced with new ones, and a query which
+ * failed because the connection was lost is retried once on a new connection.
+ * The other statements are not retried, as the database may have applied
+ * them before the connection was lost.
+ * 
+ * The pool is tuned with the system properties:
+ * <ul>
+ * <li>chat.db.poolSize - maximum number of connections (default 10)</li>
+ * <li>chat.db.acquireTimeoutMs - maximum time to wait for a free connection
+ * (default 5000)</li>
+ * <li>chat.db.statementCacheSize - prepared statements cached per connection
+ * (default 64, 0 disables the cache)</li>
+ * </ul>
+ */
+public class DBConnector {
+
+	private static final int POOL_SIZE = Integer.getInteger("chat.db.poolSize", 10);
+	private static final long ACQUIRE_TIMEOUT = Long.getLong("chat.db.acquireTimeoutMs", 5000);
+	private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("chat.db.statementCacheSize", 64);
+	// Connections idle for longer are checked before they are used.
+	private static final long MAX_UNCHECKED_IDLE = 30000;
+
+	// SQL state class of the connection errors.
+	private static final String CONNECTION_ERROR_STATE = "08";
+
+	// Batched inserts are sent as a single multi-row statement.
+	private final String URL = "jdbc:mysql://10.55.64.72/chat?rewriteBatchedStatements=true";
+	private final String USER = "dmaslev";
+	private String password;
+
+	private final BlockingQueue<PooledConnection> idleConnections;
+	// Number of opened connections, both idle and in use.
+	private final AtomicInteger openConnections = new AtomicInteger();
+
+	private final AtomicLong acquireCount = new AtomicLong();
+	private final AtomicLong acquireWaitNanos = new AtomicLong();
+	private final AtomicLong maxAcquireWaitNanos = new AtomicLong();
+	private final AtomicLong acquireTimeouts = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	// Time of the statements in microseconds, including the wait for a
+	// connection.
+	private final LatencyHistogram insertLatencies = new LatencyHistogram();
+	private final LatencyHistogram selectLatencies = new LatencyHistogram();
+
+	public DBConnector(String password) {
+		this.password = password;
+		this.idleConnections = new ArrayBlockingQueue<>(POOL_SIZE);
+	}
+
+	/**
+	 * Opens the first connection of the pool to make sure the database server
+	 * is reachable.
+	 * 
+	 * @throws SQLException
+	 */
+	public void connect() throws SQLException {
+		PooledConnection connection = openConnection();
+		release(connection, false);
+
+		Logger.info("Successfully connected to database server.", "url", this.URL);
+	}
+
+	public void insert(final String sql, final Object params[]) throws SQLException {
+		execute(insertLatencies, false, new Operation<Void>() {
+
+			@Override
+			public Void execute(PooledConnection connection) throws SQLException {
+				PreparedStatement preparedStatement = connection.prepare(sql, false);
+				setParameters(preparedStatement, params);
+				preparedStatement.executeUpdate();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Executes an update or a delete statement. Its time is recorded with the
+	 * inserts.
+	 * 
+	 * @param sql
+	 *            The statement to be executed.
+	 * @param params
+	 *            The parameters of the statement.
+	 * @throws SQLException
+	 */
+	public void update(String sql, Object[] params) throws SQLException {
+		insert(sql, params);
+	}
+
+	/**
+	 * Executes an insert statement and returns the key generated for the new
+	 * row.
+	 * 
+	 * @param sql
+	 *            The statement to be executed.
+	 * @param params
+	 *            The parameters of the statement.
+	 * @return The generated key.
+	 * @throws SQLException
+	 *             If the statement fails or no key was generated.
+	 */
+	public int insertReturningKey(final String sql, final Object[] params) throws SQLException {
+		return execute(insertLatencies, false, new Operation<Integer>() {
+
+			@Override
+			public Integer execute(PooledConnection connection) throws SQLException {
+				PreparedStatement preparedStatement = connection.prepare(sql, true);
+				setParameters(preparedStatement, params);
+				preparedStatement.executeUpdate();
+				try (ResultSet generatedKeys = preparedStatement.getGeneratedKeys()) {
+					if (!generatedKeys.next()) {
+						throw new SQLException("No key was generated by: " + sql);
+					}
+
+					return generatedKeys.getInt(1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Executes the same statement with every set of parameters using a single
+	 * JDBC batch.
+	 * 
+	 * @param sql
+	 *            The statement to be executed.
+	 * @param paramsList
+	 *            Parameters for every execution of the statement.
+	 * @throws SQLException
+	 */
+	public void insertBatch(final String sql, final List<Object[]> paramsList) throws SQLException {
+		execute(insertLatencies, false, new Operation<Void>() {
+
+			@Override
+			public Void execute(PooledConnection connection) throws SQLException {
+				PreparedStatement preparedStatement = connection.prepare(sql, false);
+				try {
+					for (Object[] params : paramsList) {
+						setParameters(preparedStatement, params);
+						preparedStatement.addBatch();
+					}
+
+					preparedStatement.executeBatch();
+				} finally {
+					preparedStatement.clearBatch();
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Executes a statement which is run only once, e.g. a change of the
+	 * schema. The statement is not cached.
+	 * 
+	 * @param sql
+	 *            The statement to be executed.
+	 * @throws SQLException
+	 */
+	public void executeOnce(final String sql) throws SQLException {
+		execute(false, new Operation<Void>() {
+
+			@Override
+			public Void execute(PooledConnection connection) throws SQLException {
+				try (Statement statement = connection.createStatement()) {
+					statement.executeUpdate(sql);
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Executes a query and passes the result to the handler. The result set is
+	 * closed and the connection is returned to the pool after the handler
+	 * returns.
+	 * 
+	 * @param sql
+	 *            The query to be executed.
+	 * @param params
+	 *            The parameters of the query.
+	 * @param handler
+	 *            Reads the rows of the result.
+	 * @return The value returned by the handler.
+	 * @throws SQLException
+	 */
+	public <T> T select(String sql, Object[] params, ResultSetHandler<T> handler) throws SQLException {
+		return select(sql, params, 0, handler);
+	}
+
+	/**
+	 * Executes a query with a fetch size and passes the result to the
+	 * handler. The statements are cached, so the fetch size is set on every
+	 * execution.
+	 * 
+	 * @param fetchSize
+	 *            Number of rows the driver should fetch at once, 0 for its
+	 *            default. MySQL Connector/J streams the rows one by one
+	 *            instead of reading the whole result only with
+	 *            Integer.MIN_VALUE.
+	 * @see #select(String, Object[], ResultSetHandler)
+	 */
+	public <T> T select(final String sql, final Object[] params, final int fetchSize,
+			final ResultSetHandler<T> handler) throws SQLException {
+		return execute(selectLatencies, true, new Operation<T>() {
+
+			@Override
+			public T execute(PooledConnection connection) throws SQLException {
+				PreparedStatement preparedStatement = connection.prepare(sql, false);
+				preparedStatement.setFetchSize(fetchSize);
+				setParameters(preparedStatement, params);
+				try (ResultSet resultSet = preparedStatement.executeQuery()) {
+					return handler.handle(resultSet);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes all idle connections. Connections in use are closed when they
+	 * are returned.
+	 */
+	public void close() {
+		PooledConnection connection;
+		while ((connection = idleConnections.poll()) != null) {
+			connection.close();
+			openConnections.decrementAndGet();
+		}
+	}
+
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public int getIdleConnections() {
+		return idleConnections.size();
+	}
+
+	public long getAcquireCount() {
+		return acquireCount.get();
+	}
+
+	/**
+	 * Returns the total time spent waiting for free connections in
+	 * nanoseconds.
+	 */
+	public long getAcquireWaitNanos() {
+		return acquireWaitNanos.get();
+	}
+
+	public long getMaxAcquireWaitNanos() {
+		return maxAcquireWaitNanos.get();
+	}
+
+	public long getAcquireTimeouts() {
+		return acquireTimeouts.get();
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	/**
+	 * Returns the time of the insert statements in microseconds. A batch is
+	 * counted as one statement.
+	 */
+	public LatencyHistogram getInsertLatencies() {
+		return insertLatencies;
+	}
+
+	/**
+	 * Returns the time of the queries in microseconds, including reading the
+	 * result.
+	 */
+	public LatencyHistogram getSelectLatencies() {
+		return selectLatencies;
+	}
+
+	/**
+	 * Runs the operation and records its time, whether it succeeds or not.
+	 */
+	private <T> T execute(LatencyHistogram latencies, boolean isRetryable, Operation<T> operation)
+			throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return execute(isRetryable, operation);
+		} finally {
+			latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		}
+	}
+
+	/**
+	 * Runs the operation on a pooled connection. If the operation fails
+	 * because the connection was lost, the connection is discarded. A
+	 * retryable operation is then run once more on another connection, the
+	 * others fail, as they may have been applied before the connection was
+	 * lost.
+	 *
+	 * @param isRetryable
+	 *            True if running the operation twice does no harm, i.e. it
+	 *            only reads.
+	 */
+	private <T> T execute(boolean isRetryable, Operation<T> operation) throws SQLException {
+		PooledConnection connection = acquire();
+		try {
+			T result = operation.execute(connection);
+			release(connection, false);
+			return result;
+		} catch (SQLException e) {
+			boolean isConnectionError = isConnectionError(e);
+			release(connection, isConnectionError);
+			if (!isConnectionError || !isRetryable) {
+				throw e;
+			}
+
+			reconnects.incrementAndGet();
+		} catch (RuntimeException e) {
+			release(connection, true);
+			throw e;
+		}
+
+		connection = acquire();
+		try {
+			T result = operation.execute(connection);
+			release(connection, false);
+			return result;
+		} catch (SQLException e) {
+			release(connection, isConnectionError(e));
+			throw e;
+		} catch (RuntimeException e) {
+			release(connection, true);
+			throw e;
+		}
+	}
+
+	private PooledConnection acquire() throws SQLException {
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				PooledConnection connection = idleConnections.poll();
+				if (connection == null) {
+					connection = openConnectionIfAllowed();
+				}
+
+				if (connection == null) {
+					long remaining = TimeUnit.MILLISECONDS.toNanos(ACQUIRE_TIMEOUT) - (System.nanoTime() - start);
+					connection = idleConnections.poll(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+					if (connection == null) {
+						acquireTimeouts.incrementAndGet();
+						throw new SQLException("Timed out after " + ACQUIRE_TIMEOUT
+								+ " ms while waiting for a free database connection.", CONNECTION_ERROR_STATE);
+					}
+				}
+
+				if (connection.isValid(MAX_UNCHECKED_IDLE)) {
+					return connection;
+				}
+
+				// The server closed the idle connection. Replace it.
+				connection.close();
+				openConnections.decrementAndGet();
+				reconnects.incrementAndGet();
+			}
+		} catch (InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a free database connection.", interruptedException);
+		} finally {
+			long waited = System.nanoTime() - start;
+			acquireCount.incrementAndGet();
+			acquireWaitNanos.addAndGet(waited);
+			long max;
+			while (waited > (max = maxAcquireWaitNanos.get())) {
+				if (maxAcquireWaitNanos.compareAndSet(max, waited)) {
+					break;
+				}
+			}
+		}
+	}
+
+	private PooledConnection openConnectionIfAllowed() throws SQLException {
+		while (true) {
+			int opened = openConnections.get();
+			if (opened >= POOL_SIZE) {
+				return null;
+			}
+
+			if (openConnections.compareAndSet(opened, opened + 1)) {
+				break;
+			}
+		}
+
+		try {
+			return new PooledConnection(DriverManager.getConnection(this.URL, this.USER, this.password),
+					STATEMENT_CACHE_SIZE);
+		} catch (SQLException e) {
+			openConnections.decrementAndGet();
+			throw new SQLException("Access error occured while connectiong to database: " + this.URL + " with user: "
+					+ this.USER, e);
+		}
+	}
+
+	private PooledConnection openConnection() throws SQLException {
+		PooledConnection connection = openConnectionIfAllowed();
+		if (connection == null) {
+			throw new SQLException("The connection pool is full.");
+		}
+
+		return connection;
+	}
+
+	private void release(PooledConnection connection, boolean isBroken) {
+		if (!isBroken) {
+			connection.markReturned();
+			if (idleConnections.offer(connection)) {
+				return;
+			}
+		}
+
+		connection.close();
+		openConnections.decrementAndGet();
+	}
+
+	private static void setParameters(PreparedStatement preparedStatement, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; i++) {
+			preparedStatement.setObject(i + 1, params[i]);
+		}
+	}
+
+	private static boolean isConnectionError(SQLException e) {
+		String sqlState = e.getSQLState();
+		return sqlState != null && sqlState.startsWith(CONNECTION_ERROR_STATE);
+	}
+
+	/**
+	 * Work executed on a pooled connection.
+	 */
+	private interface Operation<T> {
+
+		T execute(PooledConnection connection) throws SQLException;
+	}
+}
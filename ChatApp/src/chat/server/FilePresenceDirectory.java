@@ -0,0 +1,106 @@
+package chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Presence directory kept in a directory shared by the nodes, used to run a
+ * cluster on one machine without a distributed store. Every connected user
+ * is a file named after the user which contains the id of the node. Creating
+ * the file fails if it exists, so a user is claimed by one node only.
+ *
+ * A lookup reads the file system, so the directory is meant for tests and
+ * small clusters. Releasing a user is not atomic with the check of its
+ * owner, which is safe as long as a node releases only its own users.
+ */
+class FilePresenceDirectory implements PresenceDirectory {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Path directory;
+
+	/**
+	 * @throws IOException
+	 *             If the directory can not be created.
+	 */
+	FilePresenceDirectory(File directory) throws IOException {
+		this.directory = directory.toPath();
+		Files.createDirectories(this.directory);
+	}
+
+	@Override
+	public String claim(String username, String nodeId) throws IOException {
+		Path file = fileOf(username);
+		while (true) {
+			try {
+				Files.write(file, nodeId.getBytes(UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				return null;
+			} catch (FileAlreadyExistsException e) {
+				String owner = read(file);
+				if (owner != null) {
+					// A node which restarted may find its own user.
+					return owner.equals(nodeId) ? null : owner;
+				}
+
+				// The owner released the user in the meantime.
+			}
+		}
+	}
+
+	@Override
+	public void release(String username, String nodeId) throws IOException {
+		Path file = fileOf(username);
+		if (nodeId.equals(read(file))) {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Override
+	public String lookup(String username) throws IOException {
+		String owner = read(fileOf(username));
+		// An empty file is being claimed right now.
+		return owner == null || owner.isEmpty() ? null : owner;
+	}
+
+	@Override
+	public void releaseAll(String nodeId) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				if (nodeId.equals(read(file))) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the file of the user. The name is the hex of the UTF-8 bytes of
+	 * the username, so any username is a valid file name on every platform.
+	 */
+	private Path fileOf(String username) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : username.getBytes(UTF_8)) {
+			name.append(String.format("%02x", b & 0xFF));
+		}
+
+		return directory.resolve(name.append(".node").toString());
+	}
+
+	/**
+	 * Returns the content of the file, or null if it does not exist.
+	 */
+	private static String read(Path file) throws IOException {
+		try {
+			return new String(Files.readAllBytes(file), UTF_8);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+}
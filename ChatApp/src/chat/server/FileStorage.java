@@ -0,0 +1,627 @@
+package chat.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.util.Logger;
+
+/**
+ * Storage kept in append-only files, used to run the server without a
+ * database server. The users are written to users.log and loaded in memory
+ * when the store is opened. A changed password is appended as a new record
+ * of the user, which replaces the earlier one when the file is loaded.
+ * Logins, logouts and messages are appended to events.log and read back only
+ * for the history. The mailboxes of the offline users are appended to
+ * mailbox.log, with a record for every stored message and for every
+ * delivery, and loaded in memory when the store is opened.
+ * 
+ * Every record is a single line of tab separated fields. A record torn by a
+ * crash is skipped when the files are read.
+ * 
+ * The store is configured with the system properties:
+ * <ul>
+ * <li>chat.storage.dir - directory of the files (default chat-data)</li>
+ * <li>chat.storage.fsync - "true" to force every write to the disk before
+ * returning (default false)</li>
+ * </ul>
+ */
+public class FileStorage implements Storage {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final boolean FSYNC = Boolean.getBoolean("chat.storage.fsync");
+
+	// SQL state used for a username which is already registered.
+	private static final String DUPLICATE_KEY_STATE = "23000";
+
+	private static final String CONNECTION_RECORD = "C";
+	private static final String LOGOUT_RECORD = "L";
+	private static final String MESSAGE_RECORD = "M";
+	private static final String OFFLINE_MESSAGE_RECORD = "O";
+	private static final String DELIVERED_RECORD = "D";
+
+	private final File directory;
+
+	// The users and the writers are guarded by the lock.
+	private final Map<String, UserRecord> usersByName = new HashMap<>();
+	private final Map<Integer, String> usernamesById = new HashMap<>();
+	private int lastUserId;
+	private FileOutputStream usersFile;
+	private Writer usersWriter;
+	private FileOutputStream eventsFile;
+	private Writer eventsWriter;
+	// The waiting messages by the id of their recipient, guarded by the lock.
+	private final Map<Integer, List<StoredOfflineMessage>> mailboxes = new HashMap<>();
+	private long lastOfflineMessageId;
+	private FileOutputStream mailboxFile;
+	private Writer mailboxWriter;
+	// Lock used instead of synchronized, so virtual threads are not pinned.
+	private final ReentrantLock lock = new ReentrantLock();
+
+	public FileStorage(File directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public void open() throws SQLException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new SQLException("Unable to create the storage directory: " + directory.getAbsolutePath());
+		}
+
+		File users = new File(directory, "users.log");
+		File events = new File(directory, "events.log");
+		File mailbox = new File(directory, "mailbox.log");
+		lock.lock();
+		try {
+			loadUsers(users);
+			loadMailboxes(mailbox);
+			usersFile = openForAppend(users);
+			usersWriter = new BufferedWriter(new OutputStreamWriter(usersFile, UTF_8));
+			eventsFile = openForAppend(events);
+			eventsWriter = new BufferedWriter(new OutputStreamWriter(eventsFile, UTF_8));
+			mailboxFile = openForAppend(mailbox);
+			mailboxWriter = new BufferedWriter(new OutputStreamWriter(mailboxFile, UTF_8));
+		} catch (IOException e) {
+			close();
+			throw new SQLException("Unable to open the storage in: " + directory.getAbsolutePath(), e);
+		} finally {
+			lock.unlock();
+		}
+
+		Logger.info("Using file storage.", "directory", directory.getAbsolutePath(), "users", usersByName.size());
+	}
+
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closeWriter(usersWriter);
+			closeWriter(eventsWriter);
+			closeWriter(mailboxWriter);
+			usersWriter = null;
+			eventsWriter = null;
+			mailboxWriter = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int insertUser(String username, String passwordHash) throws SQLException {
+		lock.lock();
+		try {
+			if (usersByName.containsKey(username)) {
+				throw new SQLException("The username is already registered: " + username, DUPLICATE_KEY_STATE);
+			}
+
+			int id = lastUserId + 1;
+			append(usersWriter, usersFile, Collections.singletonList(
+					record(String.valueOf(id), username, passwordHash)));
+			lastUserId = id;
+			usersByName.put(username, new UserRecord(id, passwordHash));
+			usernamesById.put(id, username);
+			return id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public UserCredentials findCredentials(String username) throws SQLException {
+		lock.lock();
+		try {
+			UserRecord user = usersByName.get(username);
+			return user == null ? null : new UserCredentials(user.id, user.passwordHash);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void updatePassword(int userId, String passwordHash) throws SQLException {
+		lock.lock();
+		try {
+			String username = usernamesById.get(userId);
+			if (username == null) {
+				throw new SQLException("There is no registered user with id: " + userId);
+			}
+
+			append(usersWriter, usersFile, Collections.singletonList(
+					record(String.valueOf(userId), username, passwordHash)));
+			usersByName.put(username, new UserRecord(userId, passwordHash));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Integer findUserId(String username) throws SQLException {
+		lock.lock();
+		try {
+			UserRecord user = usersByName.get(username);
+			return user == null ? null : user.id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String findUsername(int userId) throws SQLException {
+		lock.lock();
+		try {
+			return usernamesById.get(userId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Map<String, Integer> findUserIds(Collection<String> usernames) throws SQLException {
+		Map<String, Integer> ids = new HashMap<>();
+		lock.lock();
+		try {
+			for (String username : usernames) {
+				UserRecord user = usersByName.get(username);
+				if (user != null) {
+					ids.put(username, user.id);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		return ids;
+	}
+
+	@Override
+	public void insertSessions(List<SessionRecord> sessions) throws SQLException {
+		List<String> records = new ArrayList<>(sessions.size());
+		for (SessionRecord session : sessions) {
+			records.add(record(session.isLogin() ? CONNECTION_RECORD : LOGOUT_RECORD,
+					String.valueOf(session.getDate().getTime()), String.valueOf(session.getUserId()),
+					session.getIp()));
+		}
+
+		appendEvents(records);
+	}
+
+	@Override
+	public void insertMessages(List<MessageRecord> messages) throws SQLException {
+		List<String> records = new ArrayList<>(messages.size());
+		for (MessageRecord message : messages) {
+			records.add(record(MESSAGE_RECORD, String.valueOf(message.getDate().getTime()),
+					String.valueOf(message.getSenderId()), String.valueOf(message.getRecipientId()),
+					message.getText()));
+		}
+
+		appendEvents(records);
+	}
+
+	@Override
+	public void insertOfflineMessage(MessageRecord message) throws SQLException {
+		lock.lock();
+		try {
+			long id = lastOfflineMessageId + 1;
+			append(mailboxWriter, mailboxFile, Collections.singletonList(record(OFFLINE_MESSAGE_RECORD,
+					String.valueOf(id), String.valueOf(message.getDate().getTime()),
+					String.valueOf(message.getSenderId()), String.valueOf(message.getRecipientId()),
+					message.getText())));
+			lastOfflineMessageId = id;
+			addToMailbox(new StoredOfflineMessage(id, message.getDate().getTime(), message.getSenderId(),
+					message.getRecipientId(), message.getText()));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<OfflineMessage> readOfflineMessages(int recipientId, long afterId, int limit) throws SQLException {
+		lock.lock();
+		try {
+			List<OfflineMessage> messages = new ArrayList<>();
+			List<StoredOfflineMessage> mailbox = mailboxes.get(recipientId);
+			if (mailbox == null) {
+				return messages;
+			}
+
+			for (StoredOfflineMessage message : mailbox) {
+				if (messages.size() == limit) {
+					break;
+				}
+
+				String sender = usernamesById.get(message.senderId);
+				if (message.id > afterId && sender != null) {
+					messages.add(new OfflineMessage(message.id, sender, message.text, new Date(message.time)));
+				}
+			}
+
+			return messages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteOfflineMessages(int recipientId, long lastId) throws SQLException {
+		lock.lock();
+		try {
+			append(mailboxWriter, mailboxFile, Collections.singletonList(
+					record(DELIVERED_RECORD, String.valueOf(recipientId), String.valueOf(lastId))));
+			removeFromMailbox(recipientId, lastId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void readHistory(Collection<String> usernames, Date from, Date to, int limit, HistoryHandler handler)
+			throws SQLException {
+		Set<Integer> userIds = null;
+		if (usernames != null) {
+			userIds = new HashSet<>(findUserIds(usernames).values());
+		}
+
+		lock.lock();
+		try {
+			// Make the events written so far visible to the reader.
+			if (eventsWriter != null) {
+				eventsWriter.flush();
+			}
+		} catch (IOException e) {
+			throw new SQLException("Unable to write the events file.", e);
+		} finally {
+			lock.unlock();
+		}
+
+		long fromTime = from == null ? Long.MIN_VALUE : from.getTime();
+		long toTime = to == null ? Long.MAX_VALUE : to.getTime();
+		List<HistoryEntry> entries = new ArrayList<>();
+		File events = new File(directory, "events.log");
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(events), UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = parse(line);
+				try {
+					if (fields.length == 4
+							&& (fields[0].equals(CONNECTION_RECORD) || fields[0].equals(LOGOUT_RECORD))) {
+						String type = fields[0].equals(CONNECTION_RECORD) ? HistoryHandler.LOGIN
+								: HistoryHandler.LOGOUT;
+						addEntry(entries, userIds, fromTime, toTime, Long.parseLong(fields[1]),
+								Integer.parseInt(fields[2]), type, fields[3]);
+					} else if (fields.length == 5 && fields[0].equals(MESSAGE_RECORD)) {
+						long time = Long.parseLong(fields[1]);
+						addEntry(entries, userIds, fromTime, toTime, time, Integer.parseInt(fields[2]),
+								HistoryHandler.SENT, fields[4]);
+						addEntry(entries, userIds, fromTime, toTime, time, Integer.parseInt(fields[3]),
+								HistoryHandler.RECEIVED, fields[4]);
+					}
+				} catch (NumberFormatException numberFormatException) {
+					// A torn record. Skip it.
+				}
+			}
+		} catch (FileNotFoundException e) {
+			return;
+		} catch (IOException e) {
+			throw new SQLException("Unable to read the events file.", e);
+		}
+
+		// Messages are appended in batches, so the file is only roughly
+		// ordered by date. The sort is stable and keeps the file order for
+		// equal dates.
+		Collections.sort(entries, new Comparator<HistoryEntry>() {
+
+			@Override
+			public int compare(HistoryEntry first, HistoryEntry second) {
+				return Long.compare(first.time, second.time);
+			}
+		});
+
+		// The page ends after the limit, but with all entries of its last date.
+		for (int i = 0; i < entries.size(); i++) {
+			HistoryEntry entry = entries.get(i);
+			if (i >= limit && entry.time != entries.get(i - 1).time) {
+				break;
+			}
+
+			String username = findUsername(entry.userId);
+			if (username != null) {
+				handler.entry(new Date(entry.time), username, entry.type, entry.text);
+			}
+		}
+	}
+
+	private void addEntry(List<HistoryEntry> entries, Set<Integer> userIds, long fromTime, long toTime, long time,
+			int userId, String type, String text) {
+		if (time < fromTime || time > toTime || (userIds != null && !userIds.contains(userId))) {
+			return;
+		}
+
+		entries.add(new HistoryEntry(time, userId, type, text));
+	}
+
+	private void appendEvents(List<String> records) throws SQLException {
+		lock.lock();
+		try {
+			append(eventsWriter, eventsFile, records);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the records and flushes them to the file. Must be called while
+	 * holding the lock.
+	 */
+	private void append(Writer writer, FileOutputStream file, List<String> records) throws SQLException {
+		if (writer == null) {
+			throw new SQLException("The storage is closed.");
+		}
+
+		try {
+			for (String record : records) {
+				writer.write(record);
+				writer.write('\n');
+			}
+
+			writer.flush();
+			if (FSYNC) {
+				file.getChannel().force(false);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Unable to write to the storage in: " + directory.getAbsolutePath(), e);
+		}
+	}
+
+	private void loadUsers(File users) throws IOException {
+		if (!users.exists()) {
+			return;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(users), UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = parse(line);
+				if (fields.length != 3) {
+					// A torn record. Skip it.
+					continue;
+				}
+
+				int id;
+				try {
+					id = Integer.parseInt(fields[0]);
+				} catch (NumberFormatException numberFormatException) {
+					continue;
+				}
+
+				usersByName.put(fields[1], new UserRecord(id, fields[2]));
+				usernamesById.put(id, fields[1]);
+				lastUserId = Math.max(lastUserId, id);
+			}
+		}
+	}
+
+	/**
+	 * Replays the mailbox file. Must be called while holding the lock.
+	 */
+	private void loadMailboxes(File mailbox) throws IOException {
+		if (!mailbox.exists()) {
+			return;
+		}
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(mailbox), UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = parse(line);
+				try {
+					if (fields.length == 6 && fields[0].equals(OFFLINE_MESSAGE_RECORD)) {
+						StoredOfflineMessage message = new StoredOfflineMessage(Long.parseLong(fields[1]),
+								Long.parseLong(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+								fields[5]);
+						addToMailbox(message);
+						lastOfflineMessageId = Math.max(lastOfflineMessageId, message.id);
+					} else if (fields.length == 3 && fields[0].equals(DELIVERED_RECORD)) {
+						removeFromMailbox(Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+					}
+				} catch (NumberFormatException numberFormatException) {
+					// A torn record. Skip it.
+				}
+			}
+		}
+	}
+
+	private void addToMailbox(StoredOfflineMessage message) {
+		List<StoredOfflineMessage> mailbox = mailboxes.get(message.recipientId);
+		if (mailbox == null) {
+			mailbox = new ArrayList<>();
+			mailboxes.put(message.recipientId, mailbox);
+		}
+
+		mailbox.add(message);
+	}
+
+	/**
+	 * Removes the delivered messages. The messages of a mailbox are ordered by
+	 * their ids, so they are removed from the front.
+	 */
+	private void removeFromMailbox(int recipientId, long lastId) {
+		List<StoredOfflineMessage> mailbox = mailboxes.get(recipientId);
+		if (mailbox == null) {
+			return;
+		}
+
+		int delivered = 0;
+		while (delivered < mailbox.size() && mailbox.get(delivered).id <= lastId) {
+			delivered++;
+		}
+
+		mailbox.subList(0, delivered).clear();
+		if (mailbox.isEmpty()) {
+			mailboxes.remove(recipientId);
+		}
+	}
+
+	/**
+	 * Opens a file for appending. If the last record of the file was torn by
+	 * a crash, it is terminated, so the next record starts on a new line.
+	 */
+	private static FileOutputStream openForAppend(File file) throws IOException {
+		if (file.length() > 0) {
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+				randomAccessFile.seek(file.length() - 1);
+				if (randomAccessFile.read() != '\n') {
+					randomAccessFile.write('\n');
+				}
+			}
+		}
+
+		return new FileOutputStream(file, true);
+	}
+
+	private static void closeWriter(Writer writer) {
+		if (writer == null) {
+			return;
+		}
+
+		try {
+			writer.close();
+		} catch (IOException e) {
+			Logger.warn("Unable to close the storage file.", e);
+		}
+	}
+
+	private static String record(String... fields) {
+		StringBuilder record = new StringBuilder();
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				record.append('\t');
+			}
+
+			escape(record, fields[i]);
+		}
+
+		return record.toString();
+	}
+
+	private static void escape(StringBuilder builder, String field) {
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '\\') {
+				builder.append("\\\\");
+			} else if (c == '\t') {
+				builder.append("\\t");
+			} else if (c == '\n') {
+				builder.append("\\n");
+			} else if (c == '\r') {
+				builder.append("\\r");
+			} else {
+				builder.append(c);
+			}
+		}
+	}
+
+	private static String[] parse(String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\t') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\\' && i + 1 < line.length()) {
+				char escaped = line.charAt(++i);
+				field.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+			} else {
+				field.append(c);
+			}
+		}
+
+		fields.add(field.toString());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	private static class UserRecord {
+
+		private final int id;
+		private final String passwordHash;
+
+		UserRecord(int id, String passwordHash) {
+			this.id = id;
+			this.passwordHash = passwordHash;
+		}
+	}
+
+	private static class HistoryEntry {
+
+		private final long time;
+		private final int userId;
+		private final String type;
+		private final String text;
+
+		HistoryEntry(long time, int userId, String type, String text) {
+			this.time = time;
+			this.userId = userId;
+			this.type = type;
+			this.text = text;
+		}
+	}
+
+	private static class StoredOfflineMessage {
+
+		private final long id;
+		private final long time;
+		private final int senderId;
+		private final int recipientId;
+		private final String text;
+
+		StoredOfflineMessage(long id, long time, int senderId, int recipientId, String text) {
+			this.id = id;
+			this.time = time;
+			this.senderId = senderId;
+			this.recipientId = recipientId;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+
+/**
+ * Splits the bytes read from a non-blocking channel into frames. Every frame
+ * is passed on as an array with the system code, the text and the optional
+ * argument, whatever the protocol of the connection is.
+ */
+interface FrameDecoder {
+
+	/**
+	 * Consumes all remaining bytes of the buffer and adds every completed
+	 * frame to the given queue.
+	 *
+	 * @param buffer
+	 *            Buffer in read mode.
+	 * @param frames
+	 *            Queue for the completed frames.
+	 * @return The number of completed frames.
+	 * @throws IOException
+	 *             If the client sent invalid data.
+	 */
+	int decode(ByteBuffer buffer, Queue<String[]> frames) throws IOException;
+}
@@ -0,0 +1,31 @@
+package chat.server;
+
+import java.sql.SQLException;
+import java.util.Date;
+
+/**
+ * Receives the entries of the server history read from the storage.
+ */
+public interface HistoryHandler {
+
+	String LOGIN = "login";
+	String LOGOUT = "logout";
+	String SENT = "sent";
+	String RECEIVED = "received";
+
+	/**
+	 * Handles one history entry.
+	 * 
+	 * @param date
+	 *            The time of the event.
+	 * @param username
+	 *            The user the entry belongs to.
+	 * @param type
+	 *            One of LOGIN, LOGOUT, SENT or RECEIVED.
+	 * @param text
+	 *            The ip address for logins and logouts, the text for
+	 *            messages.
+	 * @throws SQLException
+	 */
+	void entry(Date date, String username, String type, String text) throws SQLException;
+}
@@ -0,0 +1,437 @@
+package chat.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import chat.util.Logger;
+
+/**
+ * Storage kept in the MySQL database of the server. The statements are
+ * executed through the connection pool of DBConnector. The schema is created
+ * and upgraded by SchemaMigrator when the storage is opened, and the plans of
+ * the history queries are checked for full table scans.
+ */
+public class JdbcStorage implements Storage {
+
+	// Maximum number of usernames resolved with one query.
+	private static final int USERNAME_QUERY_CHUNK = 1000;
+
+	private static final String INSERT_USER = "INSERT INTO users (`username`, `password`) VALUES (?, ?)";
+	private static final String UPDATE_PASSWORD = "UPDATE users SET `password` = ? WHERE id_users = ?";
+	private static final String INSERT_CONNECTION = "INSERT INTO connections (`id_user`, `ip`, `date_logged_in`) "
+			+ "VALUES (?, ?, ?)";
+	private static final String INSERT_LOGOUT = "INSERT INTO logouts (`id_user_logout`, `ip`, `date_logged_out`) "
+			+ "VALUES (?, ?, ?)";
+	private static final String INSERT_MESSAGE = "INSERT INTO messages (`text`, `date`, `sender`, `recipient`) "
+			+ "VALUES (?, ?, ?, ?)";
+	private static final String INSERT_OFFLINE_MESSAGE = "INSERT INTO offline_messages (`recipient`, `sender`, "
+			+ "`text`, `date`) VALUES (?, ?, ?, ?)";
+	private static final String SELECT_OFFLINE_MESSAGES = "SELECT o.id_offline_messages, u.username, o.text, o.date "
+			+ "FROM offline_messages o JOIN users u ON o.sender = u.id_users "
+			+ "WHERE o.recipient = ? AND o.id_offline_messages > ? ORDER BY o.id_offline_messages LIMIT ?";
+	private static final String DELETE_OFFLINE_MESSAGES = "DELETE FROM offline_messages "
+			+ "WHERE recipient = ? AND id_offline_messages <= ?";
+	// The tables read for the history.
+	private static final HistorySource[] HISTORY_SOURCES = new HistorySource[] {
+			new HistorySource("connections", "date_logged_in", "id_user", HistoryHandler.LOGIN, "ip"),
+			new HistorySource("messages", "date", "sender", HistoryHandler.SENT, "text"),
+			new HistorySource("messages", "date", "recipient", HistoryHandler.RECEIVED, "text"),
+			new HistorySource("logouts", "date_logged_out", "id_user_logout", HistoryHandler.LOGOUT, "ip") };
+	// Page size used for checking the plans of the history queries.
+	private static final int EXPLAINED_LIMIT = 50;
+	// Small tables are read whole whatever the indexes are.
+	private static final long MIN_SCAN_WARNING_ROWS = 1000;
+	// MySQL Connector/J streams the rows one by one only with this fetch
+	// size. Otherwise the driver reads the whole result into memory first.
+	private static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
+	private final DBConnector dbConnector;
+
+	public JdbcStorage(DBConnector dbConnector) {
+		this.dbConnector = dbConnector;
+	}
+
+	public DBConnector getDbConnector() {
+		return dbConnector;
+	}
+
+	@Override
+	public void open() throws SQLException {
+		dbConnector.connect();
+		new SchemaMigrator(dbConnector).migrate();
+		checkHistoryQueries();
+	}
+
+	@Override
+	public void close() {
+		dbConnector.close();
+	}
+
+	@Override
+	public int insertUser(String username, String passwordHash) throws SQLException {
+		return dbConnector.insertReturningKey(INSERT_USER, new Object[] { username, passwordHash });
+	}
+
+	@Override
+	public UserCredentials findCredentials(String username) throws SQLException {
+		String sql = "SELECT id_users, password FROM users WHERE username=?";
+		return dbConnector.select(sql, new Object[] { username }, new ResultSetHandler<UserCredentials>() {
+
+			@Override
+			public UserCredentials handle(ResultSet resultSet) throws SQLException {
+				if (resultSet.next()) {
+					return new UserCredentials(resultSet.getInt("id_users"), resultSet.getString("password"));
+				}
+
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void updatePassword(int userId, String passwordHash) throws SQLException {
+		dbConnector.update(UPDATE_PASSWORD, new Object[] { passwordHash, userId });
+	}
+
+	@Override
+	public Integer findUserId(String username) throws SQLException {
+		String sql = "SELECT id_users FROM users WHERE username=?";
+		return dbConnector.select(sql, new Object[] { username }, new ResultSetHandler<Integer>() {
+
+			@Override
+			public Integer handle(ResultSet resultSet) throws SQLException {
+				return resultSet.next() ? resultSet.getInt("id_users") : null;
+			}
+		});
+	}
+
+	@Override
+	public String findUsername(int userId) throws SQLException {
+		String sql = "SELECT username FROM users WHERE id_users=?";
+		return dbConnector.select(sql, new Object[] { userId }, new ResultSetHandler<String>() {
+
+			@Override
+			public String handle(ResultSet resultSet) throws SQLException {
+				return resultSet.next() ? resultSet.getString("username") : null;
+			}
+		});
+	}
+
+	@Override
+	public Map<String, Integer> findUserIds(Collection<String> usernames) throws SQLException {
+		final Map<String, Integer> ids = new HashMap<>();
+		List<String> names = new ArrayList<>(usernames);
+		for (int from = 0; from < names.size(); from += USERNAME_QUERY_CHUNK) {
+			List<String> chunk = names.subList(from, Math.min(from + USERNAME_QUERY_CHUNK, names.size()));
+			String sql = "SELECT id_users, username FROM users WHERE username IN (" + placeholders(chunk.size())
+					+ ")";
+			dbConnector.select(sql, chunk.toArray(), new ResultSetHandler<Void>() {
+
+				@Override
+				public Void handle(ResultSet resultSet) throws SQLException {
+					while (resultSet.next()) {
+						ids.put(resultSet.getString("username"), resultSet.getInt("id_users"));
+					}
+
+					return null;
+				}
+			});
+		}
+
+		return ids;
+	}
+
+	@Override
+	public void insertSessions(List<SessionRecord> sessions) throws SQLException {
+		List<Object[]> logins = new ArrayList<>();
+		List<Object[]> logouts = new ArrayList<>();
+		for (SessionRecord session : sessions) {
+			Object[] params = new Object[] { session.getUserId(), session.getIp(), session.getDate() };
+			if (session.isLogin()) {
+				logins.add(params);
+			} else {
+				logouts.add(params);
+			}
+		}
+
+		if (!logins.isEmpty()) {
+			dbConnector.insertBatch(INSERT_CONNECTION, logins);
+		}
+
+		if (!logouts.isEmpty()) {
+			dbConnector.insertBatch(INSERT_LOGOUT, logouts);
+		}
+	}
+
+	@Override
+	public void insertMessages(List<MessageRecord> messages) throws SQLException {
+		List<Object[]> params = new ArrayList<>(messages.size());
+		for (MessageRecord message : messages) {
+			params.add(new Object[] { message.getText(), message.getDate(), message.getSenderId(),
+					message.getRecipientId() });
+		}
+
+		dbConnector.insertBatch(INSERT_MESSAGE, params);
+	}
+
+	@Override
+	public void insertOfflineMessage(MessageRecord message) throws SQLException {
+		dbConnector.insert(INSERT_OFFLINE_MESSAGE, new Object[] { message.getRecipientId(), message.getSenderId(),
+				message.getText(), message.getDate() });
+	}
+
+	@Override
+	public List<OfflineMessage> readOfflineMessages(int recipientId, long afterId, int limit) throws SQLException {
+		return dbConnector.select(SELECT_OFFLINE_MESSAGES, new Object[] { recipientId, afterId, limit },
+				new ResultSetHandler<List<OfflineMessage>>() {
+
+					@Override
+					public List<OfflineMessage> handle(ResultSet resultSet) throws SQLException {
+						List<OfflineMessage> messages = new ArrayList<>();
+						while (resultSet.next()) {
+							messages.add(new OfflineMessage(resultSet.getLong("id_offline_messages"),
+									resultSet.getString("username"), resultSet.getString("text"),
+									resultSet.getTimestamp("date")));
+						}
+
+						return messages;
+					}
+				});
+	}
+
+	@Override
+	public void deleteOfflineMessages(int recipientId, long lastId) throws SQLException {
+		dbConnector.update(DELETE_OFFLINE_MESSAGES, new Object[] { recipientId, lastId });
+	}
+
+	/**
+	 * Reads a page of the history with one streamed query. The entries of
+	 * the last date read may be cut by the limits of the tables, so they are
+	 * held back and read again completely with a second query for that date.
+	 */
+	@Override
+	public void readHistory(Collection<String> usernames, Date from, Date to, final int limit,
+			final HistoryHandler handler) throws SQLException {
+		Collection<Integer> userIds = null;
+		if (usernames != null) {
+			userIds = findUserIds(usernames).values();
+			if (userIds.isEmpty()) {
+				return;
+			}
+		}
+
+		List<Object> params = new ArrayList<>();
+		String sql = historyQuery(userIds, from, to, null, limit, params);
+		Date lastDate = dbConnector.select(sql, params.toArray(), STREAMING_FETCH_SIZE, new ResultSetHandler<Date>() {
+
+			@Override
+			public Date handle(ResultSet resultSet) throws SQLException {
+				List<HistoryRow> lastDateRows = new ArrayList<>();
+				int rows = 0;
+				while (resultSet.next()) {
+					HistoryRow row = new HistoryRow(resultSet);
+					if (!lastDateRows.isEmpty() && lastDateRows.get(0).date.getTime() != row.date.getTime()) {
+						for (HistoryRow earlierRow : lastDateRows) {
+							earlierRow.passTo(handler);
+						}
+
+						lastDateRows.clear();
+					}
+
+					lastDateRows.add(row);
+					rows++;
+				}
+
+				if (rows < limit) {
+					// No table reached its limit, so nothing was cut.
+					for (HistoryRow lastDateRow : lastDateRows) {
+						lastDateRow.passTo(handler);
+					}
+
+					return null;
+				}
+
+				return lastDateRows.get(0).date;
+			}
+		});
+
+		if (lastDate == null) {
+			return;
+		}
+
+		params.clear();
+		sql = historyQuery(userIds, from, to, lastDate, 0, params);
+		dbConnector.select(sql, params.toArray(), STREAMING_FETCH_SIZE, new ResultSetHandler<Void>() {
+
+			@Override
+			public Void handle(ResultSet resultSet) throws SQLException {
+				while (resultSet.next()) {
+					new HistoryRow(resultSet).passTo(handler);
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Asks MySQL how it runs the history queries and warns about every table
+	 * it would read whole. Such a query reads the full table for every page,
+	 * which usually means an index is missing.
+	 */
+	private void checkHistoryQueries() throws SQLException {
+		Date now = new Date();
+		List<Object> params = new ArrayList<>();
+		String allUsers = historyQuery(null, now, now, null, EXPLAINED_LIMIT, params);
+		explainHistoryQuery("full history", allUsers, params);
+
+		params.clear();
+		String oneUser = historyQuery(Collections.singletonList(0), now, now, null, EXPLAINED_LIMIT, params);
+		explainHistoryQuery("user history", oneUser, params);
+	}
+
+	private void explainHistoryQuery(final String name, String sql, List<Object> params) throws SQLException {
+		dbConnector.select("EXPLAIN " + sql, params.toArray(), new ResultSetHandler<Void>() {
+
+			@Override
+			public Void handle(ResultSet resultSet) throws SQLException {
+				while (resultSet.next()) {
+					String table = resultSet.getString("table");
+					long rows = resultSet.getLong("rows");
+					// Derived tables are named like <derived2> and are read
+					// whole by design.
+					if ("ALL".equals(resultSet.getString("type")) && table != null && !table.startsWith("<")
+							&& rows >= MIN_SCAN_WARNING_ROWS) {
+						Logger.warn("The history query reads a whole table. Check the indexes of the table.",
+								"query", name, "table", table, "rows", rows);
+					}
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Builds the query of a history page. Every table is filtered, ordered
+	 * and limited on its own, so it is read in the order of its date and
+	 * stops after the limit. Only the selected rows are joined with the
+	 * users for their names.
+	 * 
+	 * @param userIds
+	 *            The users to read the history for, or null for all users.
+	 * @param date
+	 *            The only date to read, or null to read the period.
+	 * @param limit
+	 *            The maximum number of rows, or 0 for all rows.
+	 * @param params
+	 *            Receives the parameters of the query.
+	 */
+	private static String historyQuery(Collection<Integer> userIds, Date from, Date to, Date date, int limit,
+			List<Object> params) {
+		StringBuilder sql = new StringBuilder("SELECT r.date, u.username, r.type, r.text FROM (");
+		for (int i = 0; i < HISTORY_SOURCES.length; i++) {
+			HistorySource source = HISTORY_SOURCES[i];
+			if (i > 0) {
+				sql.append(" UNION ALL ");
+			}
+
+			sql.append("(SELECT ").append(source.dateColumn).append(" AS date, ").append(source.userColumn)
+					.append(" AS id_user, '").append(source.type).append("' AS type, ").append(source.textColumn)
+					.append(" AS text FROM ").append(source.table).append(" WHERE 1 = 1");
+			if (userIds != null) {
+				sql.append(" AND ").append(source.userColumn).append(" IN (").append(placeholders(userIds.size()))
+						.append(")");
+				params.addAll(userIds);
+			}
+
+			if (date != null) {
+				sql.append(" AND ").append(source.dateColumn).append(" = ?");
+				params.add(date);
+			} else {
+				if (from != null) {
+					sql.append(" AND ").append(source.dateColumn).append(" >= ?");
+					params.add(from);
+				}
+
+				if (to != null) {
+					sql.append(" AND ").append(source.dateColumn).append(" <= ?");
+					params.add(to);
+				}
+			}
+
+			if (limit > 0) {
+				sql.append(" ORDER BY ").append(source.dateColumn).append(" LIMIT ?");
+				params.add(limit);
+			}
+
+			sql.append(")");
+		}
+
+		sql.append(") AS r JOIN users u ON r.id_user = u.id_users ORDER BY r.date");
+		if (limit > 0) {
+			sql.append(" LIMIT ?");
+			params.add(limit);
+		}
+
+		return sql.toString();
+	}
+
+	private static String placeholders(int count) {
+		StringBuilder placeholders = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			placeholders.append(i == 0 ? "?" : ", ?");
+		}
+
+		return placeholders.toString();
+	}
+
+	/**
+	 * A table read for the history and the columns mapped to the entries.
+	 */
+	private static class HistorySource {
+
+		private final String table;
+		private final String dateColumn;
+		private final String userColumn;
+		private final String type;
+		private final String textColumn;
+
+		HistorySource(String table, String dateColumn, String userColumn, String type, String textColumn) {
+			this.table = table;
+			this.dateColumn = dateColumn;
+			this.userColumn = userColumn;
+			this.type = type;
+			this.textColumn = textColumn;
+		}
+	}
+
+	/**
+	 * A history entry held back until it is known to be complete.
+	 */
+	private static class HistoryRow {
+
+		private final Date date;
+		private final String username;
+		private final String type;
+		private final String text;
+
+		HistoryRow(ResultSet resultSet) throws SQLException {
+			this.date = resultSet.getTimestamp("date");
+			this.username = resultSet.getString("username");
+			this.type = resultSet.getString("type");
+			this.text = resultSet.getString("text");
+		}
+
+		void passTo(HistoryHandler handler) throws SQLException {
+			handler.entry(date, username, type, text);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Queue;
+
+import chat.util.SystemCode;
+
+/**
+ * Splits the bytes read from a client into frames of the line based
+ * protocol. A frame starts with a system code line, followed by a text line
+ * and, for register, login and regular messages, a third line with the
+ * password or the recipient. Logout and session token frames consist only of
+ * the system code. Join and leave frames consist of the system code and the
+ * name of the room. Resume frames carry the username and the session token.
+ * 
+ * Known system codes are returned as the constants of SystemCode and a
+ * recipient equal to the previous one is returned as the same string, so
+ * relaying a message allocates only its text and the frame.
+ */
+class LineFrameDecoder implements FrameDecoder {
+
+	// Lines longer than this are considered as malicious input.
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private static final String[] SYSTEM_CODES = new String[] { SystemCode.REGULAR_MESSAGE, SystemCode.LOGOUT,
+			SystemCode.LOGIN, SystemCode.REGISTER, SystemCode.DISCONNECT, SystemCode.JOIN_ROOM,
+			SystemCode.LEAVE_ROOM, SystemCode.SESSION_TOKEN, SystemCode.RESUME };
+
+	private final Charset charset;
+
+	private byte[] lineBuffer = new byte[256];
+	private int lineLength;
+
+	private String[] frame = new String[3];
+	private int linesInFrame;
+
+	// The last recipient and its encoded name.
+	private String lastRecipient;
+	private byte[] lastRecipientBytes = new byte[0];
+
+	LineFrameDecoder(Charset charset) {
+		this.charset = charset;
+	}
+
+	@Override
+	public int decode(ByteBuffer buffer, Queue<String[]> frames) throws IOException {
+		int framesDecoded = 0;
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b != '\n') {
+				if (lineLength == MAX_LINE_LENGTH) {
+					throw new IOException("Line exceeds the maximum length of " + MAX_LINE_LENGTH + " bytes.");
+				}
+
+				if (lineLength == lineBuffer.length) {
+					byte[] newBuffer = new byte[Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH)];
+					System.arraycopy(lineBuffer, 0, newBuffer, 0, lineLength);
+					lineBuffer = newBuffer;
+				}
+
+				lineBuffer[lineLength++] = b;
+				continue;
+			}
+
+			// Lines may be terminated with "\r\n" depending on the platform of
+			// the client.
+			int length = lineLength;
+			if (length > 0 && lineBuffer[length - 1] == '\r') {
+				length--;
+			}
+
+			frame[linesInFrame] = toString(length);
+			linesInFrame++;
+			lineLength = 0;
+
+			if (isFrameComplete()) {
+				frames.add(frame);
+				framesDecoded++;
+				frame = new String[3];
+				linesInFrame = 0;
+			}
+		}
+
+		return framesDecoded;
+	}
+
+	/**
+	 * Returns the current line as a string. Reuses the constants for the
+	 * system codes and the previous string for a repeated recipient.
+	 */
+	private String toString(int length) {
+		if (linesInFrame == 0) {
+			for (String systemCode : SYSTEM_CODES) {
+				if (isLineEqual(systemCode, length)) {
+					return systemCode;
+				}
+			}
+		} else if (linesInFrame == 2 && frame[0] == SystemCode.REGULAR_MESSAGE) {
+			// The system code is always the constant, see above.
+			if (length == lastRecipientBytes.length && isLineEqual(lastRecipientBytes, length)) {
+				return lastRecipient;
+			}
+
+			lastRecipientBytes = new byte[length];
+			System.arraycopy(lineBuffer, 0, lastRecipientBytes, 0, length);
+			lastRecipient = new String(lineBuffer, 0, length, charset);
+			return lastRecipient;
+		}
+
+		return new String(lineBuffer, 0, length, charset);
+	}
+
+	private boolean isLineEqual(String systemCode, int length) {
+		if (systemCode.length() != length) {
+			return false;
+		}
+
+		for (int i = 0; i < length; i++) {
+			// The system codes are ASCII digits.
+			if (lineBuffer[i] != systemCode.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean isLineEqual(byte[] bytes, int length) {
+		for (int i = 0; i < length; i++) {
+			if (lineBuffer[i] != bytes[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean isFrameComplete() {
+		if (linesInFrame == 1) {
+			return frame[0].equals(SystemCode.LOGOUT) || frame[0].equals(SystemCode.SESSION_TOKEN);
+		}
+
+		if (linesInFrame == 2) {
+			String messageType = frame[0];
+			return !(messageType.equals(SystemCode.REGISTER) || messageType.equals(SystemCode.LOGIN)
+					|| messageType.equals(SystemCode.REGULAR_MESSAGE) || messageType.equals(SystemCode.RESUME));
+		}
+
+		return linesInFrame == 3;
+	}
+}
@@ -1,48 +1,100 @@
-package chat.server;
-
-public class Message {
-
-	private String text;
-	private String recipient;
-	private String sender;
-
-	// Boolean variable used to differ system message, sent from server, from
-	// regular messages.
-	private boolean isSystemMessage;
-	
-	// Variable used to define different system messages.
-	private String systemCode;
-
-	public Message(String text, String recipient, String sender, String systemCode) {
-		this(text, recipient, sender);
-		this.systemCode = systemCode;
-		this.isSystemMessage = true;
-	}
-	
-	public Message(String text, String recipient, String sender) {
-		this.text = text;
-		this.recipient = recipient;
-		this.sender = sender;
-		this.isSystemMessage = false;
-	}
-
-	public boolean getIsSystemMessage() {
-		return this.isSystemMessage;
-	}
-
-	public String getMessageText() {
-		return this.text;
-	}
-
-	public String getRecipient() {
-		return this.recipient;
-	}
-
-	public String getSender() {
-		return this.sender;
-	}
-
-	public String getSystemCode() {
-		return this.systemCode;
-	}
+package chat.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * A message dispatched by the server. Messages are mutable and are recycled
+ * by the thread which obtained them, so relaying a message from a client does
+ * not allocate a new instance. The dispatcher never keeps a message after
+ * the dispatching call returns.
+ */
+public class Message {
+
+	// Dispatching is synchronous, so a thread needs only a few free messages.
+	private static final int MAX_FREE_MESSAGES = 4;
+
+	private static final ThreadLocal<ArrayDeque<Message>> FREE_MESSAGES = new ThreadLocal<ArrayDeque<Message>>() {
+
+		@Override
+		protected ArrayDeque<Message> initialValue() {
+			return new ArrayDeque<>(MAX_FREE_MESSAGES);
+		}
+	};
+
+	private String text;
+	private String recipient;
+	private String sender;
+
+	// Boolean variable used to differ system message, sent from server, from
+	// regular messages.
+	private boolean isSystemMessage;
+	
+	// Variable used to define different system messages.
+	private String systemCode;
+
+	public Message(String text, String recipient, String sender, String systemCode) {
+		this(text, recipient, sender);
+		this.systemCode = systemCode;
+		this.isSystemMessage = true;
+	}
+	
+	public Message(String text, String recipient, String sender) {
+		this.text = text;
+		this.recipient = recipient;
+		this.sender = sender;
+		this.isSystemMessage = false;
+	}
+
+	/**
+	 * Returns a regular message, reusing a message recycled by the current
+	 * thread if there is one.
+	 */
+	public static Message obtain(String text, String recipient, String sender) {
+		Message message = FREE_MESSAGES.get().poll();
+		if (message == null) {
+			return new Message(text, recipient, sender);
+		}
+
+		message.text = text;
+		message.recipient = recipient;
+		message.sender = sender;
+		return message;
+	}
+
+	/**
+	 * Returns the message to the free messages of the current thread. The
+	 * message must not be used afterwards.
+	 */
+	public void recycle() {
+		this.text = null;
+		this.recipient = null;
+		this.sender = null;
+		this.systemCode = null;
+		this.isSystemMessage = false;
+
+		ArrayDeque<Message> freeMessages = FREE_MESSAGES.get();
+		if (freeMessages.size() < MAX_FREE_MESSAGES) {
+			freeMessages.push(this);
+		}
+	}
+
+	public boolean getIsSystemMessage() {
+		return this.isSystemMessage;
+	}
+
+	public String getMessageText() {
+		return this.text;
+	}
+
+	public String getRecipient() {
+		return this.recipient;
+	}
+
+	public String getSender() {
+		return this.sender;
+	}
+
+	public String getSystemCode() {
+		return this.systemCode;
+	}
 }
\ No newline at end of file
@@ -1,49 +1,262 @@
-package chat.server;
-
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-public class MessageDispatcher {
-
-	private Server server;
-	private ExecutorService executorService;
-
-	private boolean keepRunning;
-
-	public MessageDispatcher(Server server) {
-		this.server = server;
-		this.keepRunning = true;
-		initializeExecutor();
-	}
-
-	/**
-	 * Adds a message to the queue.
-	 * 
-	 * @param message
-	 *            The message to be added.
-	 */
-	public synchronized boolean addMessageToQueue(Message message) {
-		if (keepRunning) {
-			MessageSender messageSender = new MessageSender(message, server);
-			executorService.execute(messageSender);
-			return true;
-		}
-
-		return false;
-	}
-
-	void shutdown() {
-		// Set keepRunning to false so it is not possible to add more messages in the queue.
-		this.keepRunning = false;
-		this.executorService.shutdown();
-	}
-
-	/**
-	 * Initialize the thread pool responsible for sending message to the
-	 * clients.
-	 */
-	private void initializeExecutor() {
-		int numberOfThread = 10;
-		this.executorService = Executors.newFixedThreadPool(numberOfThread);
-	}
-}
\ No newline at end of file
+package chat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import chat.util.VirtualThreads;
+
+/**
+ * Dispatches the messages to their recipients and runs the background work
+ * of the selector based engine on a pool of threads. The tasks wait in a
+ * bounded queue. When it is full the thread submitting the task runs it,
+ * which slows down the reader that produced it until the pool catches up.
+ * The event loops of the selector based engine never run a task themselves,
+ * they stop reading from the connection instead and submit the task again
+ * later.
+ *
+ * The pool is tuned with the system properties:
+ * <ul>
+ * <li>chat.dispatcher.threads - number of threads (default 10)</li>
+ * <li>chat.dispatcher.queueCapacity - tasks waiting for a thread (default
+ * 10000)</li>
+ * </ul>
+ */
+public class MessageDispatcher {
+
+	private static final int THREADS = Integer.getInteger("chat.dispatcher.threads", 10);
+	private static final int QUEUE_CAPACITY = Integer.getInteger("chat.dispatcher.queueCapacity", 10000);
+
+	// Thrown by the pool when all threads are busy and the queue is full.
+	// Without a stack trace, as it is thrown often under load.
+	private static final RejectedExecutionException SATURATED = new RejectedExecutionException(
+			"The dispatcher is saturated.") {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+	};
+
+	private final Server server;
+	private MessageSender messageSender;
+	private ExecutorService executorService;
+
+	// Volatile instead of synchronized methods, so virtual threads adding
+	// messages are never pinned to their carrier thread.
+	private volatile boolean keepRunning;
+
+	public MessageDispatcher(Server server, ServerEngine engine) {
+		this.server = server;
+		this.messageSender = new MessageSender(server);
+		this.keepRunning = true;
+		initializeExecutor(engine);
+	}
+
+	/**
+	 * Adds a message to the outbound queue of the recipient. The message is
+	 * queued by the calling thread, so messages dispatched by one thread to
+	 * one recipient keep their order. The message is not used after the call
+	 * returns, so the caller may recycle it.
+	 * 
+	 * @param message
+	 *            The message to be added.
+	 * @return False if the dispatcher has been shut down, true otherwise.
+	 */
+	public boolean addMessageToQueue(Message message) {
+		if (!keepRunning) {
+			return false;
+		}
+
+		messageSender.send(message);
+		return true;
+	}
+
+	/**
+	 * Adds a message for all logged in users to their outbound queues. The
+	 * message is encoded once and the same bytes are queued for every user.
+	 * The message is not used after the call returns.
+	 * 
+	 * @param message
+	 *            The message to be added. Its recipient is ignored.
+	 * @return False if the dispatcher has been shut down, true otherwise.
+	 */
+	public boolean addBroadcastToQueue(Message message) {
+		if (!keepRunning) {
+			return false;
+		}
+
+		messageSender.sendToAll(message);
+		return true;
+	}
+
+	/**
+	 * Adds a message forwarded by another node of the cluster to the outbound
+	 * queue of the recipient. The message is not forwarded again, a recipient
+	 * who is not connected to this node gets it at the next login.
+	 * 
+	 * @param message
+	 *            The message to be added.
+	 * @return False if the dispatcher has been shut down, true otherwise.
+	 */
+	boolean addForwardedMessageToQueue(Message message) {
+		if (!keepRunning) {
+			return false;
+		}
+
+		messageSender.sendForwarded(message);
+		return true;
+	}
+
+	/**
+	 * Adds a message to /all forwarded by another node of the cluster to the
+	 * outbound queues of the users of this node.
+	 * 
+	 * @param message
+	 *            The message to be added. Its recipient is ignored.
+	 * @return False if the dispatcher has been shut down, true otherwise.
+	 */
+	boolean addForwardedBroadcastToQueue(Message message) {
+		if (!keepRunning) {
+			return false;
+		}
+
+		messageSender.sendToAll(message.getSender(), message.getMessageText(), false);
+		return true;
+	}
+
+	/**
+	 * Adds a message for the members of a room to their outbound queues. The
+	 * message is encoded once and the same bytes are queued for every member.
+	 * The message is not used after the call returns.
+	 * 
+	 * @param room
+	 *            The room the message is sent to.
+	 * @param message
+	 *            The message to be added. Its recipient is the room name.
+	 * @return False if the dispatcher has been shut down, true otherwise.
+	 */
+	boolean addRoomMessageToQueue(Room room, Message message) {
+		if (!keepRunning) {
+			return false;
+		}
+
+		messageSender.sendToRoom(room, message);
+		return true;
+	}
+
+	/**
+	 * Executes a task on the thread pool of the dispatcher. When all threads
+	 * are busy and the queue is full the task runs on the calling thread.
+	 * 
+	 * @param task
+	 *            The task to be executed.
+	 * @return False if the dispatcher has been shut down, true otherwise.
+	 */
+	boolean execute(Runnable task) {
+		if (!keepRunning) {
+			return false;
+		}
+
+		try {
+			executorService.execute(task);
+			return true;
+		} catch (RejectedExecutionException rejectedExecutionException) {
+			if (rejectedExecutionException != SATURATED) {
+				// The executor was shut down after keepRunning was checked.
+				return false;
+			}
+		}
+
+		// All threads are busy and the queue is full. Run the task on the
+		// calling thread.
+		task.run();
+		return true;
+	}
+
+	/**
+	 * Executes a task on the thread pool of the dispatcher, but never on the
+	 * calling thread. Used by the event loops of the selector based engine,
+	 * which must not block.
+	 * 
+	 * @param task
+	 *            The task to be executed.
+	 * @return False if all threads are busy and the queue is full, or if the
+	 *         dispatcher has been shut down. True if the task was accepted.
+	 */
+	boolean tryExecute(Runnable task) {
+		if (!keepRunning) {
+			return false;
+		}
+
+		try {
+			executorService.execute(task);
+			return true;
+		} catch (RejectedExecutionException rejectedExecutionException) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a thread. Always 0 for the
+	 * virtual engine, which starts a thread for every task.
+	 */
+	int getQueueDepth() {
+		if (executorService instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executorService).getQueue().size();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Returns the approximate number of threads running a task, or -1 if the
+	 * executor does not track its threads.
+	 */
+	int getActiveThreads() {
+		if (executorService instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executorService).getActiveCount();
+		}
+
+		return -1;
+	}
+
+	void shutdown() {
+		// Set keepRunning to false so it is not possible to add more messages in the queue.
+		this.keepRunning = false;
+		this.executorService.shutdown();
+	}
+
+	/**
+	 * Initialize the thread pool responsible for the background work of the
+	 * dispatcher. The virtual engine starts a new virtual thread for every
+	 * task instead. The other engines use a fixed number of platform threads
+	 * and a bounded queue. When the queue is full the task is rejected with
+	 * SATURATED, and the caller decides whether to run it itself.
+	 */
+	private void initializeExecutor(ServerEngine engine) {
+		if (engine == ServerEngine.VIRTUAL) {
+			this.executorService = VirtualThreads.newThreadPerTaskExecutor("MessageDispatcher-");
+			return;
+		}
+
+		this.executorService = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new RejectedExecutionHandler() {
+
+					@Override
+					public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+						if (executor.isShutdown()) {
+							throw new RejectedExecutionException("The dispatcher has been shut down.");
+						}
+
+						server.getMetrics().getDispatcherSaturated().mark();
+						throw SATURATED;
+					}
+				});
+	}
+}
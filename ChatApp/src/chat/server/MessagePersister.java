@@ -0,0 +1,321 @@
+package chat.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.util.Logger;
+
+/**
+ * Stores the delivered messages and the logins and logouts of the users in
+ * the background. The rows are collected in a bounded queue and written to
+ * the storage in batches once enough rows are collected or the oldest row has
+ * waited long enough. Neither delivery to the recipients nor a login waits
+ * for the storage, so a storm of logins after a network failure costs one
+ * insert per batch instead of one per login.
+ * 
+ * The stage is tuned with the system properties:
+ * <ul>
+ * <li>chat.persistence.queueCapacity - maximum number of waiting messages and
+ * sessions (default 10000)</li>
+ * <li>chat.persistence.batchSize - rows inserted with one batch (default
+ * 500)</li>
+ * <li>chat.persistence.flushIntervalMs - maximum time a message waits before
+ * it is inserted (default 200)</li>
+ * <li>chat.persistence.overflow - "block" to make the senders wait up to
+ * chat.persistence.blockTimeoutMs (default 1000) when the queue is full or
+ * "drop" to discard the message immediately (default block)</li>
+ * </ul>
+ */
+public class MessagePersister extends Thread {
+
+	private static final int QUEUE_CAPACITY = Integer.getInteger("chat.persistence.queueCapacity", 10000);
+	private static final int BATCH_SIZE = Integer.getInteger("chat.persistence.batchSize", 500);
+	private static final long FLUSH_INTERVAL = Long.getLong("chat.persistence.flushIntervalMs", 200);
+	private static final long BLOCK_TIMEOUT = Long.getLong("chat.persistence.blockTimeoutMs", 1000);
+	private static final boolean DROP_ON_OVERFLOW = "drop"
+			.equalsIgnoreCase(System.getProperty("chat.persistence.overflow", "block"));
+
+	private final Storage storage;
+	private final UserIdCache userIdCache;
+	private final BlockingQueue<StoredRows> queue;
+
+	private final AtomicLong storedMessages = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+	private final AtomicLong failedMessages = new AtomicLong();
+	private final AtomicLong storedSessions = new AtomicLong();
+	private final AtomicLong failedSessions = new AtomicLong();
+
+	private volatile boolean keepRunning;
+
+	public MessagePersister(Storage storage, UserIdCache userIdCache) {
+		super("MessagePersister");
+		this.storage = storage;
+		this.userIdCache = userIdCache;
+		this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		this.keepRunning = true;
+	}
+
+	/**
+	 * Queues a message for storing.
+	 * 
+	 * @param sender
+	 *            Username of the sender.
+	 * @param recipients
+	 *            Usernames of the recipients. One row is stored per recipient.
+	 * @param text
+	 *            The text of the message.
+	 * @return False if the queue is full and the message was discarded.
+	 */
+	public boolean store(String sender, List<String> recipients, String text) {
+		return store(new StoredMessage(sender, null, recipients, text, System.currentTimeMillis()));
+	}
+
+	public boolean store(String sender, String recipient, String text) {
+		return store(new StoredMessage(sender, recipient, null, text, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Queues a login or a logout of a user for storing.
+	 * 
+	 * @return False if the queue is full and the record was discarded.
+	 */
+	public boolean store(SessionRecord session) {
+		return store(new StoredSession(session));
+	}
+
+	private boolean store(StoredRows rows) {
+		if (!keepRunning) {
+			droppedMessages.addAndGet(rows.getRows());
+			return false;
+		}
+
+		boolean isQueued;
+		if (DROP_ON_OVERFLOW) {
+			isQueued = queue.offer(rows);
+		} else {
+			try {
+				isQueued = queue.offer(rows, BLOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException interruptedException) {
+				Thread.currentThread().interrupt();
+				isQueued = false;
+			}
+		}
+
+		if (!isQueued) {
+			droppedMessages.addAndGet(rows.getRows());
+		}
+
+		return isQueued;
+	}
+
+	/**
+	 * Returns the number of messages and sessions waiting to be stored.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getStoredMessages() {
+		return storedMessages.get();
+	}
+
+	/**
+	 * Returns the number of rows of messages and sessions dropped because the
+	 * queue was full.
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	public long getFailedMessages() {
+		return failedMessages.get();
+	}
+
+	public long getStoredSessions() {
+		return storedSessions.get();
+	}
+
+	public long getFailedSessions() {
+		return failedSessions.get();
+	}
+
+	@Override
+	public void run() {
+		List<StoredRows> batch = new ArrayList<>();
+		int rows = 0;
+		long deadline = 0;
+
+		while (keepRunning || !queue.isEmpty() || !batch.isEmpty()) {
+			try {
+				long wait = batch.isEmpty() ? FLUSH_INTERVAL : deadline - System.currentTimeMillis();
+				StoredRows next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+				while (next != null) {
+					if (batch.isEmpty()) {
+						deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+					}
+
+					batch.add(next);
+					rows += next.getRows();
+					next = rows < BATCH_SIZE ? queue.poll() : null;
+				}
+			} catch (InterruptedException interruptedException) {
+				// Shutdown was requested. The remaining messages are stored
+				// before the thread terminates.
+			}
+
+			boolean isDue = rows >= BATCH_SIZE || System.currentTimeMillis() >= deadline || !keepRunning;
+			if (!batch.isEmpty() && isDue) {
+				flush(batch);
+				batch.clear();
+				rows = 0;
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting messages and waits until the queued ones are stored.
+	 */
+	void shutdown() {
+		keepRunning = false;
+		interrupt();
+		try {
+			join(FLUSH_INTERVAL + 5000);
+		} catch (InterruptedException interruptedException) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes the messages and the sessions of the batch, each kind with one
+	 * call to the storage.
+	 */
+	private void flush(List<StoredRows> batch) {
+		List<StoredMessage> messages = new ArrayList<>(batch.size());
+		List<SessionRecord> sessions = new ArrayList<>();
+		int messageRows = 0;
+		for (StoredRows rows : batch) {
+			if (rows instanceof StoredSession) {
+				sessions.add(((StoredSession) rows).session);
+			} else {
+				messages.add((StoredMessage) rows);
+				messageRows += rows.getRows();
+			}
+		}
+
+		if (!messages.isEmpty()) {
+			flushMessages(messages, messageRows);
+		}
+
+		if (!sessions.isEmpty()) {
+			try {
+				storage.insertSessions(sessions);
+				storedSessions.addAndGet(sessions.size());
+			} catch (SQLException e) {
+				failedSessions.addAndGet(sessions.size());
+				Logger.error("Unable to store logins and logouts.", e, "rows", sessions.size());
+			}
+		}
+	}
+
+	private void flushMessages(List<StoredMessage> batch, int rows) {
+		try {
+			Set<String> usernames = new HashSet<>();
+			for (StoredMessage message : batch) {
+				usernames.add(message.sender);
+				if (message.recipient != null) {
+					usernames.add(message.recipient);
+				} else {
+					usernames.addAll(message.recipients);
+				}
+			}
+
+			Map<String, Integer> userIds = userIdCache.getIds(usernames);
+
+			List<MessageRecord> records = new ArrayList<>(rows);
+			for (StoredMessage message : batch) {
+				int sender = getUserId(userIds, message.sender);
+				Date date = new Date(message.time);
+				if (message.recipient != null) {
+					records.add(new MessageRecord(sender, getUserId(userIds, message.recipient), message.text, date));
+					continue;
+				}
+
+				for (String recipient : message.recipients) {
+					records.add(new MessageRecord(sender, getUserId(userIds, recipient), message.text, date));
+				}
+			}
+
+			storage.insertMessages(records);
+			storedMessages.addAndGet(rows);
+		} catch (SQLException e) {
+			failedMessages.addAndGet(rows);
+			Logger.error("Unable to store messages.", e, "rows", rows);
+		}
+	}
+
+	private int getUserId(Map<String, Integer> userIds, String username) {
+		Integer id = userIds.get(username);
+		return id == null ? 0 : id;
+	}
+
+	/**
+	 * An entry of the queue, which becomes one or more rows.
+	 */
+	private abstract static class StoredRows {
+
+		abstract int getRows();
+	}
+
+	/**
+	 * A queued message. A message sent to one user keeps the recipient
+	 * directly, so it is a single allocation.
+	 */
+	private static class StoredMessage extends StoredRows {
+
+		private final String sender;
+		private final String recipient;
+		private final List<String> recipients;
+		private final String text;
+		private final long time;
+
+		StoredMessage(String sender, String recipient, List<String> recipients, String text, long time) {
+			this.sender = sender;
+			this.recipient = recipient;
+			this.recipients = recipients;
+			this.text = text;
+			this.time = time;
+		}
+
+		@Override
+		int getRows() {
+			return recipient != null ? 1 : recipients.size();
+		}
+	}
+
+	/**
+	 * A queued login or logout.
+	 */
+	private static class StoredSession extends StoredRows {
+
+		private final SessionRecord session;
+
+		StoredSession(SessionRecord session) {
+			this.session = session;
+		}
+
+		@Override
+		int getRows() {
+			return 1;
+		}
+	}
+}
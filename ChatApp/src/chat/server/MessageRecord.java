@@ -0,0 +1,38 @@
+package chat.server;
+
+import java.util.Date;
+
+/**
+ * A delivered message as it is stored. One record is stored for every
+ * recipient of the message.
+ */
+public class MessageRecord {
+
+	private final int senderId;
+	private final int recipientId;
+	private final String text;
+	private final Date date;
+
+	public MessageRecord(int senderId, int recipientId, String text, Date date) {
+		this.senderId = senderId;
+		this.recipientId = recipientId;
+		this.text = text;
+		this.date = date;
+	}
+
+	public int getSenderId() {
+		return senderId;
+	}
+
+	public int getRecipientId() {
+		return recipientId;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+}
@@ -1,179 +1,295 @@
-package chat.server;
-
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.Date;
-
-import chat.util.Logger;
-
-public class MessageSender implements Runnable {
-
-	private Message message;
-	private Server server;
-
-	public MessageSender(Message message, Server server) {
-		this.message = message;
-		this.server = server;
-	}
-
-	@Override
-	public void run() {
-		if (message.getIsSystemMessage()) {
-			try {
-				String text = message.getMessageText();
-				String recipient = message.getRecipient();
-				sendSystemMessage(text, recipient);
-			} catch (IOException e) {
-				System.err.println("Sending message to the client failed. Posible reasons - "
-						+ " client has been disconnected or output stream was closed." + Logger.printError(e));
-			}
-		} else {
-			try {
-				sendMessage(message);
-			} catch (IOException e) {
-				System.err.println("Sending message to the client failed. Posible reasons - "
-						+ " client has been disconnected or output stream was closed." + Logger.printError(e));
-			} catch (SQLException e) {
-				System.err.println("Unable to connect to the database." + Logger.printError(e));
-			}
-		}
-	}
-
-	/**
-	 * Sends a message to the client. Depending on the message type calls proper
-	 * method to send the message.
-	 * 
-	 * @param message
-	 *            A message to be sent.
-	 * @throws IOException
-	 * @throws SQLException 
-	 */
-	private void sendMessage(Message message) throws IOException, SQLException {
-		String sender = message.getSender();
-		String messageText = message.getMessageText();
-		String recipient = message.getRecipient();
-
-		try {
-			sendMessageToOneUser(recipient, messageText, sender);
-		} catch (IOException e) {
-			throw new IOException("Error occured while sending message to client.", e);
-		}
-
-	}
-
-	/**
-	 * A method used to send system message to only client.
-	 * 
-	 * @param recipient
-	 *            The name of the recipient.
-	 * @param textMessage
-	 *            Information message for the client.
-	 * @throws IOException
-	 */
-	private void sendSystemMessage(String textMessage, String recipient) throws IOException {
-		try {
-			ServersideListener client = server.getServersideListener(recipient);
-			if (client == null) {
-				return;
-			}
-
-			BufferedWriter out = client.getOutputStream();
-			if (out == null) {
-				return;
-			}
-
-			out.write(textMessage);
-			out.newLine();
-			out.flush();
-
-			// Inform the user that he has been disconnected. Shut down the
-			// listener and remove it from the collection with all listeners.
-			if (textMessage.equals("disconnect")) {
-				server.stopListener(recipient);
-				ServersideListener listener = server.getServersideListener(recipient);
-				server.removeListener(listener);
-				listener.closeRecourses();
-			}
-		} catch (IOException ioException) {
-			throw new IOException("Unable to send the message to " + recipient, ioException);
-		}
-	}
-
-	/**
-	 * Sends message to one user.
-	 * 
-	 * @param recipient
-	 *            The username of recipient.
-	 * @param messageText
-	 *            The text of the message.
-	 * @param sender
-	 *            Username of sender of the message.
-	 * @throws IOException
-	 * @throws SQLException 
-	 */
-	private void sendMessageToOneUser(String recipient, String messageText, String sender) throws IOException, SQLException {
-		ServersideListener client = server.getServersideListener(recipient);
-
-		if (client == null) {
-			// Recipient was disconnected after last check. Unable to send the
-			// message. Send error message to the sender to inform him what
-			// happened.
-			String errorMessage = recipient + " is not connected.";
-			sendSystemMessage(errorMessage, sender);
-			return;
-		}
-
-		try {
-			BufferedWriter out = client.getOutputStream();
-			if (!sender.equalsIgnoreCase("admin")) {
-				messageText = sender + ": " + messageText;
-				insertMessage(sender, recipient, messageText);
-			}
-
-			out.write(messageText);
-			out.newLine();
-			out.flush();
-
-		} catch (IOException ioException) {
-			// Send message back to the sender to inform that the original message was
-			// not sent.
-			String text = "Failed to send message to: " + recipient;
-			sendMessageToOneUser(sender, text, "admin");
-			throw new IOException("Unable to send the message to: " + recipient, ioException);
-		}
-	}
-
-	private void insertMessage(String sender, String recipient, String text) throws SQLException {
-		String selectUser = "SELECT id_users FROM users WHERE username=?";
-		Object[] params = new Object[] { sender };
-		int userOne = 0;
-		int userTwo = 0;
-		String sql = new String();
-		try {
-			ResultSet resultSet = server.getDbConnector().select(selectUser, params);
-			if (resultSet.next()) {
-				userOne = resultSet.getInt("id_users");
-			}
-			
-			if (sender.equals(recipient)) {
-				userTwo = userOne;
-			} else {
-				params = new Object[] { recipient };
-				resultSet = server.getDbConnector().select(selectUser, params);
-				
-				if (resultSet.next()) {
-					userTwo = resultSet.getInt("id_users");
-				}
-			}
-			
-			sql = "INSERT INTO messages (`text`, `date`, `sender`, `recipient`) VALUES (?, ?, ?, ?)";
-			Date currentDate = new Date();
-			params = new Object[] { text, currentDate, userOne, userTwo };
-			server.getDbConnector().insert(sql, params);
-		} catch (SQLException e) {
-			throw new SQLException("Unable to execute sql query: " + sql, e);
-		}
-	}
-}
+package chat.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import chat.util.Logger;
+
+/**
+ * Delivers messages to the outbound queues of the recipients. Delivery only
+ * queues the message, so it is performed by the thread which dispatched the
+ * message. Messages dispatched by one thread to one recipient are therefore
+ * written in the order they were dispatched. Storing the messages in the
+ * database is left to the message persister.
+ *
+ * In a cluster a message to a user connected to another node is forwarded to
+ * that node and a message to /all is forwarded once to every node. The node
+ * which delivers a message stores it.
+ */
+public class MessageSender {
+
+
+	private Server server;
+
+	public MessageSender(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Sends a message to the client. Depending on the message type calls proper
+	 * method to send the message.
+	 * 
+	 * @param message
+	 *            A message to be sent.
+	 */
+	public void send(Message message) {
+		try {
+			if (message.getIsSystemMessage()) {
+				sendSystemMessage(message.getMessageText(), message.getRecipient());
+			} else {
+				sendMessageToOneUser(message.getRecipient(), message.getMessageText(), message.getSender());
+			}
+		} catch (IOException e) {
+			Logger.warn("Sending message to the client failed. Posible reasons - client has been disconnected, "
+					+ "output stream was closed or too many messages are waiting to be sent.", e, "user",
+					message.getRecipient(), "sender", message.getSender());
+		} catch (RuntimeException e) {
+			// The message is sent on the thread of the sender, which must
+			// keep serving its client.
+			Logger.error("Unexpected error while sending a message.", e, "user", message.getRecipient(), "sender",
+					message.getSender());
+		}
+	}
+
+	/**
+	 * Sends a message to all logged in users except the sender. The text is
+	 * formatted and encoded once and the same encoded message is queued for
+	 * every recipient. The message is queued for storing once for all
+	 * recipients.
+	 * 
+	 * @param message
+	 *            A message to be sent.
+	 */
+	public void sendToAll(Message message) {
+		sendToAll(message.getSender(), message.getMessageText(), true);
+	}
+
+	/**
+	 * Sends a message forwarded by another node to its recipient, if the
+	 * recipient is connected to this node.
+	 * 
+	 * @param message
+	 *            A message to be sent.
+	 */
+	void sendForwarded(Message message) {
+		try {
+			sendMessageToOneUser(message.getRecipient(), message.getMessageText(), message.getSender(), false);
+		} catch (IOException e) {
+			Logger.warn("Sending forwarded message to the client failed.", e, "user", message.getRecipient(),
+					"sender", message.getSender());
+		}
+	}
+
+	/**
+	 * Sends a message to the users of this node except the sender.
+	 * 
+	 * @param isClusterWide
+	 *            True to forward the message to the other nodes of the
+	 *            cluster, false for a message forwarded by another node.
+	 */
+	void sendToAll(String sender, String messageText, boolean isClusterWide) {
+		OutboundMessage outboundMessage = new OutboundMessage(sender + ": " + messageText);
+
+		List<String> recipients = new ArrayList<>();
+		try {
+			queue(outboundMessage, server.getClients(), sender, recipients);
+		} finally {
+			// The outbound queues hold their own references.
+			outboundMessage.release();
+		}
+
+		if (!recipients.isEmpty()) {
+			server.getMessagePersister().store(sender, recipients, outboundMessage.getText());
+		}
+
+		ClusterNode clusterNode = server.getClusterNode();
+		if (isClusterWide && clusterNode != null) {
+			clusterNode.broadcast(sender, messageText);
+		}
+	}
+
+	/**
+	 * Sends a message to the members of a room except the sender. The text is
+	 * formatted and encoded once, like for /all, and is stored once for all
+	 * members it was queued for.
+	 * 
+	 * @param room
+	 *            The room the message is sent to.
+	 * @param message
+	 *            A message to be sent.
+	 */
+	void sendToRoom(Room room, Message message) {
+		String sender = message.getSender();
+		OutboundMessage outboundMessage = new OutboundMessage(
+				room.getName() + " " + sender + ": " + message.getMessageText());
+		room.getMessages().mark();
+		server.getMetrics().getRoomMessages().mark();
+
+		List<String> recipients = new ArrayList<>();
+		try {
+			queue(outboundMessage, Arrays.asList(room.getMembers()), sender, recipients);
+		} finally {
+			outboundMessage.release();
+		}
+
+		if (!recipients.isEmpty()) {
+			server.getMessagePersister().store(sender, recipients, outboundMessage.getText());
+		}
+	}
+
+	/**
+	 * Queues the message for every logged in client except the sender and
+	 * collects the names of the users it was queued for.
+	 */
+	private void queue(OutboundMessage outboundMessage, Collection<ClientConnection> clients, String sender,
+			List<String> recipients) {
+		for (ClientConnection client : clients) {
+			String recipient = client.getUsername();
+			if (recipient == null || recipient.equals(sender)) {
+				// Skip sending the message to the sender.
+				continue;
+			}
+
+			try {
+				client.sendMessageToClient(outboundMessage);
+				recipients.add(recipient);
+			} catch (IOException e) {
+				// Send message back to the sender to inform that the original
+				// message was not sent.
+				String text = "Failed to send message to: " + recipient;
+				try {
+					sendMessageToOneUser(sender, text, "admin");
+				} catch (IOException ioException) {
+					Logger.warn("Sending message to the client failed. Posible reasons - client has been "
+							+ "disconnected or output stream was closed.", ioException, "user", sender);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A method used to send system message to only client.
+	 * 
+	 * @param recipient
+	 *            The name of the recipient.
+	 * @param textMessage
+	 *            Information message for the client.
+	 * @throws IOException
+	 */
+	private void sendSystemMessage(String textMessage, String recipient) throws IOException {
+		try {
+			ClientConnection client = server.getServersideListener(recipient);
+			if (client == null) {
+				return;
+			}
+
+			// Inform the user that he has been disconnected. Shut down the
+			// listener and remove it from the collection with all listeners.
+			if (textMessage.equals("disconnect")) {
+				server.removeListener(client);
+				client.shutdown();
+				return;
+			}
+
+			client.sendMessageToClient(textMessage);
+		} catch (IOException ioException) {
+			throw new IOException("Unable to send the message to " + recipient, ioException);
+		}
+	}
+
+	/**
+	 * Informs the sender of a message that it was not delivered. The notice
+	 * is forwarded if the sender is connected to another node.
+	 */
+	private void notifySender(String sender, String text) throws IOException {
+		ClusterNode clusterNode = server.getClusterNode();
+		if (clusterNode != null && !sender.equalsIgnoreCase("admin") && server.getServersideListener(sender) == null) {
+			clusterNode.forward("admin", sender, text);
+			return;
+		}
+
+		sendSystemMessage(text, sender);
+	}
+
+	/**
+	 * Stores a message in the mailbox of a user who is not connected.
+	 * 
+	 * @return False if the recipient is not registered or the message could
+	 *         not be stored.
+	 */
+	private boolean storeOffline(String recipient, String text, String sender) {
+		try {
+			return server.getOfflineMailbox().store(sender, recipient, text);
+		} catch (SQLException e) {
+			Logger.error("Unable to store the offline message.", e, "user", recipient, "sender", sender);
+			return false;
+		}
+	}
+
+	/**
+	 * Sends message to one user.
+	 * 
+	 * @param recipient
+	 *            The username of recipient.
+	 * @param messageText
+	 *            The text of the message.
+	 * @param sender
+	 *            Username of sender of the message.
+	 * @throws IOException
+	 */
+	private void sendMessageToOneUser(String recipient, String messageText, String sender) throws IOException {
+		sendMessageToOneUser(recipient, messageText, sender, true);
+	}
+
+	/**
+	 * Sends message to one user.
+	 * 
+	 * @param mayForward
+	 *            False for a message forwarded by another node, which is not
+	 *            forwarded again.
+	 * @throws IOException
+	 */
+	private void sendMessageToOneUser(String recipient, String messageText, String sender, boolean mayForward)
+			throws IOException {
+		ClientConnection client = server.getServersideListener(recipient);
+
+		if (client == null) {
+			ClusterNode clusterNode = server.getClusterNode();
+			if (mayForward && clusterNode != null && clusterNode.forward(sender, recipient, messageText)) {
+				return;
+			}
+
+			// The recipient is not connected. Keep the message in the mailbox
+			// of the recipient and tell the sender what happened.
+			String errorMessage = recipient + " is not connected.";
+			if (!sender.equalsIgnoreCase("admin") && storeOffline(recipient, sender + ": " + messageText, sender)) {
+				errorMessage += " The message will be delivered when " + recipient + " logs in.";
+			}
+
+			notifySender(sender, errorMessage);
+			return;
+		}
+
+		try {
+			if (!sender.equalsIgnoreCase("admin")) {
+				messageText = sender + ": " + messageText;
+			}
+
+			client.sendMessageToClient(messageText);
+
+			if (!sender.equalsIgnoreCase("admin")) {
+				server.getMessagePersister().store(sender, recipient, messageText);
+			}
+		} catch (IOException ioException) {
+			// Send message back to the sender to inform that the original message was
+			// not sent.
+			String text = "Failed to send message to: " + recipient;
+			sendMessageToOneUser(sender, text, "admin");
+			throw new IOException("Unable to send the message to: " + recipient, ioException);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts events and their rate. Counting is cheap enough for the message
+ * path even when many threads count at the same time. The rate is computed
+ * from the totals sampled once per second by the metrics of the server.
+ */
+class Meter {
+
+	// One minute of samples plus the one it starts from.
+	private static final int SAMPLES = 61;
+
+	private final LongAdder count = new LongAdder();
+
+	// Ring of the sampled totals, guarded by the lock.
+	private final long[] samples = new long[SAMPLES];
+	private int samplesTaken;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	void mark() {
+		count.increment();
+	}
+
+	void mark(long events) {
+		count.add(events);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Remembers the current total. Called once per second.
+	 */
+	void sample() {
+		long total = count.sum();
+		lock.lock();
+		try {
+			samples[samplesTaken % SAMPLES] = total;
+			samplesTaken++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the average number of events per second during the last
+	 * seconds, or during the time sampled so far if it is shorter.
+	 *
+	 * @param seconds
+	 *            Length of the period, at most 60 seconds.
+	 */
+	double getRate(int seconds) {
+		lock.lock();
+		try {
+			if (samplesTaken < 2) {
+				return 0;
+			}
+
+			int intervals = Math.min(seconds, Math.min(samplesTaken - 1, SAMPLES - 1));
+			long latest = samples[(samplesTaken - 1) % SAMPLES];
+			long earlier = samples[(samplesTaken - 1 - intervals) % SAMPLES];
+			return (latest - earlier) / (double) intervals;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
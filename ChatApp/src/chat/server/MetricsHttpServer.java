@@ -0,0 +1,66 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import chat.util.Logger;
+
+/**
+ * Serves the metrics of the server in the Prometheus text format on
+ * /metrics. Requests are handled by a single thread of the HTTP server, so a
+ * scrape never takes a thread from the chat.
+ */
+class MetricsHttpServer {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer httpServer;
+
+	/**
+	 * Opens the HTTP socket.
+	 *
+	 * @throws IOException
+	 *             If the address can not be bound.
+	 */
+	MetricsHttpServer(final ServerMetrics metrics, InetSocketAddress address) throws IOException {
+		httpServer = HttpServer.create(address, 0);
+		httpServer.createContext("/metrics", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (!exchange.getRequestMethod().equals("GET")) {
+						exchange.sendResponseHeaders(405, -1);
+						return;
+					}
+
+					byte[] body = metrics.formatPrometheus().getBytes(UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+					exchange.sendResponseHeaders(200, body.length);
+					try (OutputStream output = exchange.getResponseBody()) {
+						output.write(body);
+					}
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	void start() {
+		httpServer.start();
+		Logger.info("Metrics are served.", "url", "http://" + httpServer.getAddress().getHostString() + ":"
+				+ httpServer.getAddress().getPort() + "/metrics");
+	}
+
+	void stop() {
+		httpServer.stop(0);
+	}
+}
@@ -0,0 +1,390 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import chat.util.Logger;
+import chat.util.SystemCode;
+
+/**
+ * Connection used by the selector based server engine. Reading and writing is
+ * performed by the event loop that owns the channel. Complete frames are
+ * handed to the message dispatcher, so a slow database call never blocks the
+ * event loop. The frames of one connection are processed one at a time in the
+ * order they were received. When the dispatcher is saturated the event loop
+ * stops reading from the connection until the frames can be handed over.
+ */
+public class NioClientConnection extends ClientConnection {
+
+	// Maximum number of queued messages written with one gathering write.
+	private static final int WRITE_BATCH_SIZE = 64;
+
+	// Marks the end of the frames of a closed connection.
+	private static final String[] CLOSED_FRAME = new String[] { SystemCode.LOGOUT };
+
+	private final SocketChannel channel;
+	private final SelectorEventLoop eventLoop;
+	// Selected by the first byte received from the client.
+	private FrameDecoder decoder;
+
+	private SelectionKey selectionKey;
+	// Set while the frames wait for the dispatcher. Used only by the event
+	// loop thread.
+	private boolean isReadPaused;
+
+	private final Queue<String[]> pendingFrames = new ConcurrentLinkedQueue<>();
+	// Created once and submitted every time frames are waiting.
+	private final Runnable frameProcessor = new Runnable() {
+
+		@Override
+		public void run() {
+			processPendingFrames();
+		}
+	};
+	private final AtomicBoolean isProcessingFrames = new AtomicBoolean();
+	private final AtomicBoolean isClosed = new AtomicBoolean();
+	private final AtomicBoolean isDisconnected = new AtomicBoolean();
+
+	// Messages taken from the outbound queue which are not completely written
+	// yet, with the buffers they are written from. Used only by the event
+	// loop thread.
+	private final OutboundMessage[] batchMessages = new OutboundMessage[WRITE_BATCH_SIZE];
+	private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+	private int batchOffset;
+	private int batchLength;
+
+	private final AtomicBoolean isWriteRequested = new AtomicBoolean();
+	private volatile boolean closeAfterFlush;
+
+	public NioClientConnection(SocketChannel channel, SelectorEventLoop eventLoop,
+			MessageDispatcher messageDispatcher, Storage storage, Server messageServer) {
+		super(messageDispatcher, storage, messageServer);
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+	}
+
+	@Override
+	public String getIP() {
+		return this.channel.socket().getInetAddress().toString();
+	}
+
+	@Override
+	public int getPort() {
+		return this.channel.socket().getPort();
+	}
+
+	@Override
+	boolean isClosed() {
+		return isClosed.get();
+	}
+
+	/**
+	 * Asks the event loop to write the queued messages. The request is sent
+	 * only once until the event loop starts writing.
+	 */
+	@Override
+	void messageQueued() {
+		if (isWriteRequested.compareAndSet(false, true)) {
+			eventLoop.requestWrite(this);
+		}
+	}
+
+	@Override
+	void flushAndClose() {
+		closeAfterFlush = true;
+		eventLoop.requestWrite(this);
+	}
+
+	@Override
+	void closeRecourses() {
+		if (!isClosed.compareAndSet(false, true)) {
+			return;
+		}
+
+		if (selectionKey != null) {
+			selectionKey.cancel();
+		}
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Logger.warn("Unable to close the client channel.", e, "user", getUsername(), "ip", getIP(), "port",
+					getPort());
+		}
+
+		discardOutbound();
+		// The messages taken by the event loop are released by the event
+		// loop itself.
+		eventLoop.requestWrite(this);
+
+		// Logout entry and removing the connection are handled by the
+		// dispatcher after the frames received before closing.
+		addFrame(CLOSED_FRAME);
+	}
+
+	/**
+	 * Registers the channel with the selector of the event loop. Called by the
+	 * event loop thread.
+	 */
+	void register(Selector selector) throws IOException {
+		channel.configureBlocking(false);
+		selectionKey = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Reads the available bytes from the channel. Called by the event loop
+	 * thread.
+	 *
+	 * @param readBuffer
+	 *            Buffer shared by all connections of the event loop.
+	 */
+	void read(ByteBuffer readBuffer) {
+		try {
+			readBuffer.clear();
+			int bytesRead = channel.read(readBuffer);
+			if (bytesRead < 0) {
+				// The client closed the socket.
+				closeRecourses();
+				return;
+			}
+
+			readBuffer.flip();
+			if (decoder == null) {
+				if (!readBuffer.hasRemaining()) {
+					return;
+				}
+
+				decoder = selectDecoder(readBuffer.get(readBuffer.position()));
+			}
+
+			if (decoder.decode(readBuffer, pendingFrames) > 0) {
+				scheduleFrameProcessing();
+			}
+		} catch (IOException ioException) {
+			// Connection lost or the client sent invalid data.
+			Logger.warn("Error occured while reading from the client.", ioException, "user", getUsername(), "ip",
+					getIP(), "port", getPort());
+			closeRecourses();
+		}
+	}
+
+	/**
+	 * Writes as many queued messages as the socket accepts. Several queued
+	 * messages are written with a single gathering write. Called by the event
+	 * loop thread.
+	 */
+	void flushOutbound() {
+		if (isClosed.get()) {
+			releaseWriteBatch();
+			discardOutbound();
+			return;
+		}
+
+		if (selectionKey == null) {
+			return;
+		}
+
+		// Cleared before taking the messages, so a message queued after the
+		// queue is found empty requests a new write.
+		isWriteRequested.set(false);
+
+		try {
+			while (true) {
+				if (batchOffset == batchLength) {
+					fillWriteBatch();
+					if (batchLength == 0) {
+						break;
+					}
+				}
+
+				channel.write(writeBatch, batchOffset, batchLength - batchOffset);
+				int writtenFrom = batchOffset;
+				while (batchOffset < batchLength && !writeBatch[batchOffset].hasRemaining()) {
+					batchMessages[batchOffset].written();
+					batchMessages[batchOffset].release();
+					batchMessages[batchOffset] = null;
+					writeBatch[batchOffset++] = null;
+				}
+
+				if (batchOffset > writtenFrom) {
+					messageServer.getMetrics().getMessagesWritten().mark(batchOffset - writtenFrom);
+				}
+
+				if (batchOffset < batchLength) {
+					// The socket buffer is full. Wait until the channel
+					// becomes writable again.
+					writeStalled();
+					selectionKey.interestOps(readInterest() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+			writeCompleted();
+			selectionKey.interestOps(readInterest());
+			if (closeAfterFlush) {
+				closeRecourses();
+			}
+		} catch (IOException ioException) {
+			Logger.warn("Can not send message to the client.", ioException, "user", getUsername(), "ip", getIP(),
+					"port", getPort());
+			closeRecourses();
+		}
+	}
+
+	/**
+	 * Hands the waiting frames to the dispatcher again and reads from the
+	 * connection again if they were accepted. Called by the event loop
+	 * thread.
+	 *
+	 * @return False if the dispatcher is still saturated.
+	 */
+	boolean resumeFrameProcessing() {
+		if (!scheduleFrameProcessing()) {
+			return false;
+		}
+
+		isReadPaused = false;
+		if (!isClosed.get() && selectionKey != null && selectionKey.isValid()) {
+			selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+		}
+
+		return true;
+	}
+
+	private int readInterest() {
+		return isReadPaused ? 0 : SelectionKey.OP_READ;
+	}
+
+	private void fillWriteBatch() {
+		batchOffset = 0;
+		batchLength = 0;
+
+		boolean isBinary = isBinaryProtocol();
+		OutboundMessage message;
+		while (batchLength < writeBatch.length && (message = outbound.poll()) != null) {
+			batchMessages[batchLength] = message;
+			writeBatch[batchLength++] = message.newBuffer(isBinary);
+		}
+	}
+
+	private void releaseWriteBatch() {
+		while (batchOffset < batchLength) {
+			batchMessages[batchOffset].release();
+			batchMessages[batchOffset] = null;
+			writeBatch[batchOffset++] = null;
+		}
+	}
+
+	private void addFrame(String[] frame) {
+		pendingFrames.add(frame);
+		scheduleFrameProcessing();
+	}
+
+	/**
+	 * Submits the task processing the waiting frames, unless it is running.
+	 * The event loop never runs the task itself. If the dispatcher is
+	 * saturated, the event loop stops reading from the connection and
+	 * submits the task again later.
+	 *
+	 * @return False if the event loop has to submit the task again.
+	 */
+	private boolean scheduleFrameProcessing() {
+		if (!isProcessingFrames.compareAndSet(false, true)) {
+			// Frames are being processed. The new frames will be picked up by
+			// the current task.
+			return true;
+		}
+
+		if (Thread.currentThread() != eventLoop) {
+			if (!messageDispatcher.execute(frameProcessor)) {
+				// MessageDispatcher has been shut down.
+				isProcessingFrames.set(false);
+			}
+
+			return true;
+		}
+
+		if (messageDispatcher.tryExecute(frameProcessor)) {
+			return true;
+		}
+
+		isProcessingFrames.set(false);
+		if (!isReadPaused) {
+			isReadPaused = true;
+			if (!isClosed.get() && selectionKey != null && selectionKey.isValid()) {
+				selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+			}
+
+			eventLoop.deferFrameProcessing(this);
+		}
+
+		return false;
+	}
+
+	private void processPendingFrames() {
+		try {
+			String[] frame;
+			while ((frame = pendingFrames.poll()) != null) {
+				if (frame == CLOSED_FRAME || frame[0].equals(SystemCode.LOGOUT)) {
+					if (frame != CLOSED_FRAME) {
+						// The user logged out, the session ends with the
+						// connection.
+						endSession();
+					}
+
+					disconnect();
+					pendingFrames.clear();
+					return;
+				}
+
+				try {
+					if (!processFrame(frame[0], frame[1], frame[2])) {
+						// Close the channel after the result code is written.
+						// The connection is removed once the channel is closed.
+						flushAndClose();
+						pendingFrames.clear();
+						return;
+					}
+				} catch (IOException ioException) {
+					Logger.warn("Error occured while processing a message.", ioException, "user", getUsername(),
+							"ip", getIP(), "port", getPort());
+					disconnect();
+					return;
+				} catch (SQLException e) {
+					Logger.error("Connection with the database lost.", e, "user", getUsername(), "ip", getIP());
+					disconnect();
+					return;
+				} catch (RuntimeException e) {
+					// A bad frame must not escape the dispatcher task and
+					// leave the connection half processed.
+					Logger.error("Unexpected error while processing a message.", e, "user", getUsername(), "ip",
+							getIP(), "port", getPort());
+					disconnect();
+					pendingFrames.clear();
+					return;
+				}
+			}
+		} finally {
+			isProcessingFrames.set(false);
+		}
+
+		// A frame could have been added after the queue was found empty and
+		// before the flag was cleared.
+		if (!pendingFrames.isEmpty()) {
+			scheduleFrameProcessing();
+		}
+	}
+
+	private void disconnect() {
+		if (isDisconnected.compareAndSet(false, true)) {
+			connectionClosed();
+		}
+	}
+}
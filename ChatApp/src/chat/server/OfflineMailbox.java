@@ -0,0 +1,234 @@
+package chat.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.util.Logger;
+
+/**
+ * Keeps the messages sent to registered users who are not connected and
+ * delivers them when the user logs in. The waiting messages are read from
+ * the storage in batches in the order they were sent. Every batch is queued
+ * to the user as a single outbound message, so it takes one place in the
+ * outbound queue and is written with one write.
+ *
+ * A batch is deleted from the storage with one statement, but only after the
+ * writer of the connection has written it. A batch which is discarded
+ * because the connection dropped stays in the mailbox and is delivered at
+ * the next login. The writers only report the written batches, the deletes
+ * run on a thread of the dispatcher. Batches written just before the server
+ * stops may be delivered once more at the next login.
+ *
+ * The size of the batches is set with the system property
+ * chat.mailbox.batchSize (default 500).
+ */
+class OfflineMailbox {
+
+	private static final int BATCH_SIZE = Integer.getInteger("chat.mailbox.batchSize", 500);
+
+	private final Server server;
+
+	// Batches written to their users and not deleted yet.
+	private final Queue<WrittenBatch> writtenBatches = new ConcurrentLinkedQueue<>();
+	// Created once and submitted every time written batches are waiting.
+	private final Runnable batchRemover = new Runnable() {
+
+		@Override
+		public void run() {
+			removeWrittenBatches();
+		}
+	};
+	private final AtomicBoolean isRemovingBatches = new AtomicBoolean();
+
+	OfflineMailbox(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Stores a message for a user who is not connected. If the user logged in
+	 * while the message was being stored, the mailbox is delivered right away.
+	 *
+	 * @param text
+	 *            The text as it will be written to the recipient.
+	 * @return False if the recipient is not a registered user.
+	 * @throws SQLException
+	 */
+	boolean store(String sender, String recipient, String text) throws SQLException {
+		UserIdCache userIdCache = server.getUserIdCache();
+		Integer recipientId = userIdCache.getId(recipient);
+		Integer senderId = userIdCache.getId(sender);
+		if (recipientId == null || senderId == null) {
+			return false;
+		}
+
+		server.getStorage().insertOfflineMessage(new MessageRecord(senderId, recipientId, text, new Date()));
+		server.getMetrics().getOfflineMessagesStored().mark();
+
+		// The delivery at login may have read the mailbox before the insert.
+		ClientConnection client = server.getServersideListener(recipient);
+		if (client != null) {
+			scheduleDelivery(client);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Delivers the mailbox of a user on a thread of the dispatcher, so the
+	 * connection which logged the user in can go on reading.
+	 */
+	void scheduleDelivery(final ClientConnection client) {
+		server.getMessageDispatcher().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				deliver(client);
+			}
+		});
+	}
+
+	/**
+	 * Queues the waiting messages to the user. They are deleted from the
+	 * mailbox once they are written. Messages which do not fit in the outbound
+	 * queue of the user stay in the mailbox for the next login.
+	 */
+	void deliver(ClientConnection client) {
+		// Also retries a removal the busy dispatcher refused.
+		scheduleBatchRemoval();
+
+		String username = client.getUsername();
+		// Deliveries of the same user are serialized, so a message is never
+		// read by two of them.
+		ReentrantLock lock = client.getMailboxLock();
+		lock.lock();
+		try {
+			Integer userId = server.getUserIdCache().getId(username);
+			if (userId == null) {
+				return;
+			}
+
+			// The batches queued earlier to this connection are still in the
+			// mailbox until they are written.
+			long lastId = client.getMailboxQueuedId();
+			List<OfflineMessage> batch;
+			do {
+				batch = server.getStorage().readOfflineMessages(userId, lastId, BATCH_SIZE);
+				if (batch.isEmpty() || !queue(client, new WrittenBatch(username, userId, batch))) {
+					return;
+				}
+
+				lastId = batch.get(batch.size() - 1).getId();
+				client.setMailboxQueuedId(lastId);
+			} while (batch.size() == BATCH_SIZE);
+		} catch (SQLException e) {
+			Logger.error("Unable to deliver the offline messages.", e, "user", username);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a batch of messages to the user as one outbound message.
+	 *
+	 * @return False if the batch could not be queued.
+	 */
+	private boolean queue(ClientConnection client, final WrittenBatch batch) {
+		List<String> lines = new ArrayList<>(batch.messages.size());
+		for (OfflineMessage message : batch.messages) {
+			lines.add(message.getText());
+		}
+
+		OutboundMessage outboundMessage = new OutboundMessage(lines, new Runnable() {
+
+			@Override
+			public void run() {
+				writtenBatches.add(batch);
+				scheduleBatchRemoval();
+			}
+		});
+		try {
+			client.sendMessageToClient(outboundMessage);
+			return true;
+		} catch (IOException e) {
+			Logger.warn("Unable to deliver the offline messages. They are kept for the next login.", e, "user",
+					client.getUsername());
+			return false;
+		} finally {
+			outboundMessage.release();
+		}
+	}
+
+	/**
+	 * Submits the removal of the written batches, unless it is running. Never
+	 * runs it on the calling thread, which may be an event loop. A removal the
+	 * busy dispatcher refused is submitted again with the next written batch
+	 * or the next delivery.
+	 */
+	private void scheduleBatchRemoval() {
+		if (isRemovingBatches.compareAndSet(false, true) && !server.getMessageDispatcher().tryExecute(batchRemover)) {
+			isRemovingBatches.set(false);
+		}
+	}
+
+	/**
+	 * Deletes the written batches from the mailbox and queues their messages
+	 * for the history.
+	 */
+	private void removeWrittenBatches() {
+		try {
+			WrittenBatch batch;
+			while ((batch = writtenBatches.poll()) != null) {
+				remove(batch);
+			}
+		} finally {
+			isRemovingBatches.set(false);
+		}
+
+		// A batch could have been added after the queue was found empty and
+		// before the flag was cleared.
+		if (!writtenBatches.isEmpty()) {
+			scheduleBatchRemoval();
+		}
+	}
+
+	private void remove(WrittenBatch batch) {
+		try {
+			server.getStorage().deleteOfflineMessages(batch.userId, batch.lastId);
+		} catch (SQLException e) {
+			Logger.error("Unable to delete the delivered offline messages. They are delivered again at the "
+					+ "next login.", e, "user", batch.username, "messages", batch.messages.size());
+			return;
+		}
+
+		server.getMetrics().getOfflineMessagesDelivered().mark(batch.messages.size());
+		MessagePersister messagePersister = server.getMessagePersister();
+		for (OfflineMessage message : batch.messages) {
+			messagePersister.store(message.getSender(), batch.username, message.getText());
+		}
+	}
+
+	/**
+	 * A batch of the mailbox of a user, deleted once it has been written.
+	 */
+	private static class WrittenBatch {
+
+		private final String username;
+		private final int userId;
+		private final List<OfflineMessage> messages;
+		private final long lastId;
+
+		WrittenBatch(String username, int userId, List<OfflineMessage> messages) {
+			this.username = username;
+			this.userId = userId;
+			this.messages = messages;
+			this.lastId = messages.get(messages.size() - 1).getId();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package chat.server;
+
+import java.util.Date;
+
+/**
+ * A message waiting in the mailbox of a user who was not connected when it
+ * was sent.
+ */
+public class OfflineMessage {
+
+	// Increases in the order the messages were stored.
+	private final long id;
+	private final String sender;
+	private final String text;
+	private final Date date;
+
+	public OfflineMessage(long id, String sender, String text, Date date) {
+		this.id = id;
+		this.sender = sender;
+		this.text = text;
+		this.date = date;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+}
@@ -0,0 +1,324 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import chat.util.WireProtocol;
+
+/**
+ * A line encoded once and ready to be written to any number of clients. The
+ * encoded bytes are never modified, so the same instance can be queued for
+ * every recipient of a message sent to all users. Every form of the message
+ * is encoded the first time a client needs it.
+ *
+ * The selector based engine writes the message from a pooled direct buffer.
+ * The buffer is returned to the pool when the last reference to the message
+ * is released. The creator of a message holds the first reference and every
+ * outbound queue holding the message holds one more, so the creator releases
+ * the message once it has been queued for all recipients and the writers
+ * release it once it has been written or discarded.
+ */
+class OutboundMessage {
+
+	// The blocking engine and the clients use the platform defaults.
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	// Space left in front of the text of a binary frame for the frame length,
+	// the opcode and the text length.
+	private static final int FRAME_HEADER_SPACE = 11;
+
+	private static final BufferPool BUFFER_POOL = new BufferPool();
+
+	// Field updaters instead of atomic fields, so a message is a single
+	// allocation.
+	private static final AtomicIntegerFieldUpdater<OutboundMessage> REFERENCES = AtomicIntegerFieldUpdater
+			.newUpdater(OutboundMessage.class, "references");
+	private static final AtomicReferenceFieldUpdater<OutboundMessage, ByteBuffer> BUFFER =
+			AtomicReferenceFieldUpdater.newUpdater(OutboundMessage.class, ByteBuffer.class, "buffer");
+	private static final AtomicReferenceFieldUpdater<OutboundMessage, ByteBuffer> BINARY_BUFFER =
+			AtomicReferenceFieldUpdater.newUpdater(OutboundMessage.class, ByteBuffer.class, "binaryBuffer");
+
+	// Encoders are not thread safe and are expensive to create.
+	private static final ThreadLocal<CharsetEncoder> LINE_ENCODER = new ThreadLocal<CharsetEncoder>() {
+
+		@Override
+		protected CharsetEncoder initialValue() {
+			return newEncoder(CHARSET);
+		}
+	};
+	private static final ThreadLocal<CharsetEncoder> FRAME_ENCODER = new ThreadLocal<CharsetEncoder>() {
+
+		@Override
+		protected CharsetEncoder initialValue() {
+			return newEncoder(WireProtocol.UTF_8);
+		}
+	};
+
+	// Answer of the server to a client asking for the binary protocol.
+	static final OutboundMessage BINARY_HANDSHAKE = new OutboundMessage(
+			new byte[] { (byte) WireProtocol.MAGIC, (byte) WireProtocol.VERSION });
+
+	private final String text;
+	// Permanent messages are never released and their buffers are not
+	// pooled.
+	private final boolean isPermanent;
+	private volatile int references = 1;
+	// The lines of a batch, or null for a single line.
+	private final String[] batchLines;
+	// Told once the message has been written, or null.
+	private final Runnable writtenCallback;
+
+	// Encoded on first use. Concurrent writers may both encode the heap
+	// arrays, which is harmless as the result is the same.
+	private volatile byte[] bytes;
+	private volatile byte[] binaryBytes;
+	private volatile ByteBuffer buffer;
+	private volatile ByteBuffer binaryBuffer;
+
+	OutboundMessage(String text) {
+		this.text = text;
+		this.isPermanent = false;
+		this.batchLines = null;
+		this.writtenCallback = null;
+	}
+
+	/**
+	 * Creates a message of several lines written together, e.g. the waiting
+	 * messages of a user. Clients of the line protocol receive the lines and
+	 * clients of the binary protocol a frame for every line.
+	 *
+	 * @param writtenCallback
+	 *            Run by the writer once the message has been written to the
+	 *            socket, or null. It runs on the writer thread and must not
+	 *            block. A message which is discarded never runs it.
+	 */
+	OutboundMessage(List<String> lines, Runnable writtenCallback) {
+		this.text = String.join(LINE_SEPARATOR, lines);
+		this.isPermanent = false;
+		this.batchLines = lines.toArray(new String[lines.size()]);
+		this.writtenCallback = writtenCallback;
+	}
+
+	/**
+	 * Creates a permanent message which is never written. Used to signal the
+	 * writer of a connection through its queue.
+	 */
+	static OutboundMessage newMarker() {
+		return new OutboundMessage(new byte[0]);
+	}
+
+	/**
+	 * Creates a permanent message written as it is to clients of both
+	 * protocols.
+	 */
+	private OutboundMessage(byte[] rawBytes) {
+		this.text = null;
+		this.isPermanent = true;
+		this.batchLines = null;
+		this.writtenCallback = null;
+		this.bytes = rawBytes;
+		this.binaryBytes = rawBytes;
+
+		ByteBuffer rawBuffer = ByteBuffer.allocateDirect(rawBytes.length);
+		rawBuffer.put(rawBytes);
+		rawBuffer.flip();
+		this.buffer = rawBuffer;
+		this.binaryBuffer = rawBuffer;
+	}
+
+	static BufferPool getBufferPool() {
+		return BUFFER_POOL;
+	}
+
+	String getText() {
+		return this.text;
+	}
+
+	boolean isPermanent() {
+		return this.isPermanent;
+	}
+
+	boolean hasWrittenCallback() {
+		return this.writtenCallback != null;
+	}
+
+	/**
+	 * Called by the writer once the whole message has been written to the
+	 * socket of the client.
+	 */
+	void written() {
+		if (writtenCallback != null) {
+			writtenCallback.run();
+		}
+	}
+
+	/**
+	 * Adds a reference to the message. Called before the message is queued.
+	 */
+	void retain() {
+		if (!isPermanent) {
+			REFERENCES.incrementAndGet(this);
+		}
+	}
+
+	/**
+	 * Removes a reference to the message. The pooled buffers are returned to
+	 * the pool when the last reference is released.
+	 */
+	void release() {
+		if (isPermanent || REFERENCES.decrementAndGet(this) != 0) {
+			return;
+		}
+
+		releaseBuffer(BUFFER);
+		releaseBuffer(BINARY_BUFFER);
+	}
+
+	/**
+	 * Returns the encoded message. The array must not be modified. Used by the
+	 * blocking engine.
+	 *
+	 * @param isBinary
+	 *            True for the binary frame, false for the line including the
+	 *            line separator.
+	 */
+	byte[] getBytes(boolean isBinary) {
+		if (!isBinary) {
+			byte[] line = bytes;
+			if (line == null) {
+				line = (text + LINE_SEPARATOR).getBytes(CHARSET);
+				bytes = line;
+			}
+
+			return line;
+		}
+
+		byte[] frame = binaryBytes;
+		if (frame == null) {
+			frame = batchLines == null ? WireProtocol.encode(WireProtocol.TEXT, text) : encodeFrames();
+			binaryBytes = frame;
+		}
+
+		return frame;
+	}
+
+	/**
+	 * Returns a new buffer over the pooled direct buffer with the encoded
+	 * message. Every writer gets its own buffer, so the position of one writer
+	 * does not affect others. The buffer is valid until the reference held by
+	 * the writer is released.
+	 *
+	 * @param isBinary
+	 *            True for the binary frame, false for the line including the
+	 *            line separator.
+	 */
+	ByteBuffer newBuffer(boolean isBinary) {
+		AtomicReferenceFieldUpdater<OutboundMessage, ByteBuffer> field = isBinary ? BINARY_BUFFER : BUFFER;
+		ByteBuffer encoded = field.get(this);
+		if (encoded == null) {
+			encoded = isBinary ? encodeFrame() : encodeLine();
+			if (!field.compareAndSet(this, null, encoded)) {
+				// Another writer encoded the message first.
+				BUFFER_POOL.release(encoded);
+				encoded = field.get(this);
+			}
+		}
+
+		return encoded.duplicate();
+	}
+
+	private ByteBuffer encodeLine() {
+		CharsetEncoder encoder = LINE_ENCODER.get();
+		int maxLength = maxEncodedLength(encoder, text.length() + LINE_SEPARATOR.length());
+		ByteBuffer line = BUFFER_POOL.acquire(maxLength);
+
+		encoder.reset();
+		encode(encoder, text, line, false);
+		encode(encoder, LINE_SEPARATOR, line, true);
+		encoder.flush(line);
+		line.flip();
+		return line;
+	}
+
+	/**
+	 * Encodes the text of a binary frame right after the space reserved for
+	 * the header. The header is written in front of the text once the length
+	 * of the text is known.
+	 */
+	private ByteBuffer encodeFrame() {
+		if (batchLines != null) {
+			byte[] frames = getBytes(true);
+			ByteBuffer buffer = BUFFER_POOL.acquire(frames.length);
+			buffer.put(frames);
+			buffer.flip();
+			return buffer;
+		}
+
+		CharsetEncoder encoder = FRAME_ENCODER.get();
+		int maxLength = FRAME_HEADER_SPACE + maxEncodedLength(encoder, text.length());
+		ByteBuffer frame = BUFFER_POOL.acquire(maxLength);
+
+		frame.position(FRAME_HEADER_SPACE);
+		encoder.reset();
+		encode(encoder, text, frame, true);
+		encoder.flush(frame);
+
+		int end = frame.position();
+		int textLength = end - FRAME_HEADER_SPACE;
+		int frameLength = 1 + WireProtocol.varintSize(textLength) + textLength;
+		int start = FRAME_HEADER_SPACE - WireProtocol.varintSize(textLength) - 1
+				- WireProtocol.varintSize(frameLength);
+
+		frame.position(start);
+		WireProtocol.writeVarint(frame, frameLength);
+		frame.put((byte) WireProtocol.TEXT);
+		WireProtocol.writeVarint(frame, textLength);
+		frame.limit(end);
+		frame.position(start);
+		return frame;
+	}
+
+	private byte[] encodeFrames() {
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		for (String line : batchLines) {
+			byte[] frame = WireProtocol.encode(WireProtocol.TEXT, line);
+			frames.write(frame, 0, frame.length);
+		}
+
+		return frames.toByteArray();
+	}
+
+	private void releaseBuffer(AtomicReferenceFieldUpdater<OutboundMessage, ByteBuffer> field) {
+		ByteBuffer encoded = field.getAndSet(this, null);
+		if (encoded != null) {
+			BUFFER_POOL.release(encoded);
+		}
+	}
+
+	private static void encode(CharsetEncoder encoder, String chars, ByteBuffer target, boolean endOfInput) {
+		CoderResult result = encoder.encode(CharBuffer.wrap(chars), target, endOfInput);
+		if (result.isOverflow()) {
+			// The buffer is sized for the worst case.
+			throw new IllegalStateException("The encoded message does not fit in its buffer.");
+		}
+	}
+
+	private static int maxEncodedLength(CharsetEncoder encoder, int chars) {
+		return (int) Math.ceil(encoder.maxBytesPerChar() * chars);
+	}
+
+	private static CharsetEncoder newEncoder(Charset charset) {
+		// Same replacement as String.getBytes, used by the blocking engine.
+		return charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+}
@@ -0,0 +1,102 @@
+package chat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Messages waiting to be written to one client. Every queue is bounded and
+ * the queues of all clients together are bounded as well, so clients which
+ * do not read their messages can not exhaust the memory of the server.
+ * Permanent messages, which control the connection, are accepted even when
+ * the queues of all clients are full.
+ *
+ * The limits are set with the system properties:
+ * <ul>
+ * <li>chat.outbound.queueCapacity - messages waiting for one client
+ * (default 1024)</li>
+ * <li>chat.outbound.maxQueuedMessages - messages waiting for all clients
+ * together (default 262144)</li>
+ * </ul>
+ */
+class OutboundQueue {
+
+	private static final int CAPACITY = Integer.getInteger("chat.outbound.queueCapacity", 1024);
+	private static final int MAX_QUEUED_MESSAGES = Integer.getInteger("chat.outbound.maxQueuedMessages", 256 * 1024);
+
+	// Messages in the queues of all clients.
+	private static final AtomicInteger QUEUED_MESSAGES = new AtomicInteger();
+
+	private final BlockingQueue<OutboundMessage> messages = new ArrayBlockingQueue<>(CAPACITY);
+
+	/**
+	 * Returns the number of messages waiting for all clients.
+	 */
+	static int getQueuedMessages() {
+		return QUEUED_MESSAGES.get();
+	}
+
+	/**
+	 * Adds a message to the end of the queue.
+	 *
+	 * @return False if this queue or the queues of all clients are full.
+	 */
+	boolean offer(OutboundMessage message) {
+		if (QUEUED_MESSAGES.incrementAndGet() > MAX_QUEUED_MESSAGES && !message.isPermanent()) {
+			QUEUED_MESSAGES.decrementAndGet();
+			return false;
+		}
+
+		if (!messages.offer(message)) {
+			QUEUED_MESSAGES.decrementAndGet();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes the oldest message, or returns null if the queue is empty.
+	 */
+	OutboundMessage poll() {
+		OutboundMessage message = messages.poll();
+		if (message != null) {
+			QUEUED_MESSAGES.decrementAndGet();
+		}
+
+		return message;
+	}
+
+	/**
+	 * Removes the oldest message, waiting for one if the queue is empty.
+	 *
+	 * @throws InterruptedException
+	 */
+	OutboundMessage take() throws InterruptedException {
+		OutboundMessage message = messages.take();
+		QUEUED_MESSAGES.decrementAndGet();
+		return message;
+	}
+
+	/**
+	 * Removes the oldest message to make room for a new one. Permanent
+	 * messages are never dropped, as the connection does not work without
+	 * them.
+	 *
+	 * @return The dropped message, or null if no message was dropped.
+	 */
+	OutboundMessage dropOldest() {
+		OutboundMessage oldest = messages.peek();
+		if (oldest == null || oldest.isPermanent()) {
+			return null;
+		}
+
+		// The writer may have taken the message in the meantime.
+		if (!messages.remove(oldest)) {
+			return null;
+		}
+
+		QUEUED_MESSAGES.decrementAndGet();
+		return oldest;
+	}
+}
@@ -0,0 +1,36 @@
+package chat.server;
+
+/**
+ * What the server does with a message for a client whose outbound queue is
+ * full, or when the queues of all clients together are full.
+ */
+public enum OverflowPolicy {
+
+	// The oldest waiting message of the client is discarded to make room.
+	DROP_OLDEST,
+
+	// The new message is refused and its sender is told it was not sent.
+	REJECT,
+
+	// The client is disconnected as it does not keep up with its messages.
+	DISCONNECT;
+
+	/**
+	 * Returns the policy with the given name ignoring the case. A dash may be
+	 * used instead of the underscore, e.g. drop-oldest.
+	 *
+	 * @param name
+	 *            Name of the policy.
+	 * @throws IllegalArgumentException
+	 *             If there is no policy with such name.
+	 */
+	public static OverflowPolicy fromName(String name) {
+		for (OverflowPolicy policy : values()) {
+			if (policy.name().equalsIgnoreCase(name.replace('-', '_'))) {
+				return policy;
+			}
+		}
+
+		throw new IllegalArgumentException(name + " is not a valid overflow policy.");
+	}
+}
@@ -0,0 +1,136 @@
+package chat.server;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Hashes the passwords with PBKDF2-HMAC-SHA256 and a random salt for every
+ * user. A hash is stored as pbkdf2-sha256$iterations$salt$hash with the salt
+ * and the hash in Base64, so the number of iterations can be raised later
+ * without breaking the stored passwords.
+ *
+ * Passwords stored by earlier versions as unsalted SHA-256 in lowercase hex
+ * are still verified. They are reported by needsRehash, so they are replaced
+ * with the current form at the next successful login.
+ */
+class PasswordHasher {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final String PREFIX = "pbkdf2-sha256$";
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 256;
+	// Length of a SHA-256 hash in hex, the form used by earlier versions.
+	private static final int LEGACY_HASH_LENGTH = 64;
+
+	private final int iterations;
+	private final SecureRandom random = new SecureRandom();
+
+	PasswordHasher(int iterations) {
+		if (iterations < 1) {
+			throw new IllegalArgumentException("Invalid number of iterations: " + iterations);
+		}
+
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Returns the stored form of the password with a new random salt.
+	 */
+	String hash(String password) {
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		Base64.Encoder encoder = Base64.getEncoder();
+		return PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$"
+				+ encoder.encodeToString(pbkdf2(password, salt, iterations));
+	}
+
+	/**
+	 * Checks the password against its stored form. The comparison takes the
+	 * same time wherever the hashes differ.
+	 */
+	boolean verify(String password, String storedHash) {
+		if (isLegacy(storedHash)) {
+			return MessageDigest.isEqual(sha256Hex(password).getBytes(UTF_8), storedHash.getBytes(UTF_8));
+		}
+
+		String[] fields = split(storedHash);
+		if (fields == null) {
+			return false;
+		}
+
+		try {
+			Base64.Decoder decoder = Base64.getDecoder();
+			int storedIterations = Integer.parseInt(fields[0]);
+			byte[] hash = decoder.decode(fields[2]);
+			return storedIterations > 0
+					&& MessageDigest.isEqual(pbkdf2(password, decoder.decode(fields[1]), storedIterations), hash);
+		} catch (IllegalArgumentException e) {
+			// A damaged hash never matches.
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if the stored form is older than the current one and should be
+	 * replaced once the password is known.
+	 */
+	boolean needsRehash(String storedHash) {
+		if (isLegacy(storedHash)) {
+			return true;
+		}
+
+		String[] fields = split(storedHash);
+		return fields != null && !fields[0].equals(String.valueOf(iterations));
+	}
+
+	private static boolean isLegacy(String storedHash) {
+		return !storedHash.startsWith(PREFIX) && storedHash.length() == LEGACY_HASH_LENGTH;
+	}
+
+	/**
+	 * Splits the stored form into the iterations, the salt and the hash, or
+	 * returns null if it is not in the current form.
+	 */
+	private static String[] split(String storedHash) {
+		if (!storedHash.startsWith(PREFIX)) {
+			return null;
+		}
+
+		String[] fields = storedHash.substring(PREFIX.length()).split("\\$");
+		return fields.length == 3 ? fields : null;
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			// Every Java 8 runtime provides the algorithm.
+			throw new IllegalStateException("Unable to hash the password with " + ALGORITHM + ".", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * Returns SHA-256 of the password as lowercase hex string, the form in
+	 * which earlier versions stored the passwords.
+	 */
+	private static String sha256Hex(String password) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(password.getBytes(UTF_8));
+			return String.format("%064x", new BigInteger(1, digest));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Unable to hash the password with SHA-256.", e);
+		}
+	}
+}
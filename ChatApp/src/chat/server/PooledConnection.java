@@ -0,0 +1,160 @@
+package chat.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A database connection owned by the pool of DBConnector. Prepared
+ * statements are cached per connection and reused for the same SQL. When the
+ * cache is full the least recently used statement is closed. With a cache
+ * size of 0 every statement is closed when the connection is returned.
+ */
+class PooledConnection {
+
+	private final Connection connection;
+	private final int statementCacheSize;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	// The statement in use when the cache is disabled.
+	private PreparedStatement uncachedStatement;
+
+	// Time the connection was returned to the pool.
+	private long lastUsed;
+
+	PooledConnection(Connection connection, int statementCacheSize) {
+		this.connection = connection;
+		this.statementCacheSize = statementCacheSize;
+		this.statements = new LinkedHashMap<>(16, 0.75f, true);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns a prepared statement for the SQL. The statement is reused by the
+	 * next caller, so it must not be closed.
+	 *
+	 * @param sql
+	 *            The statement to be prepared.
+	 * @param returnGeneratedKeys
+	 *            True if the generated keys are needed.
+	 * @throws SQLException
+	 */
+	PreparedStatement prepare(String sql, boolean returnGeneratedKeys) throws SQLException {
+		// Statements returning generated keys are prepared differently, so
+		// they are cached separately.
+		String key = returnGeneratedKeys ? "keys:" + sql : sql;
+		PreparedStatement statement = statements.get(key);
+		if (statement != null) {
+			statement.clearParameters();
+			return statement;
+		}
+
+		if (returnGeneratedKeys) {
+			statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+		} else {
+			statement = connection.prepareStatement(sql);
+		}
+
+		if (statementCacheSize < 1) {
+			closeUncachedStatement();
+			uncachedStatement = statement;
+			return statement;
+		}
+
+		// Make room first, so the new statement is never evicted.
+		evictEldest(statementCacheSize - 1);
+		statements.put(key, statement);
+		return statement;
+	}
+
+	/**
+	 * Creates a statement which is not cached. The caller must close it.
+	 */
+	Statement createStatement() throws SQLException {
+		return connection.createStatement();
+	}
+
+	/**
+	 * Checks if the connection is still usable. Connections that have not
+	 * been used recently are checked with a round trip to the server.
+	 *
+	 * @param maxIdleMillis
+	 *            Connections idle for less time are assumed to be valid.
+	 */
+	boolean isValid(long maxIdleMillis) {
+		try {
+			if (connection.isClosed()) {
+				return false;
+			}
+
+			if (System.currentTimeMillis() - lastUsed < maxIdleMillis) {
+				return true;
+			}
+
+			return connection.isValid(1);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	void markReturned() {
+		this.lastUsed = System.currentTimeMillis();
+		closeUncachedStatement();
+	}
+
+	/**
+	 * Closes all cached statements and the connection. Errors are ignored as
+	 * the connection is most likely broken already.
+	 */
+	void close() {
+		for (PreparedStatement statement : statements.values()) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				// The connection is being closed anyway.
+			}
+		}
+
+		statements.clear();
+		closeUncachedStatement();
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// The connection is being closed anyway.
+		}
+	}
+
+	private void closeUncachedStatement() {
+		if (uncachedStatement == null) {
+			return;
+		}
+
+		try {
+			uncachedStatement.close();
+		} catch (SQLException e) {
+			// The statement is not used any more.
+		}
+
+		uncachedStatement = null;
+	}
+
+	/**
+	 * Closes the least recently used statements until at most the given
+	 * number is left.
+	 */
+	private void evictEldest(int maxStatements) {
+		Iterator<Map.Entry<String, PreparedStatement>> iterator = statements.entrySet().iterator();
+		while (statements.size() > maxStatements && iterator.hasNext()) {
+			PreparedStatement eldest = iterator.next().getValue();
+			iterator.remove();
+			try {
+				eldest.close();
+			} catch (SQLException e) {
+				// The statement is not used any more.
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package chat.server;
+
+import java.io.IOException;
+
+/**
+ * Directory shared by the nodes of a cluster which maps every logged in user
+ * to the node the user is connected to. A user can be claimed by one node at
+ * a time, which keeps a user from logging in on two nodes.
+ */
+interface PresenceDirectory {
+
+	/**
+	 * Records that the user is connected to the node, unless the user is
+	 * already connected to another node.
+	 *
+	 * @return Null if the user has been claimed by the node, otherwise the id
+	 *         of the node the user is connected to.
+	 * @throws IOException
+	 *             If the directory can not be reached.
+	 */
+	String claim(String username, String nodeId) throws IOException;
+
+	/**
+	 * Removes the user from the directory if the user is connected to the
+	 * node.
+	 *
+	 * @throws IOException
+	 *             If the directory can not be reached.
+	 */
+	void release(String username, String nodeId) throws IOException;
+
+	/**
+	 * Returns the id of the node the user is connected to, or null if the
+	 * user is not connected.
+	 *
+	 * @throws IOException
+	 *             If the directory can not be reached.
+	 */
+	String lookup(String username) throws IOException;
+
+	/**
+	 * Removes all users of the node. Used when the node starts, to drop the
+	 * users left by a node which stopped without releasing them.
+	 *
+	 * @throws IOException
+	 *             If the directory can not be reached.
+	 */
+	void releaseAll(String nodeId) throws IOException;
+}
@@ -0,0 +1,17 @@
+package chat.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads the rows of a query result. The result set is valid only inside the
+ * handler. It is closed and its connection is returned to the pool right
+ * after the handler returns.
+ *
+ * @param <T>
+ *            Type of the value produced from the rows.
+ */
+public interface ResultSetHandler<T> {
+
+	T handle(ResultSet resultSet) throws SQLException;
+}
@@ -0,0 +1,117 @@
+package chat.server;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named group of connected users. The members are kept in an array which
+ * is copied on every join and leave, so delivering a message reads the
+ * current members without a lock and costs as much as the size of the room.
+ * Joins and leaves are rare compared to messages.
+ */
+class Room {
+
+	private static final ClientConnection[] NO_MEMBERS = new ClientConnection[0];
+
+	private final String name;
+	private final Meter messages = new Meter();
+
+	// Replaced, never modified, under the lock.
+	private volatile ClientConnection[] members = NO_MEMBERS;
+	// Set when the last member leaves and the room is removed from the
+	// registry. A closed room can not be joined.
+	private boolean isClosed;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	Room(String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Messages sent to the room.
+	 */
+	Meter getMessages() {
+		return messages;
+	}
+
+	/**
+	 * Returns the current members. The array must not be modified.
+	 */
+	ClientConnection[] getMembers() {
+		return members;
+	}
+
+	int size() {
+		return members.length;
+	}
+
+	/**
+	 * Adds a member to the room.
+	 *
+	 * @return False if the room has been closed and must be created again.
+	 */
+	boolean add(ClientConnection client) {
+		lock.lock();
+		try {
+			if (isClosed) {
+				return false;
+			}
+
+			ClientConnection[] current = members;
+			for (ClientConnection member : current) {
+				if (member == client) {
+					return true;
+				}
+			}
+
+			ClientConnection[] updated = new ClientConnection[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = client;
+			members = updated;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a member from the room. The room is closed when its last member
+	 * leaves.
+	 *
+	 * @return True if the room has been closed by this call.
+	 */
+	boolean remove(ClientConnection client) {
+		lock.lock();
+		try {
+			ClientConnection[] current = members;
+			int index = -1;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] == client) {
+					index = i;
+					break;
+				}
+			}
+
+			if (index < 0) {
+				return false;
+			}
+
+			if (current.length == 1) {
+				members = NO_MEMBERS;
+				isClosed = true;
+				return true;
+			}
+
+			ClientConnection[] updated = new ClientConnection[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+			members = updated;
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package chat.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Index of the rooms by name. A room is created by its first member and
+ * removed when its last member leaves, so the registry holds only rooms with
+ * connected members. Membership lasts until the user leaves the room or
+ * disconnects.
+ *
+ * The number of rooms a user can be in at the same time is set with the
+ * system property chat.rooms.maxPerUser (default 50).
+ */
+class RoomRegistry {
+
+	static final int MAX_ROOMS_PER_USER = Integer.getInteger("chat.rooms.maxPerUser", 50);
+
+	// A room name can never be a username, which starts with a letter.
+	private static final Pattern ROOM_NAME = Pattern.compile("#[A-Za-z0-9_-]{1,32}");
+
+	private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+	/**
+	 * Checks if the recipient of a message names a room.
+	 */
+	static boolean isRoomName(String name) {
+		return name != null && ROOM_NAME.matcher(name).matches();
+	}
+
+	/**
+	 * Adds the client to the room with the given name and creates the room if
+	 * it does not exist.
+	 *
+	 * @return The room joined by the client.
+	 */
+	Room join(String name, ClientConnection client) {
+		while (true) {
+			Room room = rooms.get(name);
+			if (room == null) {
+				Room created = new Room(name);
+				room = rooms.putIfAbsent(name, created);
+				if (room == null) {
+					room = created;
+				}
+			}
+
+			if (room.add(client)) {
+				return room;
+			}
+
+			// The last member left the room in the meantime. Make sure it is
+			// removed and create a new one.
+			rooms.remove(name, room);
+		}
+	}
+
+	/**
+	 * Removes the client from the room and removes the room if it is empty.
+	 */
+	void leave(Room room, ClientConnection client) {
+		if (room.remove(client)) {
+			rooms.remove(room.getName(), room);
+		}
+	}
+
+	Collection<Room> getRooms() {
+		return Collections.unmodifiableCollection(rooms.values());
+	}
+
+	int size() {
+		return rooms.size();
+	}
+
+	/**
+	 * Samples the message meters of the rooms. Called once per second by the
+	 * metrics of the server.
+	 */
+	void sample() {
+		for (Room room : rooms.values()) {
+			room.getMessages().sample();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package chat.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+
+import chat.util.Logger;
+
+/**
+ * Brings the database schema to the version expected by the server. Every
+ * change of the schema is a numbered migration. The applied migrations are
+ * recorded in the schema_version table and the missing ones are applied in
+ * order when the server starts.
+ *
+ * MySQL commits every schema change immediately, so a migration which fails
+ * halfway is not rolled back and must be fixed by hand before the server is
+ * started again. The tables of the first migration are created only if they
+ * do not exist, so databases created before the migrations keep their data.
+ * Servers sharing a database should not be started at the same time after
+ * an upgrade.
+ */
+class SchemaMigrator {
+
+	private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS schema_version ("
+			+ "version INT NOT NULL, description VARCHAR(200) NOT NULL, applied_on DATETIME NOT NULL, "
+			+ "PRIMARY KEY (version)) ENGINE=InnoDB";
+	private static final String SELECT_VERSION = "SELECT MAX(version) AS version FROM schema_version";
+	private static final String INSERT_VERSION = "INSERT INTO schema_version (`version`, `description`, "
+			+ "`applied_on`) VALUES (?, ?, ?)";
+
+	// New migrations are added at the end with the next version. Applied
+	// migrations must never be changed.
+	private static final Migration[] MIGRATIONS = new Migration[] {
+			new Migration(1, "Create the tables",
+					"CREATE TABLE IF NOT EXISTS users (id_users INT NOT NULL AUTO_INCREMENT, "
+							+ "username VARCHAR(64) NOT NULL, password VARCHAR(255) NOT NULL, "
+							+ "PRIMARY KEY (id_users)) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4",
+					"CREATE TABLE IF NOT EXISTS connections (id_connections INT NOT NULL AUTO_INCREMENT, "
+							+ "id_user INT NOT NULL, ip VARCHAR(64) NOT NULL, date_logged_in DATETIME NOT NULL, "
+							+ "PRIMARY KEY (id_connections)) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4",
+					"CREATE TABLE IF NOT EXISTS logouts (id_logouts INT NOT NULL AUTO_INCREMENT, "
+							+ "id_user_logout INT NOT NULL, ip VARCHAR(64) NOT NULL, "
+							+ "date_logged_out DATETIME NOT NULL, PRIMARY KEY (id_logouts)) "
+							+ "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4",
+					"CREATE TABLE IF NOT EXISTS messages (id_messages BIGINT NOT NULL AUTO_INCREMENT, "
+							+ "text TEXT NOT NULL, date DATETIME NOT NULL, sender INT NOT NULL, "
+							+ "recipient INT NOT NULL, PRIMARY KEY (id_messages)) "
+							+ "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"),
+			// The history of some users is read through the indexes starting
+			// with the user, the full history through the indexes of the
+			// dates. Every part of the history query reads its table in the
+			// order of the index and stops after a page.
+			new Migration(2, "Index the usernames and the history",
+					"CREATE UNIQUE INDEX ux_users_username ON users (username)",
+					"CREATE INDEX ix_messages_sender_date ON messages (sender, date)",
+					"CREATE INDEX ix_messages_recipient_date ON messages (recipient, date)",
+					"CREATE INDEX ix_messages_date ON messages (date)",
+					"CREATE INDEX ix_connections_user_date ON connections (id_user, date_logged_in)",
+					"CREATE INDEX ix_connections_date ON connections (date_logged_in)",
+					"CREATE INDEX ix_logouts_user_date ON logouts (id_user_logout, date_logged_out)",
+					"CREATE INDEX ix_logouts_date ON logouts (date_logged_out)"),
+			// A mailbox is read in the order of the ids through the index of
+			// its owner.
+			new Migration(3, "Create the mailboxes of the offline users",
+					"CREATE TABLE offline_messages (id_offline_messages BIGINT NOT NULL AUTO_INCREMENT, "
+							+ "recipient INT NOT NULL, sender INT NOT NULL, text TEXT NOT NULL, "
+							+ "date DATETIME NOT NULL, PRIMARY KEY (id_offline_messages), "
+							+ "KEY ix_offline_messages_recipient (recipient, id_offline_messages)) "
+							+ "ENGINE=InnoDB DEFAULT CHARSET=utf8mb4"),
+			// Databases created before the migrations may keep a password
+			// column sized for the hex SHA-256 hashes, too short for the
+			// PBKDF2 hashes.
+			new Migration(4, "Widen the password column for the salted hashes",
+					"ALTER TABLE users MODIFY password VARCHAR(255) NOT NULL") };
+
+	private final DBConnector dbConnector;
+
+	SchemaMigrator(DBConnector dbConnector) {
+		this.dbConnector = dbConnector;
+	}
+
+	/**
+	 * Applies the migrations missing in the database.
+	 *
+	 * @throws SQLException
+	 *             If a migration fails. The migrations before it stay
+	 *             applied.
+	 */
+	void migrate() throws SQLException {
+		dbConnector.executeOnce(CREATE_VERSION_TABLE);
+		int currentVersion = dbConnector.select(SELECT_VERSION, new Object[0], new ResultSetHandler<Integer>() {
+
+			@Override
+			public Integer handle(ResultSet resultSet) throws SQLException {
+				// MAX of no rows is NULL, read as 0.
+				return resultSet.next() ? resultSet.getInt("version") : 0;
+			}
+		});
+
+		for (Migration migration : MIGRATIONS) {
+			if (migration.version <= currentVersion) {
+				continue;
+			}
+
+			for (String statement : migration.statements) {
+				try {
+					dbConnector.executeOnce(statement);
+				} catch (SQLException e) {
+					throw new SQLException("Schema migration " + migration.version + " (" + migration.description
+							+ ") failed on: " + statement, e);
+				}
+			}
+
+			dbConnector.insert(INSERT_VERSION, new Object[] { migration.version, migration.description, new Date() });
+			Logger.info("Applied schema migration.", "version", migration.version, "description",
+					migration.description);
+		}
+	}
+
+	/**
+	 * A numbered change of the schema.
+	 */
+	private static class Migration {
+
+		private final int version;
+		private final String description;
+		private final String[] statements;
+
+		Migration(int version, String description, String... statements) {
+			this.version = version;
+			this.description = description;
+			this.statements = statements;
+		}
+	}
+}
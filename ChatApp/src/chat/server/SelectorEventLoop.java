@@ -0,0 +1,184 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import chat.util.Logger;
+
+/**
+ * Event loop of the selector based server engine. Every loop owns a selector
+ * and serves many client connections from a single thread. The loop never
+ * blocks on the message dispatcher. Connections whose frames the saturated
+ * dispatcher did not accept stop being read and their frames are submitted
+ * again on every pass of the loop.
+ */
+public class SelectorEventLoop extends Thread {
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	// Longest wait for the selector while frames wait for the dispatcher.
+	private static final long DEFERRED_RETRY_MILLIS = 10;
+
+	private final Selector selector;
+	private final ByteBuffer readBuffer;
+
+	// Connections accepted by the server which are not yet registered with
+	// the selector.
+	private final Queue<NioClientConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+	// Connections with messages waiting to be written.
+	private final Queue<NioClientConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+	// Connections with frames not accepted by the dispatcher, in the order
+	// they were refused. Used only by the event loop thread.
+	private final Queue<NioClientConnection> deferredFrames = new ArrayDeque<>();
+
+	private volatile boolean keepRunning;
+
+	public SelectorEventLoop(String name) throws IOException {
+		super(name);
+		this.selector = Selector.open();
+		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.keepRunning = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (keepRunning) {
+				if (deferredFrames.isEmpty()) {
+					selector.select();
+				} else {
+					selector.select(DEFERRED_RETRY_MILLIS);
+				}
+
+				registerPendingConnections();
+				flushPendingWrites();
+				resumeDeferredFrames();
+
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+
+					NioClientConnection connection = (NioClientConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read(readBuffer);
+						}
+
+						if (key.isValid() && key.isWritable()) {
+							connection.flushOutbound();
+						}
+					} catch (CancelledKeyException cancelledKeyException) {
+						// The connection was closed by another thread.
+					}
+				}
+			}
+		} catch (IOException ioException) {
+			Logger.error("Error occured in the event loop.", ioException, "loop", getName());
+		} finally {
+			closeSelector();
+		}
+	}
+
+	/**
+	 * Hands a new connection to the event loop.
+	 *
+	 * @param connection
+	 *            The connection to be registered.
+	 */
+	void register(NioClientConnection connection) {
+		pendingRegistrations.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the event loop to write the pending messages of a connection.
+	 *
+	 * @param connection
+	 *            The connection with pending messages.
+	 */
+	void requestWrite(NioClientConnection connection) {
+		pendingWrites.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Remembers a connection whose frames the dispatcher did not accept.
+	 * Called by the event loop thread.
+	 *
+	 * @param connection
+	 *            The connection which stopped reading.
+	 */
+	void deferFrameProcessing(NioClientConnection connection) {
+		deferredFrames.add(connection);
+	}
+
+	void shutdown() {
+		keepRunning = false;
+		selector.wakeup();
+	}
+
+	private void registerPendingConnections() {
+		NioClientConnection connection;
+		while ((connection = pendingRegistrations.poll()) != null) {
+			try {
+				connection.register(selector);
+			} catch (IOException ioException) {
+				Logger.warn("Unable to register the connection.", ioException, "ip", connection.getIP(), "port",
+						connection.getPort());
+				connection.closeRecourses();
+			}
+		}
+	}
+
+	private void flushPendingWrites() {
+		NioClientConnection connection;
+		while ((connection = pendingWrites.poll()) != null) {
+			try {
+				connection.flushOutbound();
+			} catch (CancelledKeyException cancelledKeyException) {
+				// The connection was closed by another thread.
+			}
+		}
+	}
+
+	/**
+	 * Submits the frames of the deferred connections in order, until the
+	 * dispatcher refuses them again.
+	 */
+	private void resumeDeferredFrames() {
+		NioClientConnection connection;
+		while ((connection = deferredFrames.peek()) != null) {
+			try {
+				if (!connection.resumeFrameProcessing()) {
+					return;
+				}
+			} catch (CancelledKeyException cancelledKeyException) {
+				// The connection was closed by another thread.
+			}
+
+			deferredFrames.poll();
+		}
+	}
+
+	private void closeSelector() {
+		// Closing a connection cancels its key, so iterate over a copy.
+		for (SelectionKey key : new ArrayList<>(selector.keys())) {
+			NioClientConnection connection = (NioClientConnection) key.attachment();
+			connection.closeRecourses();
+		}
+
+		try {
+			selector.close();
+		} catch (IOException ioException) {
+			Logger.warn("Unable to close the selector.", ioException, "loop", getName());
+		}
+	}
+}
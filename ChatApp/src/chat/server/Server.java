@@ -1,357 +1,628 @@
-package chat.server;
-
-import java.io.IOException;
-import java.net.BindException;
-import java.net.Inet4Address;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Scanner;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import chat.util.Logger;
-import chat.util.SystemCode;
-
-public class Server {
-
-	// Default port number is used if user does not provide a port number.
-	private final int DEFAULT_PORT = 2222;
-	private ServerSocket serverSocket;
-	private boolean isRunning;
-
-	// Collection for all connected in users.
-	private ArrayList<ServersideListener> serverSideListeners;
-	// Hash map with all logged in user user for faster searching when sending
-	// message to single user.
-	private Map<String, ServersideListener> clients;
-	private Map<String, ServersideListener> copyClients;
-
-	private MessageDispatcher messageDispatcher;
-	private ServerCommandDispatcher serverCommandDispatcher;
-	private DBConnector dbConnector;
-
-	public Server() {
-		clients = new HashMap<>();
-		copyClients = new HashMap<>();
-		serverSideListeners = new ArrayList<>();
-	}
-
-	public ServersideListener getServersideListener(String recipient) {
-		ServersideListener listener = this.clients.get(recipient);
-		return listener;
-	}
-
-	/**
-	 * Prints information about all connected users.
-	 */
-	void printConnectedUsers() {
-		synchronized (clients) {
-			Set<String> connectedUsernames = clients.keySet();
-			if (connectedUsernames.isEmpty()) {
-				System.out.println("There are no connected users at the moment.");
-				return;
-			}
-
-			System.out.println("Connected Users:");
-			for (String username : connectedUsernames) {
-				ServersideListener client = clients.get(username);
-				System.out.println(client.toString());
-			}
-		}
-	}
-
-	/**
-	 * Validates the the name of the user. If the validation is passed creates a
-	 * new User and adds it in the collection of all connected user.
-	 * 
-	 * @param name
-	 *            The name of the user.
-	 * @param messageListener
-	 *            Message listener of the user.
-	 * @throws SQLException
-	 */
-	synchronized String addUser(String name, ServersideListener listener) throws SQLException {
-		if (clients.containsKey(name)) {
-			// The given name is already in use
-			return "1";
-		}
-
-		clients.put(name, listener);
-		return "0";
-	}
-
-	/**
-	 * Returns copy of the original collection with all connected users.
-	 * 
-	 * @return Copy of the collection with all currently connected users.
-	 */
-	Map<String, ServersideListener> getCopyOfClients() {
-		return copyClients;
-	}
-
-	DBConnector getDbConnector() {
-		return this.dbConnector;
-	}
-
-	/**
-	 * Stops waiting for new connections. Calls disconnect method on all
-	 * connected users and closes the server socket.
-	 * 
-	 * @throws IOException
-	 * @throws SQLException
-	 */
-	void stopServer() throws IOException {
-		try {
-			serverSocket.close();
-		} catch (IOException ioException) {
-			// Expected exception. Any thread currently blocked in accept() will
-			// throw a SocketException.
-			String address = serverSocket.getInetAddress().toString();
-			int port = serverSocket.getLocalPort();
-			System.err.println("Server socket on address: " + address + ", port: " + port + " was closed."
-					+ Logger.printError(ioException));
-		}
-
-		isRunning = false;
-
-		synchronized (serverSideListeners) {
-			Iterator<ServersideListener> iterator = serverSideListeners.iterator();
-
-			while (iterator.hasNext()) {
-				ServersideListener serversideListener = iterator.next();
-
-				String username = serversideListener.getUsername();
-				if (username != null) {
-					// The user is logged in. The username can be used to send
-					// disconnect message.
-					disconnectUser(username);
-					continue;
-				}
-
-				// The user is not logged in. Disconnect message can be sent
-				// using the output stream stored in the listener.
-				serversideListener.shutdown();
-				iterator.remove();
-			}
-		}
-
-		serverCommandDispatcher.shutdown();
-		messageDispatcher.shutdown();
-	}
-
-	/**
-	 * Disconnects a user. Terminates the client listener used by the user.
-	 * Prints an error message if there is no user with such name.
-	 * 
-	 * @param name
-	 *            The name of the user to be disconnected.
-	 */
-	synchronized void disconnectUser(String name) {
-		if (!this.clients.containsKey(name)) {
-			System.out.println(name + " is not connected.");
-			return;
-		}
-
-		Message shutDownMessage = new Message("disconnect", name, "admin", SystemCode.DISCONNECT);
-		messageDispatcher.addMessageToQueue(shutDownMessage);
-	}
-
-	/**
-	 * Removes a use from the collection with all connected users.
-	 * 
-	 * @param username
-	 *            Name of the user to be removed.
-	 */
-	synchronized void stopListener(String username) {
-		// Shut down the listener
-		ServersideListener listener = this.clients.get(username);
-		if (listener == null) {
-			return;
-		}
-
-		listener.closeRecourses();
-	}
-
-	synchronized void removeListener(ServersideListener listener) {
-		this.clients.remove(listener.getUsername());
-		this.serverSideListeners.remove(listener);
-	}
-
-	/**
-	 * Accepts a username, checks if it is a valid username and returns a error
-	 * code. Valid username is at least 3 characters long, starts with English
-	 * letter and differ from special names /admin, administrator, all/
-	 * 
-	 * @param name
-	 * @return
-	 */
-	String validateUsername(String name) {
-		String resultCode;
-		if (!Character.isAlphabetic(name.charAt(0))) {
-			resultCode = "4";
-		} else if (this.clients.containsKey(name)) {
-			resultCode = "7";
-		} else if (name.length() < 3) {
-			resultCode = "2";
-		} else if (name.equalsIgnoreCase("admin") || name.equalsIgnoreCase("administrator")) {
-			resultCode = "3";
-		} else {
-			resultCode = "0";
-		}
-
-		return resultCode;
-	}
-
-	/**
-	 * Initializes the server, opens the server socket and waits for user
-	 * connections.
-	 * 
-	 * @param args
-	 *            Server port. If null, default value is used.
-	 * @throws IOException
-	 * @throws SQLException
-	 */
-	private void startServer(String[] args) throws IOException, SQLException {
-		// TaskCopyClients is responsible for coping the collection with all
-		// connected users.
-		// Coping the collection is needed for sending message to all users. The
-		// iteration is performed on the copy so new users can be added/removed
-		// from/to the original one.
-		TimerTask taskCopyClients = new TaskCopyClients(clients, copyClients);
-		Timer timer = new Timer();
-		// First copy is performed immediately and then every 300 000
-		// milliseconds (5 minutes) a new copy is made.
-		timer.schedule(taskCopyClients, 0, 300000);
-
-		try {
-			Scanner reader = new Scanner(System.in);
-			isRunning = initializeServer(args, reader);
-
-			if (isRunning) {
-				serverCommandDispatcher = new ServerCommandDispatcher(this, reader);
-				serverCommandDispatcher.start();
-				messageDispatcher = new MessageDispatcher(this);
-
-				waitForConnections();
-			}
-		} catch (SQLException sqlException) {
-			// Could not connect to the database server. The server has already been opened and must be closed.
-			try {
-				serverSocket.close();
-			} catch (IOException ioException) {
-				System.err.println("Error occured while closing the server socket. " + Logger.printError(ioException));
-			}
-			
-			throw new SQLException("Unable to connect to database server.", sqlException);
-		} catch (IOException ioException) {
-			throw new IOException(
-					"Could not open the server socket or the server socket was closed while waiting for new connections",
-					ioException);
-		} catch (IllegalArgumentException illegalArgumentException) {
-			throw new IllegalArgumentException("The server was started with invalid parameters. +"
-					+ "Valid parameters contain only one integer number coresponding to the server socket port number. +"
-					+ "Providing more than one parameter is considered as invalid.", illegalArgumentException);
-		} finally {
-			timer.cancel();
-			if (messageDispatcher != null) {
-				messageDispatcher.shutdown();
-			}
-			
-			if (serverCommandDispatcher != null) {
-				serverCommandDispatcher.shutdown();
-			}
-			
-			System.out.println("Server successfully disconnected.");
-		}
-	}
-
-	private void printWelcomeMessage() throws IOException {
-		try {
-			InetAddress serverAdress = InetAddress.getLocalHost();
-			int port = serverSocket.getLocalPort();
-
-			System.out.println("Server adress: " + serverAdress + " on port: " + port);
-			System.out.println("Server is ready to accept connections");
-			System.out.println("Enter \"/help\" to see the help menu.");
-		} catch (UnknownHostException unknownHostException) {
-			// Unable to read local address.
-			throw new IOException("Local host name could not be resolved into an address.", unknownHostException);
-		}
-	}
-
-	private void waitForConnections() throws IOException {
-		while (isRunning) {
-			try {
-				Socket socket = serverSocket.accept();
-				System.out.println(socket.getInetAddress() + " connected");
-
-				ServersideListener clientListener = new ServersideListener(socket, messageDispatcher, dbConnector,
-						this);
-				clientListener.start();
-				serverSideListeners.add(clientListener);
-			} catch (IOException ioException) {
-				// Server socket was closed while waiting for connections.
-				String address = Inet4Address.getLocalHost().getHostAddress();
-
-				int port = serverSocket.getLocalPort();
-				throw new IOException("Server socket" + "(address: " + address + ", port: " + port + ") was closed.",
-						ioException);
-			}
-		}
-	}
-
-	private boolean initializeServer(String[] args, Scanner reader)
-			throws IOException, IllegalArgumentException, SQLException {
-		if (args == null) {
-			return false;
-		}
-
-		int port = DEFAULT_PORT;
-		try {
-			if (args.length == 1) {
-				port = Integer.parseInt(args[0]);
-				if (port < 1 || port > 65535) {
-					// Invalid port number
-					throw new IllegalArgumentException(args[0] + " is not valid port number.");
-				}
-			} else if (args.length > 1) {
-				System.out.println("Unknow number of arguments. Start the program with only one "
-						+ "argument for port number or without any arguments to use the default one.");
-				return false;
-			}
-		} catch (NumberFormatException numberFormatException) {
-			throw new IllegalArgumentException(args[0] + " is not a valid port number.", numberFormatException);
-		}
-
-		try {
-			serverSocket = new ServerSocket(port);
-		} catch (BindException bindException) {
-			throw new IOException("Port " + port + " is already in use.", bindException);
-		}
-
-		System.out.println("Enter password for the database sever: ");
-		String password = "abcd1234";
-		dbConnector = new DBConnector(password);
-		try {
-			dbConnector.connect();
-		} catch (SQLException e) {
-			throw new SQLException("Could not connect to the database server. ", e);
-		}
-
-		printWelcomeMessage();
-		return true;
-	}
-
-	public static void main(String[] args) throws IOException, SQLException {
-		Server server = new Server();
-		server.startServer(args);
-	}
+package chat.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import chat.util.Logger;
+import chat.util.SystemCode;
+import chat.util.VirtualThreads;
+
+public class Server {
+
+	// Default port number is used if user does not provide a port number.
+	private final int DEFAULT_PORT = 2222;
+	// Storage used by the server, "jdbc" or "file". See Storage.
+	private static final String STORAGE = System.getProperty("chat.storage", "jdbc");
+	private static final String STORAGE_DIRECTORY = System.getProperty("chat.storage.dir", "chat-data");
+	// Endpoint of the metrics. See ServerMetrics.
+	private static final int METRICS_PORT = Integer.getInteger("chat.metrics.port", 9222);
+	private static final String METRICS_ADDRESS = System.getProperty("chat.metrics.address", "127.0.0.1");
+	private ServerSocket serverSocket;
+	private boolean isRunning;
+
+	// Collection for all connected in users.
+	private Set<ClientConnection> serverSideListeners;
+	// Concurrent map with all logged in users. Lookups never block and
+	// iterating over it for sending message to all users always sees the
+	// users currently logged in.
+	private ConcurrentMap<String, ClientConnection> clients;
+
+	// Engine used to serve the client connections. Selected at startup.
+	private ServerEngine engine;
+	private SelectorEventLoop[] eventLoops;
+	// Creates the threads of the connection listeners for the blocking and
+	// virtual engines.
+	private ThreadFactory listenerThreadFactory;
+
+	private MessageDispatcher messageDispatcher;
+	private ServerCommandDispatcher serverCommandDispatcher;
+	private Storage storage;
+	private MessagePersister messagePersister;
+	private UserIdCache userIdCache;
+	private AuthService authService;
+	private OfflineMailbox offlineMailbox;
+	private final RoomRegistry roomRegistry;
+	private final SessionRegistry sessionRegistry;
+	// Null unless the server is a node of a cluster.
+	private ClusterNode clusterNode;
+	private final ServerMetrics metrics;
+	private MetricsHttpServer metricsHttpServer;
+	private WriteTimeoutMonitor writeTimeoutMonitor;
+
+	public Server() {
+		metrics = new ServerMetrics(this);
+		roomRegistry = new RoomRegistry();
+		sessionRegistry = new SessionRegistry();
+		clients = new ConcurrentHashMap<>();
+		serverSideListeners = Collections.newSetFromMap(new ConcurrentHashMap<ClientConnection, Boolean>());
+		engine = ServerEngine.BLOCKING;
+	}
+
+	/**
+	 * Creates a server which relays messages between connections created in
+	 * the same process. The server does not open a socket and has no admin
+	 * console. Used to measure the message relay without the network, e.g. by
+	 * the benchmarks.
+	 * 
+	 * @param storage
+	 *            An opened storage.
+	 * @param engine
+	 *            The engine whose dispatcher is used.
+	 */
+	Server(Storage storage, ServerEngine engine) {
+		this();
+		this.engine = engine;
+		this.storage = storage;
+		this.isRunning = true;
+		startMessageServices();
+	}
+
+	public ClientConnection getServersideListener(String recipient) {
+		ClientConnection listener = this.clients.get(recipient);
+		return listener;
+	}
+
+	/**
+	 * Prints information about all connected users.
+	 */
+	void printConnectedUsers() {
+		Collection<ClientConnection> connectedUsers = clients.values();
+		if (connectedUsers.isEmpty()) {
+			System.out.println("There are no connected users at the moment.");
+			return;
+		}
+
+		System.out.println("Connected Users:");
+		for (ClientConnection client : connectedUsers) {
+			System.out.println(client.toString());
+		}
+	}
+
+	/**
+	 * Adds the user in the collection of all connected users if there is no
+	 * other user logged in with the same name. The check and the insertion are
+	 * performed as a single atomic operation.
+	 * 
+	 * @param name
+	 *            The name of the user.
+	 * @param listener
+	 *            Message listener of the user.
+	 * @return Code for successful login or code for already logged in user.
+	 * @throws SQLException
+	 */
+	String addUser(String name, ClientConnection listener) throws SQLException {
+		if (clients.putIfAbsent(name, listener) != null) {
+			// The given name is already in use
+			return SystemCode.ALREADY_LOGGED_IN;
+		}
+
+		if (clusterNode != null && !clusterNode.claim(name)) {
+			// The user is logged in on another node.
+			clients.remove(name, listener);
+			return SystemCode.ALREADY_LOGGED_IN;
+		}
+
+		return SystemCode.SUCCESSFUL_LOGIN;
+	}
+
+	/**
+	 * Returns a live view of all logged in users. The view is safe to iterate
+	 * while users log in and out.
+	 * 
+	 * @return Collection with all currently logged in users.
+	 */
+	Collection<ClientConnection> getClients() {
+		return Collections.unmodifiableCollection(clients.values());
+	}
+
+	ThreadFactory getListenerThreadFactory() {
+		return this.listenerThreadFactory;
+	}
+
+	MessagePersister getMessagePersister() {
+		return this.messagePersister;
+	}
+
+	UserIdCache getUserIdCache() {
+		return this.userIdCache;
+	}
+
+	AuthService getAuthService() {
+		return this.authService;
+	}
+
+	OfflineMailbox getOfflineMailbox() {
+		return this.offlineMailbox;
+	}
+
+	RoomRegistry getRoomRegistry() {
+		return this.roomRegistry;
+	}
+
+	SessionRegistry getSessionRegistry() {
+		return this.sessionRegistry;
+	}
+
+	/**
+	 * Returns the cluster the server is a node of, or null if the server runs
+	 * alone.
+	 */
+	ClusterNode getClusterNode() {
+		return this.clusterNode;
+	}
+
+	Storage getStorage() {
+		return this.storage;
+	}
+
+	MessageDispatcher getMessageDispatcher() {
+		return this.messageDispatcher;
+	}
+
+	ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Returns a live view of all open connections, including the users who
+	 * have not logged in yet.
+	 */
+	Collection<ClientConnection> getConnections() {
+		return Collections.unmodifiableCollection(serverSideListeners);
+	}
+
+	/**
+	 * Returns the number of open connections, including the users who have
+	 * not logged in yet.
+	 */
+	int getConnectionCount() {
+		return serverSideListeners.size();
+	}
+
+	/**
+	 * Stops waiting for new connections. Calls disconnect method on all
+	 * connected users and closes the server socket.
+	 * 
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	void stopServer() throws IOException {
+		try {
+			serverSocket.close();
+		} catch (IOException ioException) {
+			// Expected exception. Any thread currently blocked in accept() will
+			// throw a SocketException.
+			Logger.warn("Server socket was closed.", ioException, "ip", serverSocket.getInetAddress(), "port",
+					serverSocket.getLocalPort());
+		}
+
+		isRunning = false;
+
+		Iterator<ClientConnection> iterator = serverSideListeners.iterator();
+		while (iterator.hasNext()) {
+			ClientConnection serversideListener = iterator.next();
+
+			String username = serversideListener.getUsername();
+			if (username != null) {
+				// The user is logged in. The username can be used to send
+				// disconnect message.
+				disconnectUser(username);
+				continue;
+			}
+
+			// The user is not logged in. Disconnect message can be sent
+			// using the output stream stored in the listener.
+			serversideListener.shutdown();
+			iterator.remove();
+		}
+
+		serverCommandDispatcher.shutdown();
+		messageDispatcher.shutdown();
+		stopEventLoops();
+		messagePersister.shutdown();
+	}
+
+	/**
+	 * Disconnects a user. Terminates the client listener used by the user.
+	 * Prints an error message if there is no user with such name.
+	 * 
+	 * @param name
+	 *            The name of the user to be disconnected.
+	 */
+	void disconnectUser(String name) {
+		if (!this.clients.containsKey(name)) {
+			System.out.println(name + " is not connected.");
+			return;
+		}
+
+		Message shutDownMessage = new Message("disconnect", name, "admin", SystemCode.DISCONNECT);
+		messageDispatcher.addMessageToQueue(shutDownMessage);
+	}
+
+	/**
+	 * Removes a connection from the collections with all connected users.
+	 * 
+	 * @param listener
+	 *            The connection to be removed.
+	 */
+	void removeListener(ClientConnection listener) {
+		String username = listener.getUsername();
+		if (username != null) {
+			// Remove the user only if the name is still mapped to this
+			// connection.
+			if (this.clients.remove(username, listener) && clusterNode != null) {
+				clusterNode.release(username);
+			}
+		}
+
+		this.serverSideListeners.remove(listener);
+	}
+
+	/**
+	 * Accepts a username, checks if it is a valid username and returns a error
+	 * code. Valid username is at least 3 characters long, starts with English
+	 * letter and differ from special names /admin, administrator, all/
+	 * 
+	 * @param name
+	 * @return
+	 */
+	String validateUsername(String name) {
+		String resultCode;
+		if (!Character.isAlphabetic(name.charAt(0))) {
+			resultCode = "4";
+		} else if (this.clients.containsKey(name)) {
+			resultCode = "7";
+		} else if (name.length() < 3) {
+			resultCode = "2";
+		} else if (name.equalsIgnoreCase("admin") || name.equalsIgnoreCase("administrator")) {
+			resultCode = "3";
+		} else {
+			resultCode = "0";
+		}
+
+		return resultCode;
+	}
+
+	/**
+	 * Initializes the server, opens the server socket and waits for user
+	 * connections.
+	 * 
+	 * @param args
+	 *            Server port. If null, default value is used.
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	private void startServer(String[] args) throws IOException, SQLException {
+		try {
+			Scanner reader = new Scanner(System.in);
+			isRunning = initializeServer(args, reader);
+
+			if (isRunning) {
+				startMessageServices();
+				clusterNode = ClusterNode.fromProperties(this);
+				if (clusterNode != null) {
+					clusterNode.start();
+				}
+
+				startMetrics();
+				if (WriteTimeoutMonitor.WRITE_TIMEOUT > 0) {
+					writeTimeoutMonitor = new WriteTimeoutMonitor(this);
+					writeTimeoutMonitor.start();
+				}
+
+				serverCommandDispatcher = new ServerCommandDispatcher(this, reader);
+				serverCommandDispatcher.start();
+
+				if (engine == ServerEngine.NIO) {
+					startEventLoops();
+					waitForChannelConnections();
+				} else {
+					waitForConnections();
+				}
+			}
+		} catch (SQLException sqlException) {
+			// Could not connect to the database server. The server has already been opened and must be closed.
+			try {
+				serverSocket.close();
+			} catch (IOException ioException) {
+				Logger.warn("Error occured while closing the server socket.", ioException);
+			}
+			
+			throw new SQLException("Unable to connect to database server.", sqlException);
+		} catch (IOException ioException) {
+			throw new IOException(
+					"Could not open the server socket or the server socket was closed while waiting for new connections",
+					ioException);
+		} catch (IllegalArgumentException illegalArgumentException) {
+			throw new IllegalArgumentException("The server was started with invalid parameters. +"
+					+ "Valid parameters contain an integer number coresponding to the server socket port number. +"
+					+ "and optional name of the server engine (blocking, virtual or nio). +"
+					+ "Providing more than two parameters is considered as invalid.", illegalArgumentException);
+		} finally {
+			if (messageDispatcher != null) {
+				messageDispatcher.shutdown();
+			}
+			
+			if (serverCommandDispatcher != null) {
+				serverCommandDispatcher.shutdown();
+			}
+
+			stopEventLoops();
+			if (authService != null) {
+				authService.shutdown();
+			}
+
+			if (messagePersister != null) {
+				messagePersister.shutdown();
+			}
+
+			if (writeTimeoutMonitor != null) {
+				writeTimeoutMonitor.shutdown();
+			}
+
+			if (clusterNode != null) {
+				clusterNode.shutdown();
+			}
+
+			if (metricsHttpServer != null) {
+				metricsHttpServer.stop();
+			}
+
+			metrics.shutdown();
+			if (storage != null) {
+				// The persister has flushed its last batch. Release the storage.
+				storage.close();
+			}
+
+			System.out.println("Server successfully disconnected.");
+		}
+	}
+
+	/**
+	 * Starts the services which deliver and store the messages. The storage
+	 * must be opened before.
+	 */
+	private void startMessageServices() {
+		userIdCache = new UserIdCache(storage);
+		authService = new AuthService(storage);
+		messagePersister = new MessagePersister(storage, userIdCache);
+		messagePersister.start();
+		messageDispatcher = new MessageDispatcher(this, engine);
+		offlineMailbox = new OfflineMailbox(this);
+	}
+
+	/**
+	 * Starts sampling the metrics and serving them over HTTP unless the
+	 * endpoint is disabled. The server runs without the endpoint if its port
+	 * is in use.
+	 */
+	private void startMetrics() {
+		metrics.start();
+		if (METRICS_PORT == 0) {
+			return;
+		}
+
+		try {
+			metricsHttpServer = new MetricsHttpServer(metrics, new InetSocketAddress(METRICS_ADDRESS, METRICS_PORT));
+			metricsHttpServer.start();
+		} catch (IOException ioException) {
+			Logger.error("Unable to serve the metrics.", ioException, "ip", METRICS_ADDRESS, "port", METRICS_PORT);
+		}
+	}
+
+	private void printWelcomeMessage() throws IOException {
+		try {
+			InetAddress serverAdress = InetAddress.getLocalHost();
+			int port = serverSocket.getLocalPort();
+
+			System.out.println("Server adress: " + serverAdress + " on port: " + port);
+			System.out.println("Server is ready to accept connections");
+			System.out.println("Enter \"/help\" to see the help menu.");
+		} catch (UnknownHostException unknownHostException) {
+			// Unable to read local address.
+			throw new IOException("Local host name could not be resolved into an address.", unknownHostException);
+		}
+	}
+
+	private void waitForConnections() throws IOException {
+		while (isRunning) {
+			try {
+				Socket socket = serverSocket.accept();
+				Logger.info("Client connected.", "ip", socket.getInetAddress(), "port", socket.getPort());
+
+				ServersideListener clientListener = new ServersideListener(socket, messageDispatcher, storage, this);
+				listenerThreadFactory.newThread(clientListener).start();
+				serverSideListeners.add(clientListener);
+			} catch (IOException ioException) {
+				// Server socket was closed while waiting for connections.
+				String address = Inet4Address.getLocalHost().getHostAddress();
+
+				int port = serverSocket.getLocalPort();
+				throw new IOException("Server socket" + "(address: " + address + ", port: " + port + ") was closed.",
+						ioException);
+			}
+		}
+	}
+
+	/**
+	 * Accepts connections for the selector based engine. The accepted
+	 * channels are distributed between the event loops in round robin order.
+	 * 
+	 * @throws IOException
+	 */
+	private void waitForChannelConnections() throws IOException {
+		ServerSocketChannel serverChannel = serverSocket.getChannel();
+		int nextLoop = 0;
+		while (isRunning) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				Logger.info("Client connected.", "ip", channel.socket().getInetAddress(), "port",
+						channel.socket().getPort());
+
+				SelectorEventLoop eventLoop = eventLoops[nextLoop];
+				nextLoop = (nextLoop + 1) % eventLoops.length;
+
+				NioClientConnection connection = new NioClientConnection(channel, eventLoop, messageDispatcher,
+						storage, this);
+				serverSideListeners.add(connection);
+				eventLoop.register(connection);
+			} catch (IOException ioException) {
+				// Server socket was closed while waiting for connections.
+				String address = Inet4Address.getLocalHost().getHostAddress();
+
+				int port = serverSocket.getLocalPort();
+				throw new IOException("Server socket" + "(address: " + address + ", port: " + port + ") was closed.",
+						ioException);
+			}
+		}
+	}
+
+	/**
+	 * Starts one event loop per available processor.
+	 * 
+	 * @throws IOException
+	 *             If a selector could not be opened.
+	 */
+	private void startEventLoops() throws IOException {
+		int numberOfLoops = Runtime.getRuntime().availableProcessors();
+		eventLoops = new SelectorEventLoop[numberOfLoops];
+		for (int i = 0; i < numberOfLoops; i++) {
+			eventLoops[i] = new SelectorEventLoop("SelectorEventLoop-" + i);
+			eventLoops[i].start();
+		}
+	}
+
+	private void stopEventLoops() {
+		if (eventLoops == null) {
+			return;
+		}
+
+		for (SelectorEventLoop eventLoop : eventLoops) {
+			if (eventLoop != null) {
+				eventLoop.shutdown();
+			}
+		}
+	}
+
+	private boolean initializeServer(String[] args, Scanner reader)
+			throws IOException, IllegalArgumentException, SQLException {
+		if (args == null) {
+			return false;
+		}
+
+		int port = DEFAULT_PORT;
+		try {
+			if (args.length >= 1 && args.length <= 2) {
+				port = Integer.parseInt(args[0]);
+				if (port < 1 || port > 65535) {
+					// Invalid port number
+					throw new IllegalArgumentException(args[0] + " is not valid port number.");
+				}
+			} else if (args.length > 2) {
+				System.out.println("Unknow number of arguments. Start the program with port number and "
+						+ "optional server engine (blocking, virtual or nio) or without any arguments to use the default ones.");
+				return false;
+			}
+		} catch (NumberFormatException numberFormatException) {
+			throw new IllegalArgumentException(args[0] + " is not a valid port number.", numberFormatException);
+		}
+
+		if (args.length == 2) {
+			engine = ServerEngine.fromName(args[1]);
+		}
+
+		if (engine == ServerEngine.VIRTUAL) {
+			if (!VirtualThreads.isSupported()) {
+				throw new IllegalArgumentException("The virtual server engine requires Java 21 or newer.");
+			}
+
+			listenerThreadFactory = VirtualThreads.newThreadFactory("ServersideListener-");
+		} else {
+			listenerThreadFactory = Executors.defaultThreadFactory();
+		}
+
+		try {
+			if (engine == ServerEngine.NIO) {
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(port));
+				serverSocket = serverChannel.socket();
+			} else {
+				serverSocket = new ServerSocket(port);
+			}
+		} catch (BindException bindException) {
+			throw new IOException("Port " + port + " is already in use.", bindException);
+		}
+
+		storage = createStorage();
+		try {
+			storage.open();
+		} catch (SQLException e) {
+			throw new SQLException("Could not open the storage. ", e);
+		}
+
+		System.out.println("Using " + engine.name().toLowerCase() + " server engine.");
+		printWelcomeMessage();
+		return true;
+	}
+
+	/**
+	 * Creates the storage selected with the chat.storage system property.
+	 */
+	private Storage createStorage() {
+		if (STORAGE.equalsIgnoreCase("file")) {
+			return new FileStorage(new File(STORAGE_DIRECTORY));
+		}
+
+		if (!STORAGE.equalsIgnoreCase("jdbc")) {
+			throw new IllegalArgumentException("Unknown storage: " + STORAGE + ". Valid values are jdbc and file.");
+		}
+
+		System.out.println("Enter password for the database sever: ");
+		String password = "abcd1234";
+		return new JdbcStorage(new DBConnector(password));
+	}
+
+	public static void main(String[] args) throws IOException, SQLException {
+		Server server = new Server();
+		server.startServer(args);
+	}
 }
\ No newline at end of file
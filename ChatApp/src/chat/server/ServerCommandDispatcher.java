@@ -1,214 +1,317 @@
-package chat.server;
-
-import java.io.IOException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.Date;
-import java.util.Scanner;
-
-import chat.util.Logger;
-
-public class ServerCommandDispatcher extends Thread {
-
-	private Server server;
-	private boolean isServerInputManagerOn;
-	private Scanner reader;
-
-	public ServerCommandDispatcher(Server server, Scanner reader) {
-		this.setServer(server);
-		this.reader = reader;
-	}
-
-	/**
-	 * Listens for input commands and executes them.
-	 */
-	public void run() {
-		isServerInputManagerOn = true;
-
-		try {
-			while (isServerInputManagerOn) {
-				String line = reader.nextLine();
-				if (line.equalsIgnoreCase("/help")) {
-					printHelpMenu();
-				} else if (line.equalsIgnoreCase("/disconnect")) {
-					server.stopServer();
-				} else if (line.startsWith("/remove:")) {
-					String name = line.substring(8).trim();
-					server.disconnectUser(name);
-				} else if (line.equalsIgnoreCase("/listall")) {
-					server.printConnectedUsers();
-				} else if (line.equalsIgnoreCase("/show full history")) {
-					System.out.println("Enter start and end date on seperated lines in format YYYY-MM-DD HH:mm:ss "
-							+ "or /all to see full history for selected users.");
-					String startDate = reader.nextLine();
-					if (startDate.equals("/all")) {
-						showFullHistory();
-						continue;
-					}
-
-					showFullHistoryTimePeriod(startDate);
-				} else if (line.equalsIgnoreCase("/show history")) {
-					System.out.println("Enter the usernames of the users that you "
-							+ "want to see history for seperated with ',': ");
-					String usersAsString = reader.nextLine();
-
-					showHistory(usersAsString);
-				} else {
-					System.out.println("Invalid command.");
-				}
-			}
-		} catch (IOException e) {
-			// Closing server side listeners resources failed.
-			System.err.println("Closing server side listeners resources failed. " + Logger.printError(e));
-		} catch (SQLException e) {
-			System.err.println("Lost connection with the database. " + Logger.printError(e));
-		} finally {
-			shutdown();
-		}
-	}
-
-	/**
-	 * Stops waiting for user input.
-	 */
-	void shutdown() {
-		isServerInputManagerOn = false;
-		reader.close();
-	}
-
-	private void showFullHistoryTimePeriod(String startDate) throws SQLException {
-		String endDate = reader.nextLine();
-		
-		String sql = "SELECT * FROM (SELECT date_logged_in as date, id_user, 'login' as type, ip as text "
-				+ "FROM connections union SELECT date as date, recipient, 'received' as type, text "
-				+ "FROM  messages  UNION SELECT date, recipient, 'sent', text FROM messages union  "
-				+ "SELECT date_logged_out as date, id_user_logout, 'logout', ip  FROM logouts) as result "
-				+ "WHERE result.date >= ? AND result.date <= ? ORDER BY date;";
-		String[] params = new String[] { startDate, endDate };
-
-		try {
-			ResultSet resultSet = server.getDbConnector().select(sql, params);
-			printResultSet(resultSet);
-		} catch (SQLException e) {
-			throw new SQLException("Unable to execute the sql query: " + sql, e);
-		}
-	}
-
-	private void showFullHistory() throws SQLException {
-		String sql = "SELECT date_logged_in as date, id_user, 'login' as type,  ip as text FROM connections "
-				+ "UNION SELECT date, recipient, 'sent', text FROM  messages "
-				+ "UNION SELECT date, sender, 'received', text FROM messages "
-				+ "UNION SELECT date_logged_out as date, id_user_logout, 'logout', ip FROM logouts ORDER BY date";
-		String[] params = new String[] {};
-		try {
-			ResultSet resultSet = server.getDbConnector().select(sql, params);
-			printResultSet(resultSet);
-		} catch (SQLException sqlException) {
-			throw new SQLException("Unable to execute the sql query: " + sql, sqlException);
-		}
-	}
-
-	private void printResultSet(ResultSet resultSet) throws SQLException {
-		StringBuilder sBuilder = new StringBuilder();
-
-		while (resultSet.next()) {
-
-			Date date = resultSet.getDate("date");
-			Date time = resultSet.getTime("date");
-			int userID = resultSet.getInt("id_user");
-			String userSQL = "SELECT username FROM users WHERE id_users =?";
-			Object[] params = new Object[] { userID };
-			ResultSet user = server.getDbConnector().select(userSQL, params);
-			if (user.next()) {
-				String username = user.getString("username");
-				sBuilder.append(date + " " + time + " " + ": " + username);
-			}
-
-			String type = resultSet.getString("type");
-			if (type.equals("login")) {
-				String ip = resultSet.getString("text");
-				sBuilder.append(" logged in from: " + ip);
-			} else if (type.equals("logout")) {
-				String ip = resultSet.getString("text");
-				sBuilder.append(" logged out from: " + ip);
-			} else if (type.equals("received")) {
-				String message = resultSet.getString("text");
-				sBuilder.append(" received message: " + message);
-			} else if (type.equals("sent")) {
-				String message = resultSet.getString("text");
-				sBuilder.append(" sent message: " + message);
-			} else {
-				System.out.println("Unknown sql query.");
-			}
-
-			sBuilder.append("\n");
-		}
-
-		if (sBuilder.length() == 0) {
-			System.out.println("No information found. ");
-			return;
-		}
-
-		System.out.println(sBuilder.toString());
-	}
-
-	private void showHistory(String usersAsString) throws SQLException {
-		String[] users = usersAsString.split("\\s*,\\s*");
-
-		String sql = "SELECT * FROM "
-				+ "(SELECT date_logged_in AS date, id_user, 'login' AS type, ip AS text FROM connections "
-				+ "UNION SELECT  date, sender, 'sent', text FROM messages "
-				+ "UNION SELECT date, recipient, 'received', text FROM messages "
-				+ "UNION SELECT date_logged_out AS date, id_user_logout, 'logout', ip FROM logouts) "
-				+ "AS result JOIN users u on result.id_user = u.id_users WHERE ";
-
-		StringBuilder sBuilder = new StringBuilder();
-		boolean isFirstElement = true;
-		for (String user : users) {
-			if (!isFirstElement) {
-				sBuilder.append(" OR ");
-			}
-
-			sBuilder.append("u.username = '" + user + "' ");
-
-			isFirstElement = false;
-		}
-		
-		System.out.println("Enter start and end date on seperated lines in format YYYY-MM-DD HH:mm:ss "
-				+ "or /all to see full history for selected users.");
-		String firstDate = reader.nextLine();
-		Object[] params = new Object[] {};
-		if (!firstDate.equals("/all")) {
-			String secondDate = reader.nextLine();
-			if (sBuilder.length() != 0) {
-				sBuilder.append(" AND ");
-			}
-
-			sBuilder.append(" result.date >= ? AND result.date <= ? ");
-			params = new Object[] { firstDate, secondDate };
-		}
-
-		sql = sql + sBuilder.toString() + " ORDER BY date";
-		ResultSet resultSet = server.getDbConnector().select(sql, params);
-		printResultSet(resultSet);
-	}
-
-	/**
-	 * Prints information about all supported commands.
-	 */
-	private void printHelpMenu() {
-		System.out.println("- To stop the server enter a command \"/disconnect\". "
-				+ "If you want to wait all messages currently in the queue to be sent you can "
-				+ "add \"false\" in the command or \"true\" if you want to shut down immediately. "
-				+ "If you don't select it all messages will be waited.");
-		System.out.println("- To disconnect a user enter a command in format: \"/remove: [username]\".");
-		System.out.println("- To see all connected users enter a command \"/listall\".");
-		System.out.println("- To see full server history /messages, users connections, "
-				+ "users logouts/ enter a command \"/show full history\" and follow the instructions.");
-		System.out.println(" - To see history for concrete user or concrete time period"
-				+ " enter a command \"/show history\" and follow the instructions.");
-	}
-
-	private void setServer(Server server) {
-		this.server = server;
-	}
-}
+package chat.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Scanner;
+
+import chat.util.Logger;
+
+/**
+ * Executes the commands of the administrator entered on the console.
+ *
+ * The history is printed in pages which are read from the storage one at a
+ * time and printed while they are read. The administrator moves between the
+ * pages with /next and /prev. The size of a page is set with the system
+ * property chat.history.pageSize (default 50).
+ */
+public class ServerCommandDispatcher extends Thread {
+
+	private static final int PAGE_SIZE = Integer.getInteger("chat.history.pageSize", 50);
+
+	private Server server;
+	private boolean isServerInputManagerOn;
+	private Scanner reader;
+	// Format of the dates entered by the administrator and printed in the
+	// history. Used only by the dispatcher thread.
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	// The history shown with /next and /prev. Used only by the dispatcher
+	// thread.
+	private Collection<String> historyUsernames;
+	private Date historyEnd;
+	private Date pageStart;
+	// Start of the next page, or null if the current page is the last one.
+	private Date nextPageStart;
+	// Starts of the pages before the current one. A null start is the
+	// beginning of the history.
+	private final List<Date> previousPageStarts = new ArrayList<>();
+	private boolean isHistoryShown;
+
+	public ServerCommandDispatcher(Server server, Scanner reader) {
+		this.setServer(server);
+		this.reader = reader;
+		this.dateFormat.setLenient(false);
+	}
+
+	/**
+	 * Listens for input commands and executes them.
+	 */
+	public void run() {
+		isServerInputManagerOn = true;
+
+		try {
+			while (isServerInputManagerOn) {
+				String line = reader.nextLine();
+				if (line.equalsIgnoreCase("/help")) {
+					printHelpMenu();
+				} else if (line.equalsIgnoreCase("/disconnect")) {
+					server.stopServer();
+				} else if (line.startsWith("/remove:")) {
+					String name = line.substring(8).trim();
+					server.disconnectUser(name);
+				} else if (line.equalsIgnoreCase("/listall")) {
+					server.printConnectedUsers();
+				} else if (line.equalsIgnoreCase("/stats")) {
+					System.out.print(server.getMetrics().formatStats());
+				} else if (line.equalsIgnoreCase("/rooms")) {
+					printRooms();
+				} else if (line.equalsIgnoreCase("/show full history")) {
+					System.out.println("Enter start and end date on seperated lines in format YYYY-MM-DD HH:mm:ss "
+							+ "or /all to see full history for selected users.");
+					String startDate = reader.nextLine();
+					if (startDate.equals("/all")) {
+						showFullHistory();
+						continue;
+					}
+
+					showFullHistoryTimePeriod(startDate);
+				} else if (line.equalsIgnoreCase("/show history")) {
+					System.out.println("Enter the usernames of the users that you "
+							+ "want to see history for seperated with ',': ");
+					String usersAsString = reader.nextLine();
+
+					showHistory(usersAsString);
+				} else if (line.equalsIgnoreCase("/next")) {
+					showNextPage();
+				} else if (line.equalsIgnoreCase("/prev")) {
+					showPreviousPage();
+				} else {
+					System.out.println("Invalid command.");
+				}
+			}
+		} catch (IOException e) {
+			// Closing server side listeners resources failed.
+			Logger.error("Closing server side listeners resources failed.", e);
+		} catch (SQLException e) {
+			Logger.error("Lost connection with the database.", e);
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Stops waiting for user input.
+	 */
+	void shutdown() {
+		isServerInputManagerOn = false;
+		reader.close();
+	}
+
+	/**
+	 * Prints the rooms with their members and message rates, sorted by name.
+	 */
+	private void printRooms() {
+		List<Room> rooms = new ArrayList<>(server.getRoomRegistry().getRooms());
+		if (rooms.isEmpty()) {
+			System.out.println("There are no rooms at the moment.");
+			return;
+		}
+
+		Collections.sort(rooms, new Comparator<Room>() {
+
+			@Override
+			public int compare(Room first, Room second) {
+				return first.getName().compareTo(second.getName());
+			}
+		});
+
+		System.out.println(String.format("%-34s %8s %12s %12s", "Room", "Members", "Messages", "Messages/s"));
+		for (Room room : rooms) {
+			Meter messages = room.getMessages();
+			System.out.println(String.format("%-34s %8d %12d %12.2f", room.getName(), room.size(),
+					messages.getCount(), messages.getRate(ServerMetrics.RATE_SECONDS)));
+		}
+	}
+
+	private void showFullHistoryTimePeriod(String startDate) throws SQLException {
+		String endDate = reader.nextLine();
+		printHistory(null, startDate, endDate);
+	}
+
+	private void showFullHistory() throws SQLException {
+		printHistory(null, null, null);
+	}
+
+	private void showHistory(String usersAsString) throws SQLException {
+		String[] users = usersAsString.split("\\s*,\\s*");
+
+		System.out.println("Enter start and end date on seperated lines in format YYYY-MM-DD HH:mm:ss "
+				+ "or /all to see full history for selected users.");
+		String firstDate = reader.nextLine();
+		String secondDate = null;
+		if (!firstDate.equals("/all")) {
+			secondDate = reader.nextLine();
+		} else {
+			firstDate = null;
+		}
+
+		printHistory(Arrays.asList(users), firstDate, secondDate);
+	}
+
+	/**
+	 * Starts showing the history and prints its first page.
+	 * 
+	 * @param usernames
+	 *            The users to print the history for, or null for all users.
+	 * @param startDate
+	 *            The start of the time period, or null for the full history.
+	 * @param endDate
+	 *            The end of the time period, or null for the full history.
+	 * @throws SQLException
+	 */
+	private void printHistory(Collection<String> usernames, String startDate, String endDate) throws SQLException {
+		Date from = null;
+		Date to = null;
+		if (startDate != null) {
+			try {
+				from = dateFormat.parse(startDate);
+				to = dateFormat.parse(endDate);
+			} catch (ParseException e) {
+				System.out.println("Invalid date. Use the format YYYY-MM-DD HH:mm:ss.");
+				return;
+			}
+		}
+
+		historyUsernames = usernames;
+		historyEnd = to;
+		previousPageStarts.clear();
+		isHistoryShown = true;
+		if (printPage(from) == 0) {
+			System.out.println("No information found. ");
+			isHistoryShown = false;
+		}
+	}
+
+	private void showNextPage() throws SQLException {
+		if (!isHistoryShown) {
+			System.out.println("Enter \"/show history\" or \"/show full history\" first.");
+		} else if (nextPageStart == null) {
+			System.out.println("This is the last page.");
+		} else {
+			previousPageStarts.add(pageStart);
+			printPage(nextPageStart);
+		}
+	}
+
+	private void showPreviousPage() throws SQLException {
+		if (!isHistoryShown) {
+			System.out.println("Enter \"/show history\" or \"/show full history\" first.");
+		} else if (previousPageStarts.isEmpty()) {
+			System.out.println("This is the first page.");
+		} else {
+			printPage(previousPageStarts.remove(previousPageStarts.size() - 1));
+		}
+	}
+
+	/**
+	 * Reads a page of the history and prints every entry as soon as it is
+	 * read, so only one entry is held in memory.
+	 * 
+	 * @param start
+	 *            The earliest date of the page, or null for the beginning of
+	 *            the history.
+	 * @return The number of printed entries.
+	 * @throws SQLException
+	 */
+	private int printPage(Date start) throws SQLException {
+		// Not closed, as closing it would close System.out.
+		final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+		final Date[] lastDate = new Date[1];
+		final int[] entries = new int[1];
+		try {
+			server.getStorage().readHistory(historyUsernames, start, historyEnd, PAGE_SIZE, new HistoryHandler() {
+
+				@Override
+				public void entry(Date date, String username, String type, String text) {
+					out.print(dateFormat.format(date) + " : " + username);
+					if (type.equals(LOGIN)) {
+						out.println(" logged in from: " + text);
+					} else if (type.equals(LOGOUT)) {
+						out.println(" logged out from: " + text);
+					} else if (type.equals(RECEIVED)) {
+						out.println(" received message: " + text);
+					} else if (type.equals(SENT)) {
+						out.println(" sent message: " + text);
+					} else {
+						out.println(" unknown history entry.");
+					}
+
+					lastDate[0] = date;
+					entries[0]++;
+				}
+			});
+		} finally {
+			out.flush();
+		}
+
+		pageStart = start;
+		// A page holds all entries of its last date, so the next one starts
+		// right after it.
+		nextPageStart = entries[0] >= PAGE_SIZE ? new Date(lastDate[0].getTime() + 1) : null;
+		if (entries[0] > 0) {
+			String page = "Page " + (previousPageStarts.size() + 1) + ".";
+			if (nextPageStart == null) {
+				page += " This is the last page.";
+			}
+
+			if (nextPageStart != null && !previousPageStarts.isEmpty()) {
+				page += " Enter \"/next\" for the next page or \"/prev\" for the previous one.";
+			} else if (nextPageStart != null) {
+				page += " Enter \"/next\" for the next page.";
+			} else if (!previousPageStarts.isEmpty()) {
+				page += " Enter \"/prev\" for the previous one.";
+			}
+
+			System.out.println(page);
+		}
+
+		return entries[0];
+	}
+
+	/**
+	 * Prints information about all supported commands.
+	 */
+	private void printHelpMenu() {
+		System.out.println("- To stop the server enter a command \"/disconnect\". "
+				+ "If you want to wait all messages currently in the queue to be sent you can "
+				+ "add \"false\" in the command or \"true\" if you want to shut down immediately. "
+				+ "If you don't select it all messages will be waited.");
+		System.out.println("- To disconnect a user enter a command in format: \"/remove: [username]\".");
+		System.out.println("- To see all connected users enter a command \"/listall\".");
+		System.out.println("- To see the metrics of the server /connections, message rates, queues, "
+				+ "database latencies/ enter a command \"/stats\".");
+		System.out.println("- To see the rooms with their members and message rates enter a command \"/rooms\".");
+		System.out.println("- To see full server history /messages, users connections, "
+				+ "users logouts/ enter a command \"/show full history\" and follow the instructions.");
+		System.out.println(" - To see history for concrete user or concrete time period"
+				+ " enter a command \"/show history\" and follow the instructions.");
+		System.out.println("- The history is shown in pages. To see the next or the previous page enter a command "
+				+ "\"/next\" or \"/prev\".");
+	}
+
+	private void setServer(Server server) {
+		this.server = server;
+	}
+}
@@ -0,0 +1,35 @@
+package chat.server;
+
+/**
+ * Engines which can be used by the server to serve client connections.
+ */
+public enum ServerEngine {
+
+	// Every connection is served by a dedicated thread blocked on reading.
+	BLOCKING,
+
+	// Same as the blocking engine, but the listeners and the message senders
+	// run on virtual threads. Requires Java 21 or newer.
+	VIRTUAL,
+
+	// Connections are served by a small number of selector event loops.
+	NIO;
+
+	/**
+	 * Returns the engine with the given name ignoring the case.
+	 *
+	 * @param name
+	 *            Name of the engine.
+	 * @throws IllegalArgumentException
+	 *             If there is no engine with such name.
+	 */
+	public static ServerEngine fromName(String name) {
+		for (ServerEngine engine : values()) {
+			if (engine.name().equalsIgnoreCase(name)) {
+				return engine;
+			}
+		}
+
+		throw new IllegalArgumentException(name + " is not a valid server engine.");
+	}
+}
@@ -0,0 +1,438 @@
+package chat.server;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import chat.util.LatencyHistogram;
+
+/**
+ * Metrics of the server. The message path counts the received, written and
+ * failed messages with meters. Everything else is read from the components
+ * of the server when the metrics are printed, so it costs nothing on the
+ * message path.
+ *
+ * The metrics are printed by the /stats command of the administrator and
+ * served in the Prometheus text format by MetricsHttpServer. The HTTP
+ * endpoint is configured with the system properties:
+ * <ul>
+ * <li>chat.metrics.port - port of the endpoint, 0 to disable it (default
+ * 9222)</li>
+ * <li>chat.metrics.address - address the endpoint listens on (default
+ * 127.0.0.1, so it is reachable only from the server machine)</li>
+ * </ul>
+ */
+class ServerMetrics {
+
+	// Period of the rates printed with the counters.
+	static final int RATE_SECONDS = 10;
+
+	private final Server server;
+
+	private final Meter messagesReceived = new Meter();
+	private final Meter messagesWritten = new Meter();
+	private final Meter deliveryFailures = new Meter();
+	private final Meter outboundRejected = new Meter();
+	private final Meter outboundDropped = new Meter();
+	private final Meter slowConsumersDisconnected = new Meter();
+	private final Meter writeTimeouts = new Meter();
+	private final Meter dispatcherSaturated = new Meter();
+	private final Meter offlineMessagesStored = new Meter();
+	private final Meter offlineMessagesDelivered = new Meter();
+	private final Meter roomMessages = new Meter();
+	private final Meter clusterForwarded = new Meter();
+	private final Meter clusterReceived = new Meter();
+	private final Meter logins = new Meter();
+	private final Meter sessionsResumed = new Meter();
+	private final Meter[] meters = new Meter[] { messagesReceived, messagesWritten, deliveryFailures,
+			outboundRejected, outboundDropped, slowConsumersDisconnected, writeTimeouts, dispatcherSaturated,
+			offlineMessagesStored, offlineMessagesDelivered, roomMessages, clusterForwarded, clusterReceived,
+			logins, sessionsResumed };
+	// Time from receiving a login or a registration to queuing its result, in
+	// microseconds.
+	private final LatencyHistogram loginLatencies = new LatencyHistogram();
+
+	private ScheduledExecutorService sampler;
+
+	ServerMetrics(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Messages received from the clients, both to one user and to /all.
+	 */
+	Meter getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	/**
+	 * Messages written to the sockets of the clients.
+	 */
+	Meter getMessagesWritten() {
+		return messagesWritten;
+	}
+
+	/**
+	 * Messages which could not be queued for a recipient.
+	 */
+	Meter getDeliveryFailures() {
+		return deliveryFailures;
+	}
+
+	/**
+	 * Messages refused because the outbound queues were full.
+	 */
+	Meter getOutboundRejected() {
+		return outboundRejected;
+	}
+
+	/**
+	 * Queued messages dropped to make room for newer ones.
+	 */
+	Meter getOutboundDropped() {
+		return outboundDropped;
+	}
+
+	/**
+	 * Clients disconnected because their outbound queue was full.
+	 */
+	Meter getSlowConsumersDisconnected() {
+		return slowConsumersDisconnected;
+	}
+
+	/**
+	 * Clients disconnected because writing to them timed out.
+	 */
+	Meter getWriteTimeouts() {
+		return writeTimeouts;
+	}
+
+	/**
+	 * Tasks refused by the busy dispatcher, which were run by the submitting
+	 * thread or submitted again later by an event loop.
+	 */
+	Meter getDispatcherSaturated() {
+		return dispatcherSaturated;
+	}
+
+	/**
+	 * Messages stored for users who were not connected.
+	 */
+	Meter getOfflineMessagesStored() {
+		return offlineMessagesStored;
+	}
+
+	/**
+	 * Stored messages delivered to users at login.
+	 */
+	Meter getOfflineMessagesDelivered() {
+		return offlineMessagesDelivered;
+	}
+
+	/**
+	 * Messages sent to all rooms. The rates of the single rooms are kept by
+	 * the rooms.
+	 */
+	Meter getRoomMessages() {
+		return roomMessages;
+	}
+
+	/**
+	 * Frames queued for the other nodes of the cluster.
+	 */
+	Meter getClusterForwarded() {
+		return clusterForwarded;
+	}
+
+	/**
+	 * Frames received from the other nodes of the cluster.
+	 */
+	Meter getClusterReceived() {
+		return clusterReceived;
+	}
+
+	/**
+	 * Successful logins and registrations.
+	 */
+	Meter getLogins() {
+		return logins;
+	}
+
+	LatencyHistogram getLoginLatencies() {
+		return loginLatencies;
+	}
+
+	/**
+	 * Sessions taken back with a token on a new connection. They are counted
+	 * as logins as well.
+	 */
+	Meter getSessionsResumed() {
+		return sessionsResumed;
+	}
+
+	/**
+	 * Starts sampling the meters once per second for their rates.
+	 */
+	void start() {
+		sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "MetricsSampler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sampler.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				for (Meter meter : meters) {
+					meter.sample();
+				}
+
+				server.getRoomRegistry().sample();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+
+	void shutdown() {
+		if (sampler != null) {
+			sampler.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the metrics formatted for the administrator, one per line.
+	 * Latencies are printed in microseconds.
+	 */
+	String formatStats() {
+		final StringBuilder stats = new StringBuilder();
+		write(new MetricsWriter() {
+
+			@Override
+			public void counter(String name, String help, long value) {
+				stats.append(String.format("%-44s %d%n", name, value));
+			}
+
+			@Override
+			public void gauge(String name, String help, double value) {
+				stats.append(String.format("%-44s %s%n", name, formatNumber(value)));
+			}
+
+			@Override
+			public void latencies(String name, String help, LatencyHistogram histogram) {
+				stats.append(String.format("%-44s %s%n", name + " (us)", histogram.summary()));
+			}
+		});
+
+		return stats.toString();
+	}
+
+	/**
+	 * Returns the metrics in the Prometheus text format. Latencies are
+	 * exported as summaries in seconds.
+	 */
+	String formatPrometheus() {
+		final StringBuilder metrics = new StringBuilder();
+		write(new MetricsWriter() {
+
+			@Override
+			public void counter(String name, String help, long value) {
+				header(name, help, "counter");
+				metrics.append(name).append(' ').append(value).append('\n');
+			}
+
+			@Override
+			public void gauge(String name, String help, double value) {
+				header(name, help, "gauge");
+				metrics.append(name).append(' ').append(formatNumber(value)).append('\n');
+			}
+
+			@Override
+			public void latencies(String name, String help, LatencyHistogram histogram) {
+				header(name, help, "summary");
+				for (String quantile : new String[] { "0.5", "0.9", "0.99", "0.999" }) {
+					long value = histogram.getValueAtPercentile(Double.parseDouble(quantile) * 100);
+					metrics.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+							.append(microsToSeconds(value)).append('\n');
+				}
+
+				metrics.append(name).append("_sum ").append(microsToSeconds(histogram.getSum())).append('\n');
+				metrics.append(name).append("_count ").append(histogram.getCount()).append('\n');
+			}
+
+			private void header(String name, String help, String type) {
+				metrics.append("# HELP ").append(name).append(' ').append(help).append('\n');
+				metrics.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+			}
+		});
+
+		return metrics.toString();
+	}
+
+	/**
+	 * Passes all metrics of the server to the writer.
+	 */
+	private void write(MetricsWriter writer) {
+		writer.gauge("chat_connections", "Open client connections.", server.getConnectionCount());
+		writer.gauge("chat_logged_in_users", "Logged in users.", server.getClients().size());
+
+		writeMeter(writer, "chat_logins", "Successful logins and registrations.", logins);
+		writer.latencies("chat_login_seconds", "Time from receiving a login to queuing its result.", loginLatencies);
+		writeMeter(writer, "chat_sessions_resumed", "Sessions resumed with a token.", sessionsResumed);
+		SessionRegistry sessionRegistry = server.getSessionRegistry();
+		writer.gauge("chat_sessions_resumable", "Sessions which can be resumed with a token.",
+				sessionRegistry.size());
+		writer.counter("chat_sessions_expired_total", "Dropped sessions which were not resumed in time.",
+				sessionRegistry.getExpiredSessions());
+		writeMeter(writer, "chat_messages_received", "Messages received from the clients.", messagesReceived);
+		writeMeter(writer, "chat_messages_written", "Messages written to the clients.", messagesWritten);
+		writeMeter(writer, "chat_delivery_failures", "Messages which could not be queued for a recipient.",
+				deliveryFailures);
+		writer.gauge("chat_outbound_queued_messages", "Messages waiting to be written to all clients.",
+				OutboundQueue.getQueuedMessages());
+		writeMeter(writer, "chat_outbound_rejected", "Messages refused because the outbound queues were full.",
+				outboundRejected);
+		writeMeter(writer, "chat_outbound_dropped", "Queued messages dropped to make room for newer ones.",
+				outboundDropped);
+		writer.counter("chat_slow_consumers_disconnected_total",
+				"Clients disconnected because their outbound queue was full.",
+				slowConsumersDisconnected.getCount());
+		writer.counter("chat_write_timeouts_total", "Clients disconnected because writing to them timed out.",
+				writeTimeouts.getCount());
+		writer.gauge("chat_rooms", "Rooms with at least one member.", server.getRoomRegistry().size());
+		writeMeter(writer, "chat_room_messages", "Messages sent to the rooms.", roomMessages);
+		writeMeter(writer, "chat_offline_messages_stored", "Messages stored for users who were not connected.",
+				offlineMessagesStored);
+		writeMeter(writer, "chat_offline_messages_delivered", "Stored messages delivered to users at login.",
+				offlineMessagesDelivered);
+
+		ClusterNode clusterNode = server.getClusterNode();
+		if (clusterNode != null) {
+			writeMeter(writer, "chat_cluster_forwarded", "Frames queued for the other nodes.", clusterForwarded);
+			writeMeter(writer, "chat_cluster_received", "Frames received from the other nodes.", clusterReceived);
+			int connectedLinks = 0;
+			int queuedFrames = 0;
+			long droppedFrames = 0;
+			for (ClusterLink link : clusterNode.getLinks()) {
+				connectedLinks += link.isConnected() ? 1 : 0;
+				queuedFrames += link.getQueuedFrames();
+				droppedFrames += link.getDroppedFrames();
+			}
+
+			writer.gauge("chat_cluster_links_connected", "Connected links to the other nodes.", connectedLinks);
+			writer.gauge("chat_cluster_queued_frames", "Frames waiting for the other nodes.", queuedFrames);
+			writer.counter("chat_cluster_dropped_frames_total",
+					"Frames dropped because too many were waiting for a node.", droppedFrames);
+		}
+
+		MessageDispatcher messageDispatcher = server.getMessageDispatcher();
+		if (messageDispatcher != null) {
+			writer.gauge("chat_dispatcher_queue_depth", "Tasks waiting for a dispatcher thread.",
+					messageDispatcher.getQueueDepth());
+			writer.gauge("chat_dispatcher_active_threads", "Dispatcher threads running a task.",
+					messageDispatcher.getActiveThreads());
+			writer.counter("chat_dispatcher_saturated_total",
+					"Tasks refused by the busy dispatcher, run by the caller or deferred by an event loop.",
+					dispatcherSaturated.getCount());
+		}
+
+		MessagePersister messagePersister = server.getMessagePersister();
+		if (messagePersister != null) {
+			writer.gauge("chat_persister_queue_depth", "Messages and sessions waiting to be stored.",
+					messagePersister.getQueueDepth());
+			writer.counter("chat_persister_stored_total", "Stored message rows.",
+					messagePersister.getStoredMessages());
+			writer.counter("chat_persister_dropped_total", "Rows dropped because the queue was full.",
+					messagePersister.getDroppedMessages());
+			writer.counter("chat_persister_failed_total", "Message rows which failed to be stored.",
+					messagePersister.getFailedMessages());
+			writer.counter("chat_persister_sessions_stored_total", "Stored login and logout rows.",
+					messagePersister.getStoredSessions());
+			writer.counter("chat_persister_sessions_failed_total", "Login and logout rows which failed to be stored.",
+					messagePersister.getFailedSessions());
+		}
+
+		AuthService authService = server.getAuthService();
+		if (authService != null) {
+			writer.gauge("chat_auth_queue_depth", "Logins waiting for the password check.",
+					authService.getQueueDepth());
+			writer.gauge("chat_auth_cache_size", "Users with cached credentials.", authService.getCacheSize());
+			writer.counter("chat_auth_cache_hits_total", "Logins checked against the cached credentials.",
+					authService.getCacheHits());
+			writer.counter("chat_auth_cache_misses_total", "Logins checked against the storage.",
+					authService.getCacheMisses());
+			writer.counter("chat_auth_failed_total", "Logins refused for wrong credentials.",
+					authService.getFailedLogins());
+			writer.counter("chat_auth_throttled_total", "Logins refused for too many failures of the address.",
+					authService.getThrottledLogins());
+			writer.counter("chat_auth_rejected_total", "Logins refused because the password check was busy.",
+					authService.getRejectedLogins());
+		}
+
+		UserIdCache userIdCache = server.getUserIdCache();
+		if (userIdCache != null) {
+			writer.gauge("chat_user_id_cache_size", "Cached user ids.", userIdCache.size());
+			writer.counter("chat_user_id_cache_hits_total", "User ids found in the cache.", userIdCache.getHits());
+			writer.counter("chat_user_id_cache_misses_total", "User ids read from the storage.",
+					userIdCache.getMisses());
+		}
+
+		BufferPool bufferPool = OutboundMessage.getBufferPool();
+		writer.gauge("chat_buffer_pool_free", "Free pooled buffers.", bufferPool.getFreeBuffers());
+		writer.counter("chat_buffer_pool_allocated_total", "Allocated pooled buffers.",
+				bufferPool.getAllocatedBuffers());
+		writer.counter("chat_buffer_pool_reused_total", "Reused pooled buffers.", bufferPool.getReusedBuffers());
+		writer.counter("chat_buffer_pool_unpooled_total", "Buffers too large for the pool.",
+				bufferPool.getUnpooledBuffers());
+
+		if (server.getStorage() instanceof JdbcStorage) {
+			DBConnector dbConnector = ((JdbcStorage) server.getStorage()).getDbConnector();
+			writer.gauge("chat_db_open_connections", "Open database connections.", dbConnector.getOpenConnections());
+			writer.gauge("chat_db_idle_connections", "Idle database connections.", dbConnector.getIdleConnections());
+			writer.counter("chat_db_acquire_timeouts_total", "Timeouts while waiting for a free connection.",
+					dbConnector.getAcquireTimeouts());
+			writer.counter("chat_db_reconnects_total", "Replaced broken connections.", dbConnector.getReconnects());
+			writer.latencies("chat_db_insert_seconds", "Time of the insert statements.",
+					dbConnector.getInsertLatencies());
+			writer.latencies("chat_db_select_seconds", "Time of the queries.", dbConnector.getSelectLatencies());
+		}
+	}
+
+	private void writeMeter(MetricsWriter writer, String name, String help, Meter meter) {
+		writer.counter(name + "_total", help, meter.getCount());
+		writer.gauge(name + "_per_second", help + " Average of the last " + RATE_SECONDS + " seconds.",
+				meter.getRate(RATE_SECONDS));
+	}
+
+	private static String formatNumber(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			return Long.toString((long) value);
+		}
+
+		// Prometheus requires a dot whatever the locale of the server is.
+		return String.format(Locale.ROOT, "%.2f", value);
+	}
+
+	private static String microsToSeconds(long micros) {
+		return Double.toString(micros / 1000000.0);
+	}
+
+	/**
+	 * Receives the metrics in one of the output formats.
+	 */
+	private interface MetricsWriter {
+
+		void counter(String name, String help, long value);
+
+		void gauge(String name, String help, double value);
+
+		/**
+		 * Writes a histogram of latencies in microseconds.
+		 */
+		void latencies(String name, String help, LatencyHistogram histogram);
+	}
+}
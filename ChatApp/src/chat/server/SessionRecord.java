@@ -0,0 +1,40 @@
+package chat.server;
+
+import java.util.Date;
+
+/**
+ * A login or a logout of a user as it is stored for the history.
+ */
+public class SessionRecord {
+
+	private final boolean isLogin;
+	private final int userId;
+	private final String ip;
+	private final Date date;
+
+	public SessionRecord(boolean isLogin, int userId, String ip, Date date) {
+		this.isLogin = isLogin;
+		this.userId = userId;
+		this.ip = ip;
+		this.date = date;
+	}
+
+	/**
+	 * Returns true for a login, false for a logout.
+	 */
+	public boolean isLogin() {
+		return isLogin;
+	}
+
+	public int getUserId() {
+		return userId;
+	}
+
+	public String getIp() {
+		return ip;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+}
@@ -0,0 +1,196 @@
+package chat.server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session tokens which let a client whose connection dropped take its
+ * session back on a new connection without logging in again. A logged in
+ * client asks for a token. When its connection is lost the session is kept
+ * for a while, and a RESUME frame with the username and the token binds the
+ * new connection to the user with one lookup, without checking the password
+ * and without reading the storage.
+ *
+ * The messages queued for the old connection but never written are kept
+ * with the session, at most the capacity of one outbound queue, and written
+ * to the new connection. Messages sent while the user was away are stored
+ * in the offline mailbox and delivered as after a login.
+ *
+ * A token can be used once, the client asks for a new one after resuming.
+ * Logging out or being disconnected by the server ends the session. The
+ * tokens are kept in memory only, so they do not survive a restart of the
+ * server and are not known to the other nodes of a cluster. A client whose
+ * token is refused logs in again.
+ *
+ * The time a dropped session can be resumed is set with the system property
+ * chat.session.resumeSeconds (default 120, 0 disables the tokens).
+ */
+class SessionRegistry {
+
+	private static final long RESUME_WINDOW = TimeUnit.SECONDS
+			.toNanos(Long.getLong("chat.session.resumeSeconds", 120));
+	// Expired sessions are looked for at most this often.
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static final int TOKEN_BYTES = 18;
+
+	private final SecureRandom random = new SecureRandom();
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+	private final AtomicLong expiredSessions = new AtomicLong();
+
+	/**
+	 * Creates a token for the session of a logged in user.
+	 *
+	 * @return The token, or null if the tokens are disabled.
+	 */
+	String issue(ClientConnection connection, String username, int userId) {
+		if (RESUME_WINDOW <= 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[TOKEN_BYTES];
+		random.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		sessions.put(token, new Session(connection, username, userId));
+		sweep(System.nanoTime());
+		return token;
+	}
+
+	/**
+	 * Marks the session as dropped. From now on it can be resumed until the
+	 * resume window passes.
+	 *
+	 * @param roomNames
+	 *            The rooms the user was in, joined again when the session is
+	 *            resumed.
+	 */
+	void detach(String token, ClientConnection connection, List<String> roomNames) {
+		Session session = sessions.get(token);
+		if (session != null && session.connection == connection) {
+			session.roomNames = roomNames;
+			session.detachedAt = System.nanoTime();
+		}
+
+		sweep(System.nanoTime());
+	}
+
+	/**
+	 * Ends a session, so its token can not be used anymore.
+	 */
+	void revoke(String token) {
+		Session session = sessions.remove(token);
+		if (session != null) {
+			session.connection.releaseUnsent();
+		}
+	}
+
+	/**
+	 * Takes the session of the token over. The session may still have its
+	 * connection, if the server has not noticed yet that it was lost.
+	 *
+	 * @return The session, or null if the token is unknown, expired or
+	 *         belongs to another user.
+	 */
+	Session resume(String token, String username) {
+		Session session = sessions.get(token);
+		if (session == null || !session.username.equals(username)) {
+			return null;
+		}
+
+		if (session.isExpired(System.nanoTime())) {
+			if (sessions.remove(token, session)) {
+				expire(session);
+			}
+
+			return null;
+		}
+
+		if (!sessions.remove(token, session)) {
+			// Resumed by another connection at the same time.
+			return null;
+		}
+
+		return session;
+	}
+
+	/**
+	 * Returns the number of sessions which can be resumed, including the
+	 * sessions whose connections are still open.
+	 */
+	int size() {
+		return sessions.size();
+	}
+
+	long getExpiredSessions() {
+		return expiredSessions.get();
+	}
+
+	/**
+	 * Removes the expired sessions and releases their messages. Runs at most
+	 * once per interval whatever the number of callers.
+	 */
+	private void sweep(long now) {
+		long last = lastSweep.get();
+		if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+			return;
+		}
+
+		Iterator<Session> iterator = sessions.values().iterator();
+		while (iterator.hasNext()) {
+			Session session = iterator.next();
+			if (session.isExpired(now)) {
+				iterator.remove();
+				expire(session);
+			}
+		}
+	}
+
+	private void expire(Session session) {
+		session.connection.releaseUnsent();
+		expiredSessions.incrementAndGet();
+	}
+
+	static class Session {
+
+		private final ClientConnection connection;
+		private final String username;
+		private final int userId;
+		// Set once the connection is lost.
+		private volatile List<String> roomNames;
+		private volatile long detachedAt;
+
+		Session(ClientConnection connection, String username, int userId) {
+			this.connection = connection;
+			this.username = username;
+			this.userId = userId;
+		}
+
+		ClientConnection getConnection() {
+			return connection;
+		}
+
+		int getUserId() {
+			return userId;
+		}
+
+		/**
+		 * Returns the rooms of the user when the connection was lost, or null
+		 * if the connection has not been found lost yet.
+		 */
+		List<String> getRoomNames() {
+			return roomNames;
+		}
+
+		private boolean isExpired(long now) {
+			long since = detachedAt;
+			return since != 0 && now - since > RESUME_WINDOW;
+		}
+	}
+}
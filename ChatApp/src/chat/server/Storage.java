@@ -0,0 +1,157 @@
+package chat.server;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent store of the server. Keeps the registered users, their logins
+ * and logouts and the delivered messages. The implementation is selected at
+ * startup with the system property chat.storage:
+ * <ul>
+ * <li>jdbc - the MySQL database used by the server (default)</li>
+ * <li>file - append-only files in the directory set with chat.storage.dir,
+ * used to run a server without a database server</li>
+ * </ul>
+ * 
+ * All methods report storage failures with SQLException, so the callers
+ * handle every implementation the same way. Implementations must be safe for
+ * use by many threads.
+ */
+public interface Storage {
+
+	/**
+	 * Opens the store. Must be called before any other method.
+	 * 
+	 * @throws SQLException
+	 *             If the store can not be opened.
+	 */
+	void open() throws SQLException;
+
+	/**
+	 * Releases the resources of the store. Data written before is not lost.
+	 */
+	void close();
+
+	/**
+	 * Registers a new user.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 * @param passwordHash
+	 *            The hash of the password as encoded by PasswordHasher.
+	 * @return The id of the new user.
+	 * @throws SQLException
+	 *             If the name is already registered or the store failed.
+	 */
+	int insertUser(String username, String passwordHash) throws SQLException;
+
+	/**
+	 * Returns the id and the password hash of a user, or null if there is no
+	 * such user. The password is checked by the caller.
+	 * 
+	 * @throws SQLException
+	 */
+	UserCredentials findCredentials(String username) throws SQLException;
+
+	/**
+	 * Replaces the password hash of a user.
+	 * 
+	 * @param passwordHash
+	 *            The hash of the password as encoded by PasswordHasher.
+	 * @throws SQLException
+	 */
+	void updatePassword(int userId, String passwordHash) throws SQLException;
+
+	/**
+	 * Returns the id of a user or null if there is no such user.
+	 * 
+	 * @throws SQLException
+	 */
+	Integer findUserId(String username) throws SQLException;
+
+	/**
+	 * Returns the name of a user or null if there is no such user.
+	 * 
+	 * @throws SQLException
+	 */
+	String findUsername(int userId) throws SQLException;
+
+	/**
+	 * Returns the ids of several users. Names which are not registered are
+	 * missing in the result.
+	 * 
+	 * @throws SQLException
+	 */
+	Map<String, Integer> findUserIds(Collection<String> usernames) throws SQLException;
+
+	/**
+	 * Stores logins and logouts of the users. The records are written
+	 * together, so the callers should pass as many as they have.
+	 * 
+	 * @throws SQLException
+	 */
+	void insertSessions(List<SessionRecord> sessions) throws SQLException;
+
+	/**
+	 * Stores delivered messages. The messages are written together, so the
+	 * callers should pass as many as they have.
+	 * 
+	 * @throws SQLException
+	 */
+	void insertMessages(List<MessageRecord> messages) throws SQLException;
+
+	/**
+	 * Stores a message for a user who is not connected. The recipient id of
+	 * the record is the owner of the mailbox.
+	 * 
+	 * @throws SQLException
+	 */
+	void insertOfflineMessage(MessageRecord message) throws SQLException;
+
+	/**
+	 * Reads the oldest messages waiting in the mailbox of a user, in the
+	 * order they were stored.
+	 * 
+	 * @param recipientId
+	 *            The owner of the mailbox.
+	 * @param afterId
+	 *            Only messages with a greater id are read, 0 for all.
+	 * @param limit
+	 *            The maximum number of messages.
+	 * @throws SQLException
+	 */
+	List<OfflineMessage> readOfflineMessages(int recipientId, long afterId, int limit) throws SQLException;
+
+	/**
+	 * Deletes the messages of a mailbox up to and including the message with
+	 * the given id.
+	 * 
+	 * @throws SQLException
+	 */
+	void deleteOfflineMessages(int recipientId, long lastId) throws SQLException;
+
+	/**
+	 * Passes one page of the history to the handler ordered by date. The page
+	 * starts with the earliest entry in the period and holds at least limit
+	 * entries if there are enough of them. Entries with the same date are
+	 * never split between pages, so the next page starts right after the
+	 * date of the last entry passed.
+	 * 
+	 * @param usernames
+	 *            The users to read the history for, or null for all users.
+	 * @param from
+	 *            The earliest date to include, or null.
+	 * @param to
+	 *            The latest date to include, or null.
+	 * @param limit
+	 *            The size of the page.
+	 * @param handler
+	 *            Receives the entries.
+	 * @throws SQLException
+	 */
+	void readHistory(Collection<String> usernames, Date from, Date to, int limit, HistoryHandler handler)
+			throws SQLException;
+}
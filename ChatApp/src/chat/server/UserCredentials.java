@@ -0,0 +1,26 @@
+package chat.server;
+
+/**
+ * The id of a registered user and the password hash stored for the user.
+ */
+public class UserCredentials {
+
+	private final int userId;
+	private final String passwordHash;
+
+	public UserCredentials(int userId, String passwordHash) {
+		this.userId = userId;
+		this.passwordHash = passwordHash;
+	}
+
+	public int getUserId() {
+		return userId;
+	}
+
+	/**
+	 * Returns the password hash as encoded by PasswordHasher.
+	 */
+	public String getPasswordHash() {
+		return passwordHash;
+	}
+}
@@ -0,0 +1,199 @@
+package chat.server;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bidirectional cache between usernames and the ids of the users table. The
+ * cache is filled when users log in or register and on every miss. When the
+ * cache is full the least recently used user is evicted.
+ * 
+ * The capacity is set with the system property chat.userCache.capacity
+ * (default 10000).
+ */
+public class UserIdCache {
+
+	private static final int CAPACITY = Integer.getInteger("chat.userCache.capacity", 10000);
+
+	private final Storage storage;
+
+	// Both maps are guarded by the lock. The access order of the first map is
+	// used for the eviction.
+	private final LinkedHashMap<String, Integer> idsByUsername;
+	private final Map<Integer, String> usernamesById;
+	// Lock used instead of synchronized, so virtual threads are not pinned.
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public UserIdCache(Storage storage) {
+		this.storage = storage;
+		this.idsByUsername = new LinkedHashMap<>(16, 0.75f, true);
+		this.usernamesById = new HashMap<>();
+	}
+
+	/**
+	 * Adds a user to the cache.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 * @param id
+	 *            The id of the user in the users table.
+	 */
+	public void put(String username, int id) {
+		lock.lock();
+		try {
+			Integer oldId = idsByUsername.put(username, id);
+			if (oldId != null && oldId != id) {
+				usernamesById.remove(oldId);
+			}
+
+			usernamesById.put(id, username);
+			evictEldest();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the id of a user.
+	 * 
+	 * @param username
+	 *            The name of the user.
+	 * @return The id of the user or null if there is no such user.
+	 * @throws SQLException
+	 */
+	public Integer getId(String username) throws SQLException {
+		Integer id = getCachedId(username);
+		if (id != null) {
+			hits.incrementAndGet();
+			return id;
+		}
+
+		misses.incrementAndGet();
+		id = storage.findUserId(username);
+		if (id != null) {
+			put(username, id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Returns the name of a user.
+	 * 
+	 * @param id
+	 *            The id of the user.
+	 * @return The name of the user or null if there is no such user.
+	 * @throws SQLException
+	 */
+	public String getUsername(int id) throws SQLException {
+		String username;
+		lock.lock();
+		try {
+			username = usernamesById.get(id);
+			if (username != null) {
+				// Mark the user as recently used.
+				idsByUsername.get(username);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (username != null) {
+			hits.incrementAndGet();
+			return username;
+		}
+
+		misses.incrementAndGet();
+		username = storage.findUsername(id);
+		if (username != null) {
+			put(username, id);
+		}
+
+		return username;
+	}
+
+	/**
+	 * Returns the ids of several users. All users missing in the cache are
+	 * resolved with a single call to the storage.
+	 * 
+	 * @param usernames
+	 *            The names of the users.
+	 * @return Map with the ids of the existing users.
+	 * @throws SQLException
+	 */
+	public Map<String, Integer> getIds(Collection<String> usernames) throws SQLException {
+		Map<String, Integer> ids = new HashMap<>();
+		Set<String> missing = new HashSet<>();
+		for (String username : usernames) {
+			if (ids.containsKey(username)) {
+				continue;
+			}
+
+			Integer id = getCachedId(username);
+			if (id == null) {
+				missing.add(username);
+			} else {
+				ids.put(username, id);
+			}
+		}
+
+		hits.addAndGet(ids.size());
+		misses.addAndGet(missing.size());
+
+		if (!missing.isEmpty()) {
+			Map<String, Integer> found = storage.findUserIds(missing);
+			for (Map.Entry<String, Integer> entry : found.entrySet()) {
+				ids.put(entry.getKey(), entry.getValue());
+				put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return ids;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return idsByUsername.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Integer getCachedId(String username) {
+		lock.lock();
+		try {
+			return idsByUsername.get(username);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void evictEldest() {
+		Iterator<Map.Entry<String, Integer>> iterator = idsByUsername.entrySet().iterator();
+		while (idsByUsername.size() > CAPACITY && iterator.hasNext()) {
+			Map.Entry<String, Integer> eldest = iterator.next();
+			usernamesById.remove(eldest.getValue());
+			iterator.remove();
+		}
+	}
+}
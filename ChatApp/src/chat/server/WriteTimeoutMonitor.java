@@ -0,0 +1,61 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+import chat.util.Logger;
+
+/**
+ * Closes the connections of clients which do not read their messages. A
+ * connection is closed when its writer has waited for the socket to accept
+ * the messages for longer than the write timeout. Without the timeout a
+ * client with a stalled TCP window keeps its writer and its queued messages
+ * forever.
+ *
+ * The timeout is set with the system property chat.outbound.writeTimeoutMs
+ * (default 30000, 0 disables the monitor).
+ */
+class WriteTimeoutMonitor extends Thread {
+
+	static final long WRITE_TIMEOUT = Long.getLong("chat.outbound.writeTimeoutMs", 30000);
+
+	private final Server server;
+	private volatile boolean keepRunning;
+
+	WriteTimeoutMonitor(Server server) {
+		super("WriteTimeoutMonitor");
+		this.server = server;
+		this.keepRunning = true;
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		// Check often enough to close a connection soon after its timeout.
+		long checkInterval = Math.max(10, Math.min(WRITE_TIMEOUT / 4, 1000));
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT);
+		while (keepRunning) {
+			try {
+				Thread.sleep(checkInterval);
+			} catch (InterruptedException interruptedException) {
+				// Shutdown was requested.
+				continue;
+			}
+
+			long now = System.nanoTime();
+			for (ClientConnection connection : server.getConnections()) {
+				if (connection.isWriteTimedOut(now, timeoutNanos)) {
+					server.getMetrics().getWriteTimeouts().mark();
+					Logger.warn("Disconnecting a client which does not read its messages.", "user",
+							connection.getUsername(), "ip", connection.getIP(), "port", connection.getPort(),
+							"timeoutMs", WRITE_TIMEOUT);
+					connection.closeRecourses();
+				}
+			}
+		}
+	}
+
+	void shutdown() {
+		keepRunning = false;
+		interrupt();
+	}
+}
@@ -0,0 +1,186 @@
+package chat.util;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the log events on its own thread. The logging threads only put the
+ * event in a bounded ring buffer, so they never wait for the console and
+ * never format a stack trace. When the buffer is full the event is dropped
+ * and the number of dropped events is written with the next batch.
+ *
+ * Events of the levels DEBUG and INFO are written to System.out, WARN and
+ * ERROR to System.err.
+ */
+class AsyncAppender extends Thread {
+
+	// Events written with one call to the console.
+	private static final int BATCH_SIZE = 256;
+	// Time flush() waits for the thread of the appender, in milliseconds.
+	private static final long FLUSH_TIMEOUT = 1000;
+
+	private final BlockingQueue<LogEvent> buffer;
+	private final AtomicLong droppedEvents = new AtomicLong();
+	// Events queued and not written yet, including the batch being written
+	// by the thread of the appender.
+	private final AtomicInteger pendingEvents = new AtomicInteger();
+
+	// Held while a batch is formatted and written, so the batches of this
+	// thread and of flush() are never mixed.
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	private final StringBuilder text = new StringBuilder();
+
+	AsyncAppender(int capacity) {
+		super("Logger");
+		setDaemon(true);
+		this.buffer = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * Queues an event without waiting.
+	 *
+	 * @return False if the buffer is full and the event was dropped.
+	 */
+	boolean append(LogEvent event) {
+		pendingEvents.incrementAndGet();
+		if (buffer.offer(event)) {
+			return true;
+		}
+
+		pendingEvents.decrementAndGet();
+		droppedEvents.incrementAndGet();
+		return false;
+	}
+
+	@Override
+	public void run() {
+		List<LogEvent> batch = new ArrayList<>(BATCH_SIZE);
+		while (true) {
+			try {
+				batch.add(buffer.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			buffer.drainTo(batch, BATCH_SIZE - 1);
+			int events = batch.size();
+			write(batch);
+			batch.clear();
+			pendingEvents.addAndGet(-events);
+		}
+	}
+
+	/**
+	 * Writes the events waiting in the buffer from the calling thread and
+	 * waits up to FLUSH_TIMEOUT for the batch taken by the thread of the
+	 * appender. Used when the JVM shuts down and the thread of the appender
+	 * may not run again.
+	 */
+	void flush() {
+		List<LogEvent> batch = new ArrayList<>(BATCH_SIZE);
+		int events;
+		while ((events = buffer.drainTo(batch, BATCH_SIZE)) > 0) {
+			write(batch);
+			batch.clear();
+			pendingEvents.addAndGet(-events);
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT);
+		while (pendingEvents.get() > 0 && System.nanoTime() < deadline) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	private void write(List<LogEvent> batch) {
+		writeLock.lock();
+		try {
+			long dropped = droppedEvents.getAndSet(0);
+			if (dropped > 0) {
+				batch.add(0, new LogEvent(LogLevel.WARN, "Log events were dropped because the buffer was full.",
+						null, new Object[] { "dropped", dropped }, 0));
+			}
+
+			PrintStream current = null;
+			for (LogEvent event : batch) {
+				PrintStream stream = event.level.compareTo(LogLevel.WARN) >= 0 ? System.err : System.out;
+				if (stream != current) {
+					print(current);
+					current = stream;
+				}
+
+				format(event);
+			}
+
+			print(current);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void print(PrintStream stream) {
+		if (stream == null || text.length() == 0) {
+			return;
+		}
+
+		stream.print(text);
+		stream.flush();
+		text.setLength(0);
+	}
+
+	/**
+	 * Formats the event as one line. Only errors are followed by the stack
+	 * trace of their exception; warnings carry just the exception's message.
+	 */
+	private void format(LogEvent event) {
+		text.append(dateFormat.format(new Date(event.timestamp))).append(' ');
+		text.append(event.level.name());
+		for (int i = event.level.name().length(); i < 6; i++) {
+			text.append(' ');
+		}
+
+		text.append('[').append(event.threadName).append("] ").append(event.message);
+		Object[] fields = event.fields;
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			appendField(String.valueOf(fields[i]), fields[i + 1]);
+		}
+
+		if (event.throwable != null) {
+			appendField("error", event.throwable);
+		}
+
+		if (event.suppressed > 0) {
+			appendField("suppressed", event.suppressed);
+		}
+
+		text.append(System.lineSeparator());
+		if (event.throwable != null && event.level == LogLevel.ERROR) {
+			StringWriter trace = new StringWriter();
+			event.throwable.printStackTrace(new PrintWriter(trace));
+			text.append(trace);
+		}
+	}
+
+	private void appendField(String name, Object value) {
+		String valueText = String.valueOf(value);
+		text.append(' ').append(name).append('=');
+		if (valueText.isEmpty() || valueText.indexOf(' ') >= 0 || valueText.indexOf('=') >= 0
+				|| valueText.indexOf('"') >= 0) {
+			text.append('"').append(valueText.replace("\"", "\\\"")).append('"');
+		} else {
+			text.append(valueText);
+		}
+	}
+}
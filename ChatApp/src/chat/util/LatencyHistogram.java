@@ -0,0 +1,154 @@
+package chat.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values, usually latencies in microseconds. Every
+ * power of two range is split into SUB_BUCKETS buckets of equal width, so a
+ * value is reported with a relative error below 1 / SUB_BUCKETS whatever its
+ * magnitude. Small values are counted exactly.
+ *
+ * Recording is lock free and may be performed by many threads at the same
+ * time. The memory used is fixed, less than 16 KB per histogram.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Enough buckets for every positive long value.
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	// Exact sum of the recorded values.
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Counts a value. Negative values are counted as zero.
+	 */
+	public void record(long value) {
+		value = Math.max(value, 0);
+		counts.incrementAndGet(bucketOf(value));
+		sum.add(value);
+	}
+
+	/**
+	 * Adds the counts of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+
+		sum.add(other.sum.sum());
+	}
+
+	/**
+	 * Moves all counts to another histogram and resets this one. Values
+	 * recorded at the same time are either moved or kept, never lost. Only
+	 * their share of the sum may end up in the wrong histogram.
+	 */
+	public void moveTo(LatencyHistogram target) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = counts.getAndSet(i, 0);
+			if (count != 0) {
+				target.counts.addAndGet(i, count);
+			}
+		}
+
+		target.sum.add(sum.sumThenReset());
+	}
+
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+
+		return total;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the value below or equal to which the given percentage of the
+	 * recorded values fall, or 0 if nothing was recorded.
+	 *
+	 * @param percentile
+	 *            Percentage between 0 and 100.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return highestValueOf(i);
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * Returns the highest recorded value, rounded up to the end of its bucket.
+	 */
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) != 0) {
+				return highestValueOf(i);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Returns the recorded values as a single line with the most used
+	 * percentiles, e.g. for the reports of the load generator.
+	 */
+	public String summary() {
+		return "count " + getCount() + ", p50 " + getValueAtPercentile(50) + ", p90 " + getValueAtPercentile(90)
+				+ ", p99 " + getValueAtPercentile(99) + ", p99.9 " + getValueAtPercentile(99.9) + ", max "
+				+ getMax();
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		// Values from 2^exponent to 2^(exponent + 1) - 1 share the same shift.
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long lowestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+	}
+
+	private static long highestValueOf(int bucket) {
+		if (bucket == BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+
+		return lowestValueOf(bucket + 1) - 1;
+	}
+}
@@ -0,0 +1,29 @@
+package chat.util;
+
+/**
+ * A log event waiting in the appender. The event keeps the message, the
+ * fields and the exception as they were passed, so the caller pays only for
+ * the event itself. Everything is formatted by the thread of the appender.
+ */
+class LogEvent {
+
+	final long timestamp;
+	final LogLevel level;
+	final String threadName;
+	final String message;
+	final Throwable throwable;
+	// Alternating names and values.
+	final Object[] fields;
+	// Similar events suppressed before this one by the rate limit.
+	final int suppressed;
+
+	LogEvent(LogLevel level, String message, Throwable throwable, Object[] fields, int suppressed) {
+		this.timestamp = System.currentTimeMillis();
+		this.level = level;
+		this.threadName = Thread.currentThread().getName();
+		this.message = message;
+		this.throwable = throwable;
+		this.fields = fields;
+		this.suppressed = suppressed;
+	}
+}
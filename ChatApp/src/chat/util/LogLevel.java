@@ -0,0 +1,23 @@
+package chat.util;
+
+/**
+ * Severity of a log event. Events below the level set with the system
+ * property chat.log.level are discarded by the caller.
+ */
+public enum LogLevel {
+	DEBUG, INFO, WARN, ERROR;
+
+	/**
+	 * Returns the level with the given name, ignoring case, or the default
+	 * level if the name is unknown.
+	 */
+	static LogLevel fromName(String name, LogLevel defaultLevel) {
+		for (LogLevel level : values()) {
+			if (level.name().equalsIgnoreCase(name)) {
+				return level;
+			}
+		}
+
+		return defaultLevel;
+	}
+}
@@ -1,14 +1,113 @@
-package chat.util;
-
-import java.io.PrintWriter;
-import java.io.StringWriter;
-
-public class Logger {
-	
-	public static String printError(Throwable throwable) {
-		StringWriter out = new StringWriter();
-		PrintWriter writer = new PrintWriter(out);
-		throwable.printStackTrace(writer);
-		return out.toString();
-	}
-}
\ No newline at end of file
+package chat.util;
+
+/**
+ * Logging of the server and the clients. A log event has a level, a message,
+ * optional structured fields given as alternating names and values, e.g.
+ * 
+ * <pre>
+ * Logger.warn("Unable to close the socket.", e, "user", username, "ip", ip);
+ * </pre>
+ * 
+ * and optionally the exception which caused it. The event is handed to an
+ * AsyncAppender and written by its thread, so logging never blocks on the
+ * console. Warnings and errors which repeat quickly, e.g. when many clients
+ * disconnect at once, are rate limited per message and exception type.
+ * 
+ * Logging is configured with the system properties:
+ * <ul>
+ * <li>chat.log.level - lowest level written: debug, info, warn or error
+ * (default info)</li>
+ * <li>chat.log.bufferSize - events waiting to be written before new ones are
+ * dropped (default 8192)</li>
+ * <li>chat.log.repeatLimit - warnings and errors with the same message
+ * written per interval, 0 to write all of them (default 10)</li>
+ * <li>chat.log.repeatIntervalMs - length of the interval (default
+ * 10000)</li>
+ * </ul>
+ */
+public class Logger {
+
+	private static final LogLevel LEVEL = LogLevel.fromName(System.getProperty("chat.log.level"), LogLevel.INFO);
+	private static final int BUFFER_SIZE = Integer.getInteger("chat.log.bufferSize", 8192);
+	private static final int REPEAT_LIMIT = Integer.getInteger("chat.log.repeatLimit", 10);
+	private static final long REPEAT_INTERVAL = Long.getLong("chat.log.repeatIntervalMs", 10000);
+
+	private static final Object[] NO_FIELDS = new Object[0];
+
+	private static final AsyncAppender APPENDER = new AsyncAppender(BUFFER_SIZE);
+	private static final RepeatLimiter REPEAT_LIMITER = new RepeatLimiter(REPEAT_LIMIT, REPEAT_INTERVAL);
+
+	static {
+		APPENDER.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				APPENDER.flush();
+			}
+		}, "LoggerShutdown"));
+	}
+
+	private Logger() {
+	}
+
+	public static boolean isEnabled(LogLevel level) {
+		return level.compareTo(LEVEL) >= 0;
+	}
+
+	public static void debug(String message, Object... fields) {
+		log(LogLevel.DEBUG, message, null, fields);
+	}
+
+	public static void info(String message, Object... fields) {
+		log(LogLevel.INFO, message, null, fields);
+	}
+
+	public static void warn(String message, Object... fields) {
+		log(LogLevel.WARN, message, null, fields);
+	}
+
+	/**
+	 * Logs a warning caused by an exception. Only the message of the
+	 * exception is written, not its stack trace.
+	 */
+	public static void warn(String message, Throwable throwable, Object... fields) {
+		log(LogLevel.WARN, message, throwable, fields);
+	}
+
+	public static void error(String message, Object... fields) {
+		log(LogLevel.ERROR, message, null, fields);
+	}
+
+	/**
+	 * Logs an error caused by an exception, followed by its stack trace.
+	 */
+	public static void error(String message, Throwable throwable, Object... fields) {
+		log(LogLevel.ERROR, message, throwable, fields);
+	}
+
+	/**
+	 * Writes the waiting events from the calling thread, e.g. before the
+	 * program prints something which should follow them.
+	 */
+	public static void flush() {
+		APPENDER.flush();
+	}
+
+	private static void log(LogLevel level, String message, Throwable throwable, Object[] fields) {
+		if (!isEnabled(level)) {
+			return;
+		}
+
+		int suppressed = 0;
+		if (level.compareTo(LogLevel.WARN) >= 0) {
+			String key = throwable == null ? message : message + '\u0000' + throwable.getClass().getName();
+			suppressed = REPEAT_LIMITER.acquire(key);
+			if (suppressed < 0) {
+				return;
+			}
+		}
+
+		APPENDER.append(new LogEvent(level, message, throwable, fields == null ? NO_FIELDS : fields, suppressed));
+	}
+}
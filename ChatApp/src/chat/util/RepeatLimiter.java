@@ -0,0 +1,87 @@
+package chat.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how often the same event is logged. Events are the same if they
+ * have the same key; at most limit events per key are let through in every
+ * interval and the rest are counted. The count is reported with the first
+ * event let through in a later interval.
+ */
+class RepeatLimiter {
+
+	// Keys are expected to come from a fixed set of log statements. The map
+	// is cleared if it ever grows past this size.
+	private static final int MAX_KEYS = 1024;
+
+	private final int limit;
+	private final long intervalMillis;
+	private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+
+	RepeatLimiter(int limit, long intervalMillis) {
+		this.limit = limit;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Counts an event.
+	 *
+	 * @return -1 if the event should be suppressed, otherwise the number of
+	 *         events suppressed since the last one let through.
+	 */
+	int acquire(String key) {
+		if (limit <= 0) {
+			return 0;
+		}
+
+		Window window = windows.get(key);
+		if (window == null) {
+			if (windows.size() >= MAX_KEYS) {
+				windows.clear();
+			}
+
+			Window newWindow = new Window();
+			window = windows.putIfAbsent(key, newWindow);
+			if (window == null) {
+				window = newWindow;
+			}
+		}
+
+		return window.acquire(System.currentTimeMillis());
+	}
+
+	/**
+	 * Events of one key in the current interval.
+	 */
+	private class Window {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private long start;
+		private int count;
+		private int suppressed;
+
+		int acquire(long now) {
+			lock.lock();
+			try {
+				if (now - start >= intervalMillis) {
+					start = now;
+					count = 0;
+				}
+
+				if (count >= limit) {
+					suppressed++;
+					return -1;
+				}
+
+				count++;
+				int result = suppressed;
+				suppressed = 0;
+				return result;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
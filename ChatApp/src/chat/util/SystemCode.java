@@ -1,14 +1,18 @@
-package chat.util;
-
-public class SystemCode {
-	
-	public static final String LOGIN = "500";
-	public static final String REGULAR_MESSAGE = "400";
-	public static final String DISCONNECT = "300";
-	public static final String LOGOUT = "200";
-	public static final String REGISTER = "100";
-	public static final String ALREADY_REGISTERED_USERNAME = "7";
-	public static final String ALREADY_LOGGED_IN = "6";
-	public static final String FAILED_LOGIN = "5";
-	public static final String SUCCESSFUL_LOGIN = "0";
-}
+package chat.util;
+
+public class SystemCode {
+	
+	public static final String LOGIN = "500";
+	public static final String REGULAR_MESSAGE = "400";
+	public static final String DISCONNECT = "300";
+	public static final String LOGOUT = "200";
+	public static final String REGISTER = "100";
+	public static final String JOIN_ROOM = "600";
+	public static final String LEAVE_ROOM = "700";
+	public static final String SESSION_TOKEN = "800";
+	public static final String RESUME = "900";
+	public static final String ALREADY_REGISTERED_USERNAME = "7";
+	public static final String ALREADY_LOGGED_IN = "6";
+	public static final String FAILED_LOGIN = "5";
+	public static final String SUCCESSFUL_LOGIN = "0";
+}
@@ -0,0 +1,69 @@
+package chat.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gives access to the virtual threads introduced in Java 21. The project is
+ * compiled for Java 8, so the new API is looked up with reflection and is
+ * available only when the application runs on Java 21 or newer.
+ */
+public class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Checks if the running JVM supports virtual threads.
+	 */
+	public static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a factory for virtual threads named with the given prefix
+	 * followed by a sequence number.
+	 *
+	 * @param prefix
+	 *            Prefix of the thread names.
+	 * @throws UnsupportedOperationException
+	 *             If the running JVM does not support virtual threads.
+	 */
+	public static ThreadFactory newThreadFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException
+				| InvocationTargetException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer.", e);
+		}
+	}
+
+	/**
+	 * Creates an executor which starts a new virtual thread for every task.
+	 *
+	 * @param prefix
+	 *            Prefix of the thread names.
+	 * @throws UnsupportedOperationException
+	 *             If the running JVM does not support virtual threads.
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+		ThreadFactory threadFactory = newThreadFactory(prefix);
+		try {
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, threadFactory);
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer.", e);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package chat.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Constants and codec of the binary protocol. The binary protocol is used
+ * instead of the line based one when the client starts the connection with
+ * the MAGIC byte followed by the VERSION byte. The server answers with the
+ * same two bytes and both sides switch to binary frames.
+ *
+ * Every frame starts with its length as unsigned varint, followed by a one
+ * byte opcode and the payload. Strings are encoded as varint byte length
+ * followed by the UTF-8 bytes, so the texts may contain new lines. A client
+ * defines every recipient once with DEFINE_RECIPIENT and refers to it by id
+ * in the following MESSAGE frames. A recipient starting with '#' is a room,
+ * which the client joins and leaves with JOIN_ROOM and LEAVE_ROOM. A logged
+ * in client asks for a session token with SESSION_TOKEN and takes its
+ * session back on a new connection with RESUME carrying the username and the
+ * token.
+ */
+public class WireProtocol {
+
+	// Never the first byte of a line based frame, which starts with a digit.
+	public static final int MAGIC = 0xC4;
+	public static final int VERSION = 1;
+
+	// Frames sent by the client.
+	public static final int REGISTER = 1;
+	public static final int LOGIN = 2;
+	public static final int MESSAGE = 3;
+	public static final int LOGOUT = 4;
+	public static final int DEFINE_RECIPIENT = 5;
+	public static final int JOIN_ROOM = 6;
+	public static final int LEAVE_ROOM = 7;
+	public static final int SESSION_TOKEN = 8;
+	public static final int RESUME = 9;
+
+	// Frames sent by the server. The payload is a string with the same
+	// content as a line of the line based protocol.
+	public static final int TEXT = 16;
+
+	// Frames sent between the nodes of a cluster. A node starts its link with
+	// NODE_HELLO carrying its id.
+	public static final int NODE_HELLO = 32;
+	public static final int NODE_MESSAGE = 33;
+	public static final int NODE_BROADCAST = 34;
+
+	// Frames longer than this are considered as malicious input.
+	public static final int MAX_FRAME_LENGTH = 256 * 1024;
+
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private WireProtocol() {
+	}
+
+	/**
+	 * Creates the frame of a message which consists only of strings.
+	 *
+	 * @param opcode
+	 *            The type of the frame.
+	 * @param strings
+	 *            The payload of the frame.
+	 * @return The encoded frame including its length.
+	 */
+	public static byte[] encode(int opcode, String... strings) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		for (String string : strings) {
+			writeString(payload, string);
+		}
+
+		return frame(opcode, payload);
+	}
+
+	/**
+	 * Creates a frame whose payload starts with a number followed by a string.
+	 */
+	public static byte[] encode(int opcode, int number, String string) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		writeVarint(payload, number);
+		writeString(payload, string);
+		return frame(opcode, payload);
+	}
+
+	/**
+	 * Reads one frame from a blocking stream.
+	 *
+	 * @param input
+	 *            The stream to read from.
+	 * @return The opcode and the payload of the frame, or null if the stream
+	 *         ended before the frame started.
+	 * @throws IOException
+	 *             If the stream ended in the middle of a frame or the frame is
+	 *             too long.
+	 */
+	public static ByteBuffer readFrame(InputStream input) throws IOException {
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = input.read();
+			if (b < 0) {
+				if (shift == 0) {
+					return null;
+				}
+
+				throw new EOFException("The stream ended in the middle of a frame length.");
+			}
+
+			if (shift == 28 && (b & 0xF0) != 0) {
+				throw new IOException("Invalid frame length.");
+			}
+
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+
+		checkFrameLength(length);
+		byte[] frame = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int bytesRead = input.read(frame, offset, length - offset);
+			if (bytesRead < 0) {
+				throw new EOFException("The stream ended in the middle of a frame.");
+			}
+
+			offset += bytesRead;
+		}
+
+		return ByteBuffer.wrap(frame);
+	}
+
+	/**
+	 * Checks the length of a frame read from the network.
+	 *
+	 * @throws IOException
+	 *             If the frame is empty or too long.
+	 */
+	public static void checkFrameLength(int length) throws IOException {
+		if (length < 1 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid frame length: " + length + ". The maximum is " + MAX_FRAME_LENGTH + ".");
+		}
+	}
+
+	public static int readVarint(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!buffer.hasRemaining()) {
+				throw new IOException("The frame ended in the middle of a number.");
+			}
+
+			int b = buffer.get() & 0xFF;
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IOException("Invalid number in the frame.");
+				}
+
+				return value;
+			}
+		}
+
+		throw new IOException("Invalid number in the frame.");
+	}
+
+	public static String readString(ByteBuffer buffer) throws IOException {
+		int length = readVarint(buffer);
+		if (length > buffer.remaining()) {
+			throw new IOException("The frame ended in the middle of a string.");
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	public static void writeVarint(ByteArrayOutputStream output, int value) {
+		while ((value & ~0x7F) != 0) {
+			output.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		output.write(value);
+	}
+
+	public static void writeVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Returns the number of bytes used by the varint encoding of the value.
+	 */
+	public static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+
+		return size;
+	}
+
+	public static void writeString(ByteArrayOutputStream output, String string) {
+		byte[] bytes = string.getBytes(UTF_8);
+		writeVarint(output, bytes.length);
+		output.write(bytes, 0, bytes.length);
+	}
+
+	private static byte[] frame(int opcode, ByteArrayOutputStream payload) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 6);
+		writeVarint(frame, payload.size() + 1);
+		frame.write(opcode);
+		byte[] bytes = payload.toByteArray();
+		frame.write(bytes, 0, bytes.length);
+		return frame.toByteArray();
+	}
+}
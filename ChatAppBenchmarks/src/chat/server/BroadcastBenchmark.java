@@ -0,0 +1,63 @@
+package chat.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending a message to /all. Measures the time to queue one message for
+ * every logged in user, half of whom use the binary protocol.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	private int recipients;
+
+	private Server server;
+	private MessageDispatcher messageDispatcher;
+
+	@Setup
+	public void setUp() throws IOException, SQLException {
+		server = new Server(new InMemoryStorage(), ServerEngine.BLOCKING);
+		messageDispatcher = server.getMessageDispatcher();
+		MemoryConnection.register(server, "sender", false);
+		for (int i = 0; i < recipients; i++) {
+			MemoryConnection.register(server, "user" + i, i % 2 == 1);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		messageDispatcher.shutdown();
+		server.getMessagePersister().shutdown();
+	}
+
+	@Benchmark
+	public boolean sendToAll() {
+		Message message = Message.obtain("Hello everybody!", "/all", "sender");
+		try {
+			return messageDispatcher.addBroadcastToQueue(message);
+		} finally {
+			message.recycle();
+		}
+	}
+}
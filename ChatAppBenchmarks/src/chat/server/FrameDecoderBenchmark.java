@@ -0,0 +1,92 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import chat.util.SystemCode;
+import chat.util.WireProtocol;
+
+/**
+ * Parsing of the frames sent by the clients. Both server engines split the
+ * bytes read from the socket with these decoders, so this is the parsing
+ * cost of ServersideListener and NioClientConnection alike. Every invocation
+ * decodes one read buffer with FRAMES message frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+	private static final int FRAMES = 100;
+
+	@Param({ "line", "binary" })
+	private String protocol;
+
+	@Param({ "32", "512" })
+	private int textLength;
+
+	private FrameDecoder decoder;
+	private ByteBuffer input;
+	private final ArrayDeque<String[]> frames = new ArrayDeque<>();
+
+	@Setup
+	public void setUp() throws IOException {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < textLength) {
+			text.append("lorem ipsum ");
+		}
+		text.setLength(textLength);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (protocol.equals("binary")) {
+			decoder = new BinaryFrameDecoder();
+			decoder.decode(ByteBuffer.wrap(new byte[] { (byte) WireProtocol.MAGIC, WireProtocol.VERSION }), frames);
+			bytes.write(WireProtocol.encode(WireProtocol.DEFINE_RECIPIENT, 1, "recipient"));
+			decoder.decode(ByteBuffer.wrap(bytes.toByteArray()), frames);
+			bytes.reset();
+			for (int i = 0; i < FRAMES; i++) {
+				bytes.write(WireProtocol.encode(WireProtocol.MESSAGE, 1, text.toString()));
+			}
+		} else {
+			decoder = new LineFrameDecoder(Charset.defaultCharset());
+			for (int i = 0; i < FRAMES; i++) {
+				bytes.write((SystemCode.REGULAR_MESSAGE + "\n" + text + "\nrecipient\n").getBytes());
+			}
+		}
+
+		input = ByteBuffer.wrap(bytes.toByteArray());
+		frames.clear();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public void decode(Blackhole blackhole) throws IOException {
+		input.rewind();
+		decoder.decode(input, frames);
+		String[] frame;
+		while ((frame = frames.poll()) != null) {
+			blackhole.consume(frame);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package chat.server;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage which keeps the users in memory and only counts the stored
+ * messages. Stands in for the database, so the benchmarks run offline and
+ * measure the relay instead of the database server.
+ */
+public class InMemoryStorage implements Storage {
+
+	// SQL state used for a username which is already registered.
+	private static final String DUPLICATE_KEY_STATE = "23000";
+
+	private final ConcurrentMap<String, Integer> userIds = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Integer, String> usernames = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, String> passwordHashes = new ConcurrentHashMap<>();
+	private final AtomicInteger lastUserId = new AtomicInteger();
+
+	private final AtomicLong storedMessages = new AtomicLong();
+
+	@Override
+	public void open() throws SQLException {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public int insertUser(String username, String passwordHash) throws SQLException {
+		if (passwordHashes.putIfAbsent(username, passwordHash) != null) {
+			throw new SQLException("Duplicate username: " + username, DUPLICATE_KEY_STATE);
+		}
+
+		int id = lastUserId.incrementAndGet();
+		usernames.put(id, username);
+		userIds.put(username, id);
+		return id;
+	}
+
+	@Override
+	public UserCredentials findCredentials(String username) throws SQLException {
+		Integer userId = userIds.get(username);
+		String passwordHash = passwordHashes.get(username);
+		return userId == null || passwordHash == null ? null : new UserCredentials(userId, passwordHash);
+	}
+
+	@Override
+	public void updatePassword(int userId, String passwordHash) throws SQLException {
+		String username = usernames.get(userId);
+		if (username == null) {
+			throw new SQLException("There is no registered user with id: " + userId);
+		}
+
+		passwordHashes.put(username, passwordHash);
+	}
+
+	@Override
+	public Integer findUserId(String username) throws SQLException {
+		return userIds.get(username);
+	}
+
+	@Override
+	public String findUsername(int userId) throws SQLException {
+		return usernames.get(userId);
+	}
+
+	@Override
+	public Map<String, Integer> findUserIds(Collection<String> names) throws SQLException {
+		Map<String, Integer> ids = new HashMap<>();
+		for (String username : names) {
+			Integer id = userIds.get(username);
+			if (id != null) {
+				ids.put(username, id);
+			}
+		}
+
+		return ids;
+	}
+
+	@Override
+	public void insertSessions(List<SessionRecord> sessions) throws SQLException {
+	}
+
+	@Override
+	public void insertMessages(List<MessageRecord> messages) throws SQLException {
+		storedMessages.addAndGet(messages.size());
+	}
+
+	@Override
+	public void insertOfflineMessage(MessageRecord message) throws SQLException {
+		// The benchmarks send only to connected users.
+	}
+
+	@Override
+	public List<OfflineMessage> readOfflineMessages(int recipientId, long afterId, int limit) throws SQLException {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void deleteOfflineMessages(int recipientId, long lastId) throws SQLException {
+	}
+
+	@Override
+	public void readHistory(Collection<String> names, Date from, Date to, int limit, HistoryHandler handler)
+			throws SQLException {
+		// The messages are not kept.
+	}
+
+	public long getStoredMessages() {
+		return storedMessages.get();
+	}
+}
@@ -0,0 +1,91 @@
+package chat.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import chat.util.SystemCode;
+
+/**
+ * Connection whose socket is replaced by a byte counter. The queued messages
+ * are written right away by the thread which queued them, so the benchmarks
+ * measure the delivery without the network and without a writer thread.
+ */
+public class MemoryConnection extends ClientConnection {
+
+	private volatile boolean isClosed;
+	private volatile long bytesWritten;
+
+	public MemoryConnection(Server server) {
+		super(server.getMessageDispatcher(), server.getStorage(), server);
+	}
+
+	/**
+	 * Registers a new user through the protocol and returns its connection.
+	 *
+	 * @throws IOException
+	 *             If the user could not be registered.
+	 */
+	public static MemoryConnection register(Server server, String username, boolean isBinary)
+			throws IOException, SQLException {
+		MemoryConnection connection = new MemoryConnection(server);
+		if (isBinary) {
+			connection.useBinaryProtocol();
+		}
+
+		if (!connection.processFrame(SystemCode.REGISTER, username, "password")) {
+			throw new IOException("Unable to register " + username);
+		}
+
+		return connection;
+	}
+
+	@Override
+	public String getIP() {
+		return "/127.0.0.1";
+	}
+
+	@Override
+	public int getPort() {
+		return 0;
+	}
+
+	/**
+	 * Returns the number of bytes written to the client.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	boolean isClosed() {
+		return isClosed;
+	}
+
+	@Override
+	void messageQueued() {
+		boolean isBinary = isBinaryProtocol();
+		long written = 0;
+		OutboundMessage message;
+		while ((message = outbound.poll()) != null) {
+			try {
+				written += message.getBytes(isBinary).length;
+			} finally {
+				message.release();
+			}
+		}
+
+		// Only counted, several writers may lose an update.
+		bytesWritten += written;
+	}
+
+	@Override
+	void closeRecourses() {
+		isClosed = true;
+		discardOutbound();
+	}
+
+	@Override
+	void flushAndClose() {
+		closeRecourses();
+	}
+}
@@ -0,0 +1,106 @@
+package chat.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Contention on the registry of the logged in users. Three threads look up
+ * recipients with getServersideListener, like the senders of messages, while
+ * one thread logs a user in and out with addUser and removeListener.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+
+	@Param({ "1000" })
+	private int users;
+
+	private Server server;
+	private String[] usernames;
+	private final AtomicInteger nextLoginUser = new AtomicInteger();
+
+	@Setup
+	public void setUp() throws IOException, SQLException {
+		server = new Server(new InMemoryStorage(), ServerEngine.BLOCKING);
+		usernames = new String[users];
+		for (int i = 0; i < users; i++) {
+			usernames[i] = "user" + i;
+			MemoryConnection.register(server, usernames[i], false);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.getMessageDispatcher().shutdown();
+		server.getMessagePersister().shutdown();
+	}
+
+	@Benchmark
+	@Group("registry")
+	@GroupThreads(3)
+	public void lookup(Lookups lookups, Blackhole blackhole) {
+		blackhole.consume(server.getServersideListener(usernames[lookups.next(users)]));
+	}
+
+	@Benchmark
+	@Group("registry")
+	@GroupThreads(1)
+	public String loginLogout(Login login) throws SQLException {
+		String resultCode = server.addUser(login.connection.getUsername(), login.connection);
+		server.removeListener(login.connection);
+		return resultCode;
+	}
+
+	/**
+	 * Position of a looking up thread in the usernames.
+	 */
+	@State(Scope.Thread)
+	public static class Lookups {
+
+		private int index;
+
+		int next(int users) {
+			index = (index + 1) % users;
+			return index;
+		}
+	}
+
+	/**
+	 * A registered user of a logging in thread. The user is logged out before
+	 * every invocation starts.
+	 */
+	@State(Scope.Thread)
+	public static class Login {
+
+		private MemoryConnection connection;
+
+		@Setup
+		public void setUp(RegistryBenchmark benchmark) throws IOException, SQLException {
+			String username = "login" + benchmark.nextLoginUser.incrementAndGet();
+			connection = MemoryConnection.register(benchmark.server, username, false);
+			benchmark.server.removeListener(connection);
+		}
+	}
+}
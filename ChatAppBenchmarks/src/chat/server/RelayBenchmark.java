@@ -0,0 +1,86 @@
+package chat.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Relaying a message from one user to another. dispatch goes through
+ * MessageDispatcher.addMessageToQueue like a message received from a client,
+ * send calls MessageSender directly. The recipient writes the message to an
+ * in-memory socket and the message is queued for the in-memory storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBenchmark {
+
+	@Param({ "false", "true" })
+	private boolean isBinary;
+
+	private Server server;
+	private MessageDispatcher messageDispatcher;
+	private MessageSender messageSender;
+
+	@Setup
+	public void setUp() throws IOException, SQLException {
+		server = new Server(new InMemoryStorage(), ServerEngine.BLOCKING);
+		messageDispatcher = server.getMessageDispatcher();
+		messageSender = new MessageSender(server);
+		MemoryConnection.register(server, "sender", false);
+		MemoryConnection.register(server, "recipient", isBinary);
+	}
+
+	@TearDown
+	public void tearDown() {
+		messageDispatcher.shutdown();
+		server.getMessagePersister().shutdown();
+	}
+
+	@Benchmark
+	public boolean dispatch() {
+		Message message = Message.obtain("Hello, how are you?", "recipient", "sender");
+		try {
+			return messageDispatcher.addMessageToQueue(message);
+		} finally {
+			message.recycle();
+		}
+	}
+
+	/**
+	 * Four senders writing to the same recipient, which contend on its
+	 * outbound queue.
+	 */
+	@Benchmark
+	@Threads(4)
+	public boolean dispatchContended() {
+		return dispatch();
+	}
+
+	@Benchmark
+	public void send() {
+		Message message = Message.obtain("Hello, how are you?", "recipient", "sender");
+		try {
+			messageSender.send(message);
+		} finally {
+			message.recycle();
+		}
+	}
+}